@@ -0,0 +1,105 @@
+package com.hopding.jrpicam;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building raspistill and raspivid commands from an RPiCamera's options, against the
+ * loop that every capture method ran before {@link CameraSettings} cached its commands. This
+ * benchmark is in the library's package, rather than with the others, to reach the package
+ * private command builders without starting a camera.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CameraSettingsBenchmark {
+
+	private HashMap<String, String[]> options;
+	private CameraSettings settings;
+
+	@Setup
+	public void setup() {
+		// Options as set by the setters of a typically configured RPiCamera
+		options = new HashMap<>();
+		options.put("width", new String[] { "-w", "1920" });
+		options.put("height", new String[] { "-h", "1080" });
+		options.put("preview", new String[] { "-n" });
+		options.put("timeout", new String[] { "-t", "1" });
+		options.put("quality", new String[] { "-q", "85" });
+		options.put("encoding", new String[] { "-e", "jpg" });
+		options.put("exposure", new String[] { "-ex", "auto" });
+		options.put("awb", new String[] { "-awb", "auto" });
+		options.put("brightness", new String[] { "-br", "55" });
+		options.put("sharpness", new String[] { "-sh", "10" });
+		options.put("rotation", new String[] { "-rot", "180" });
+		options.put("thumb", new String[] { "-th", "64:48:35" });
+		settings = new CameraSettings(options, "/home/pi/Pictures");
+	}
+
+	@Benchmark
+	public List<String> legacyStillCommand() {
+		return legacyCommand(options, 1920, 1080);
+	}
+
+	@Benchmark
+	public CameraSettings settingsSnapshot() {
+		// Paid once after each option change
+		return new CameraSettings(options, "/home/pi/Pictures");
+	}
+
+	@Benchmark
+	public List<String> cachedStillCommand() {
+		return settings.stillToStdoutCommand();
+	}
+
+	@Benchmark
+	public List<String> stillToFileCommand() {
+		return settings.stillToFileCommand("image.jpg");
+	}
+
+	@Benchmark
+	public List<String> videoCommand() {
+		return settings.videoCommand("-b", "17000000");
+	}
+
+	/**
+	 * The command building loop formerly used by RPiCamera.takeBufferedStill, kept verbatim as a
+	 * baseline.
+	 */
+	static List<String> legacyCommand(Map<String, String[]> options, int width, int height) {
+		List<String> command = new ArrayList<>();
+		command.add("raspistill");
+		command.add("-o");
+		command.add("-v");
+		command.add("-w");
+		command.add("" + width);
+		command.add("-h");
+		command.add("" + height);
+		for (Map.Entry<String, String[]> entry : options.entrySet()) {
+			if (entry.getValue() != null        &&
+                !entry.getKey().equals("width") &&
+                !entry.getKey().equals("height")) {
+                Collections.addAll(command, entry.getValue());
+			}
+		}
+		return command;
+	}
+}
@@ -0,0 +1,70 @@
+package com.hopding.jrpicam.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hopding.jrpicam.raw.BayerImage;
+import com.hopding.jrpicam.raw.Demosaic;
+
+/**
+ * Measures how long {@link Demosaic} takes on a full 3280x2464 (8MP V2 camera) raw image with
+ * each method, with the work split across all cores and on a single thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DemosaicBenchmark {
+
+	private static final int WIDTH = 3280;
+	private static final int HEIGHT = 2464;
+
+	@Param({ "BILINEAR", "MALVAR" })
+	public Demosaic.Method method;
+
+	@Param({ "0", "1" })
+	public int threads;
+
+	private BayerImage image;
+	private short[] rgb;
+	private Demosaic demosaic;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		short[] values = new short[WIDTH * HEIGHT];
+		for (int i = 0; i < values.length; i++)
+			values[i] = (short) random.nextInt(1024);
+		image = new BayerImage(WIDTH, HEIGHT, 10, BayerImage.Order.BGGR, values);
+		rgb = new short[WIDTH * HEIGHT * 3];
+		demosaic = new Demosaic(method);
+		if (threads > 0)
+			demosaic.setPool(new ForkJoinPool(threads));
+	}
+
+	@Benchmark
+	public short[] toRGB() {
+		return demosaic.toRGB(image, rgb);
+	}
+
+	@Benchmark
+	public BufferedImage toBufferedImage() {
+		return demosaic.toBufferedImage(image);
+	}
+}
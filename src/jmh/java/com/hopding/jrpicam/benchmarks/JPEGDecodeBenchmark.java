@@ -0,0 +1,150 @@
+package com.hopding.jrpicam.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hopding.jrpicam.image.DecodeOptions;
+import com.hopding.jrpicam.io.ExifThumbnail;
+
+/**
+ * Measures how much decoding time {@link DecodeOptions} and {@link ExifThumbnail} save over
+ * decoding a full 2592x1944 (5MP camera) JPEG with ImageIO.read, as takeBufferedStill does,
+ * when only a scaled down preview or a single tile is needed. The JPEG carries a 64x48 EXIF
+ * thumbnail, as raspistill's images do by default.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JPEGDecodeBenchmark {
+
+	private static final int WIDTH = 2592;
+	private static final int HEIGHT = 1944;
+
+	private byte[] jpeg;
+	private DecodeOptions half;
+	private DecodeOptions quarter;
+	private DecodeOptions eighth;
+	private DecodeOptions topTile;
+	private DecodeOptions bottomTile;
+
+	@Setup
+	public void setup() throws IOException {
+		// A gradient with noise, so the JPEG is about the size raspistill produces
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+		Random random = new Random(42);
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				int noise = random.nextInt(32);
+				image.setRGB(x, y, (x * 255 / WIDTH + noise) << 16 | (y * 255 / HEIGHT + noise) << 8 | noise * 4);
+			}
+		}
+		BufferedImage thumbnail = new BufferedImage(64, 48, BufferedImage.TYPE_3BYTE_BGR);
+		thumbnail.getGraphics().drawImage(image, 0, 0, 64, 48, null);
+		jpeg = withExifThumbnail(encode(image), encode(thumbnail));
+
+		half = new DecodeOptions().setScale(2);
+		quarter = new DecodeOptions().setScale(4);
+		eighth = new DecodeOptions().setScale(8);
+		// One tile of a 4x4 grid
+		topTile = new DecodeOptions().setRegion(0, 0, WIDTH / 4, HEIGHT / 4);
+		bottomTile = new DecodeOptions().setRegion(WIDTH * 3 / 4, HEIGHT * 3 / 4, WIDTH / 4, HEIGHT / 4);
+	}
+
+	@Benchmark
+	public BufferedImage fullDecode() throws IOException {
+		return ImageIO.read(new ByteArrayInputStream(jpeg));
+	}
+
+	@Benchmark
+	public BufferedImage halfScale() throws IOException {
+		return half.decode(jpeg, 0, jpeg.length);
+	}
+
+	@Benchmark
+	public BufferedImage quarterScale() throws IOException {
+		return quarter.decode(jpeg, 0, jpeg.length);
+	}
+
+	@Benchmark
+	public BufferedImage eighthScale() throws IOException {
+		return eighth.decode(jpeg, 0, jpeg.length);
+	}
+
+	@Benchmark
+	public BufferedImage topTile() throws IOException {
+		return topTile.decode(jpeg, 0, jpeg.length);
+	}
+
+	@Benchmark
+	public BufferedImage bottomTile() throws IOException {
+		return bottomTile.decode(jpeg, 0, jpeg.length);
+	}
+
+	@Benchmark
+	public byte[] exifThumbnailExtract() {
+		return ExifThumbnail.extract(jpeg, 0, jpeg.length);
+	}
+
+	@Benchmark
+	public BufferedImage exifThumbnailDecode() throws IOException {
+		byte[] thumbnail = ExifThumbnail.extract(jpeg, 0, jpeg.length);
+		return ImageIO.read(new ByteArrayInputStream(thumbnail));
+	}
+
+	static byte[] encode(BufferedImage image) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpg", out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Inserts an EXIF segment laid out like raspistill's, with an IFD0 holding one tag and an
+	 * IFD1 pointing to the thumbnail, after the image's SOI marker.
+	 */
+	static byte[] withExifThumbnail(byte[] image, byte[] thumbnail) {
+		int ifd1 = 8 + 2 + 12 + 4;
+		int thumbnailOffset = ifd1 + 2 + 3 * 12 + 4;
+		ByteBuffer tiff = ByteBuffer.allocate(thumbnailOffset + thumbnail.length).order(ByteOrder.LITTLE_ENDIAN);
+		tiff.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+		tiff.putShort((short) 1);
+		tiff.putShort((short) 0x0112).putShort((short) 3).putInt(1).putInt(1); // Orientation
+		tiff.putInt(ifd1);
+		tiff.putShort((short) 3);
+		tiff.putShort((short) 0x0103).putShort((short) 3).putInt(1).putInt(6); // JPEG compression
+		tiff.putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(thumbnailOffset);
+		tiff.putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(thumbnail.length);
+		tiff.putInt(0);
+		tiff.put(thumbnail);
+
+		int segmentLength = 2 + 6 + tiff.capacity();
+		ByteBuffer out = ByteBuffer.allocate(image.length + 2 + segmentLength);
+		out.put(image, 0, 2);
+		out.put((byte) 0xFF).put((byte) 0xE1).putShort((short) segmentLength);
+		out.put(new byte[] { 'E', 'x', 'i', 'f', 0, 0 });
+		out.put(tiff.array());
+		out.put(image, 2, image.length - 2);
+		return out.array();
+	}
+}
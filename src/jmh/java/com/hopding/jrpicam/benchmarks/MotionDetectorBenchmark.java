@@ -0,0 +1,73 @@
+package com.hopding.jrpicam.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hopding.jrpicam.image.YUV420Image;
+import com.hopding.jrpicam.io.RGBReader;
+import com.hopding.jrpicam.motion.Motion;
+import com.hopding.jrpicam.motion.MotionDetector;
+
+/**
+ * Measures the frame rate {@link MotionDetector} can sustain at 640x480 on luma and on RGB
+ * input, with the work split across all cores and on a single thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MotionDetectorBenchmark {
+
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+
+	@Param({ "0", "1" })
+	public int threads;
+
+	private YUV420Image[] lumaFrames;
+	private int[][] rgbFrames;
+	private MotionDetector detector;
+	private int frame;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		lumaFrames = new YUV420Image[2];
+		rgbFrames = new int[2][];
+		for (int i = 0; i < 2; i++) {
+			lumaFrames[i] = new YUV420Image(WIDTH, HEIGHT, true);
+			random.nextBytes(lumaFrames[i].getData());
+			rgbFrames[i] = new int[new RGBReader(WIDTH, HEIGHT).getImageSize(false)];
+			for (int j = 0; j < rgbFrames[i].length; j++)
+				rgbFrames[i][j] = random.nextInt(256);
+		}
+		detector = new MotionDetector(WIDTH, HEIGHT);
+		if (threads > 0)
+			detector.setPool(new ForkJoinPool(threads));
+	}
+
+	@Benchmark
+	public Motion luma() {
+		return detector.detect(lumaFrames[frame++ & 1]);
+	}
+
+	@Benchmark
+	public Motion rgb() {
+		return detector.detect(rgbFrames[frame++ & 1], false);
+	}
+}
@@ -0,0 +1,121 @@
+package com.hopding.jrpicam.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hopding.jrpicam.io.RGBReader;
+
+/**
+ * Compares the row based {@link RGBReader} against the byte at a time loop that
+ * RPiCamera.takeStillAsRGB used previously, on synthetic raspiyuv "-rgb" output.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RGBReaderBenchmark {
+
+	@Param({ "640x480", "1920x1080" })
+	public String size;
+
+	@Param({ "false", "true" })
+	public boolean keepPadding;
+
+	private int width;
+	private int height;
+	private byte[] frame;
+	private RGBReader reader;
+	private int[] intPixels;
+	private byte[] bytePixels;
+
+	@Setup
+	public void setup() {
+		String[] dimensions = size.split("x");
+		width = Integer.parseInt(dimensions[0]);
+		height = Integer.parseInt(dimensions[1]);
+		reader = new RGBReader(width, height);
+		frame = new byte[reader.getImageSize(true)];
+		new Random(42).nextBytes(frame);
+		intPixels = new int[reader.getImageSize(keepPadding)];
+		bytePixels = new byte[reader.getImageSize(keepPadding)];
+	}
+
+	@Benchmark
+	public int[] legacyLoop() throws IOException {
+		return legacyRead(new BufferedInputStream(new ByteArrayInputStream(frame)), width, height, keepPadding);
+	}
+
+	@Benchmark
+	public int[] rowReaderInts() throws IOException {
+		reader.read(new ByteArrayInputStream(frame), intPixels, keepPadding);
+		return intPixels;
+	}
+
+	@Benchmark
+	public byte[] rowReaderBytes() throws IOException {
+		reader.read(new ByteArrayInputStream(frame), bytePixels, keepPadding);
+		return bytePixels;
+	}
+
+	/**
+	 * The loop formerly used by RPiCamera.takeStillAsRGB, kept verbatim as a baseline.
+	 */
+	static int[] legacyRead(BufferedInputStream inputStream, int width, int height, boolean keepPadding)
+			throws IOException {
+		int paddedWidth = width;
+		int paddedHeight = height;
+		int widthRemainder = width % 16;
+		if (widthRemainder != 0)
+			paddedWidth = width + 16 - widthRemainder;
+		int heightRemainder = height % 16;
+		if (heightRemainder != 0)
+			paddedHeight = height + 16 - heightRemainder;
+		int[] rgbVals;
+		if (!keepPadding)
+			rgbVals = new int[width * height * 3];
+		else
+			rgbVals = new int[paddedWidth * paddedHeight * 3];
+		int rgbData;
+		int pos = 0;
+		if (!keepPadding) {
+			int storedBytes = 0;
+			int columnPos = 1;
+			int areaWithoutPadding = width * height;
+			while ((rgbData = inputStream.read()) != -1) {
+				if ((columnPos / 3d) <= width) {
+					rgbVals[storedBytes] = rgbData;
+					storedBytes++;
+				}
+				columnPos++;
+				if (columnPos == (paddedWidth * 3) + 1)
+					columnPos = 1;
+				if ((storedBytes / 3d) == areaWithoutPadding)
+					break;
+			}
+		} else {
+			while ((rgbData = inputStream.read()) != -1) {
+				rgbVals[pos] = rgbData;
+				pos++;
+			}
+		}
+		inputStream.close();
+		return rgbVals;
+	}
+}
@@ -0,0 +1,153 @@
+package com.hopding.jrpicam.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hopding.jrpicam.io.H264FrameReader;
+import com.hopding.jrpicam.io.JPEGFrameReader;
+
+/**
+ * Measures the time {@link JPEGFrameReader} and {@link H264FrameReader} take to split one frame
+ * out of a continuous capture stream. The streams are fed in pipe sized reads, as raspistill's
+ * and raspivid's stdout would be, and loop forever so each invocation reads one frame.
+ * <p>
+ * By default the JPEG stream repeats a 1280x720 image with an EXIF thumbnail, as "-tl" captures
+ * write, and the H.264 stream is a 30 frame GOP at raspivid's default bitrate for 1080p. Real
+ * captures can be used instead, by passing the path of a file recorded from raspistill or
+ * raspivid as the jpegRecording or h264Recording parameter, e.g.
+ * {@code -p h264Recording=/home/pi/capture.h264}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamSplitterBenchmark {
+
+	// The default pipe capacity on Linux, and so the most a single read from a process returns
+	private static final int PIPE_SIZE = 64 * 1024;
+
+	@Param({ "" })
+	public String jpegRecording;
+
+	@Param({ "" })
+	public String h264Recording;
+
+	private JPEGFrameReader jpegReader;
+	private H264FrameReader h264Reader;
+
+	@Setup
+	public void setup() throws IOException {
+		byte[] jpeg = jpegRecording.isEmpty() ? syntheticJPEG() : Files.readAllBytes(Paths.get(jpegRecording));
+		byte[] h264 = h264Recording.isEmpty() ? syntheticH264() : Files.readAllBytes(Paths.get(h264Recording));
+		jpegReader = new JPEGFrameReader(new LoopingInputStream(jpeg));
+		h264Reader = new H264FrameReader(new LoopingInputStream(h264));
+	}
+
+	@Benchmark
+	public int jpegFrame() throws IOException {
+		jpegReader.next();
+		return jpegReader.getFrameLength();
+	}
+
+	@Benchmark
+	public int h264Frame() throws IOException {
+		h264Reader.next();
+		return h264Reader.getFrameLength();
+	}
+
+	private static byte[] syntheticJPEG() throws IOException {
+		BufferedImage image = new BufferedImage(1280, 720, BufferedImage.TYPE_3BYTE_BGR);
+		Random random = new Random(42);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++)
+				image.setRGB(x, y, random.nextInt(64) << 16 | (x + y & 0xFF) << 8 | random.nextInt(64));
+		}
+		BufferedImage thumbnail = new BufferedImage(64, 48, BufferedImage.TYPE_3BYTE_BGR);
+		thumbnail.getGraphics().drawImage(image, 0, 0, 64, 48, null);
+		return JPEGDecodeBenchmark.withExifThumbnail(JPEGDecodeBenchmark.encode(image),
+				JPEGDecodeBenchmark.encode(thumbnail));
+	}
+
+	/**
+	 * Builds a GOP laid out like raspivid's "-ih" output: SPS, PPS and an IDR slice, then 29
+	 * P slices a third of its size, adding up to 17Mbit/s at 30fps.
+	 */
+	private static byte[] syntheticH264() {
+		Random random = new Random(42);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeNalUnit(out, 0x67, 16, random); // SPS
+		writeNalUnit(out, 0x68, 4, random); // PPS
+		writeNalUnit(out, 0x65, 180 * 1024, random); // IDR slice
+		for (int i = 1; i < 30; i++)
+			writeNalUnit(out, 0x41, 66 * 1024, random); // P slice
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes a NAL unit with a 4 byte start code. The payload has no zero bytes, so it never
+	 * needs emulation prevention, and starts with a set bit, making each slice the first of its
+	 * picture.
+	 */
+	private static void writeNalUnit(ByteArrayOutputStream out, int header, int length, Random random) {
+		byte[] payload = new byte[length];
+		random.nextBytes(payload);
+		for (int i = 0; i < length; i++) {
+			if (payload[i] == 0)
+				payload[i] = 1;
+		}
+		payload[0] |= 0x80;
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		out.write(1);
+		out.write(header);
+		out.write(payload, 0, length);
+	}
+
+	/**
+	 * Returns the same bytes over and over, at most a pipe's worth per read.
+	 */
+	static final class LoopingInputStream extends InputStream {
+		private final byte[] data;
+		private int pos;
+
+		LoopingInputStream(byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public int read() {
+			int b = data[pos] & 0xFF;
+			pos = (pos + 1) % data.length;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			int n = Math.min(Math.min(len, PIPE_SIZE), data.length - pos);
+			System.arraycopy(data, pos, b, off, n);
+			pos = (pos + n) % data.length;
+			return n;
+		}
+	}
+}
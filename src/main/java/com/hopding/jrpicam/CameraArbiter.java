@@ -0,0 +1,229 @@
+package com.hopding.jrpicam;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * CameraArbiter lets any number of threads share a single {@link RPiCamera}. The camera can
+ * only take one image at a time, so the arbiter queues capture requests and runs them one
+ * after another on its own thread, completing a CompletableFuture for each request.
+ * <p>
+ * Each request takes a snapshot of the camera's settings (see {@link CameraSettings}) when it
+ * is made, and the image is taken with exactly those settings, even if the camera's settings
+ * are changed while the request is queued.
+ * <p>
+ * Requests for the same kind of capture with identical settings are coalesced: instead of
+ * queueing another capture, a request joins a matching capture that is still queued, or one
+ * that was requested no more than the coalescing window ago, and receives that capture's
+ * result. This lets one camera serve many clients (e.g. dozens of HTTP clients all asking for
+ * the latest image) without taking a separate image for each of them. Since coalesced
+ * requests share a single result object, results must be treated as read only.
+ * <p>
+ * While an arbiter is open, all captures on its RPiCamera should go through the arbiter. Its
+ * settings may still be changed freely.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * RPiCamera piCamera = new RPiCamera().turnOffPreview().setTimeout(1);
+ * CameraArbiter arbiter = new CameraArbiter(piCamera, 200); // Coalesce within 200ms
+ *
+ * // Called concurrently by many request handler threads
+ * arbiter.takeBufferedStill().thenAccept(image -> respond(image));
+ *}
+ * </pre>
+ */
+public class CameraArbiter implements Closeable {
+
+	/**
+	 * A capture shared by every request coalesced into it.
+	 */
+	private static class Batch<T> {
+		final List<Object> key;
+		final Callable<T> capture;
+		final CompletableFuture<T> result = new CompletableFuture<>();
+		final long requestedAt = System.nanoTime();
+		boolean started;
+
+		Batch(List<Object> key, Callable<T> capture) {
+			this.key = key;
+			this.capture = capture;
+		}
+	}
+
+	private final RPiCamera camera;
+	private final long windowNanos;
+	private final BlockingQueue<Batch<?>> queue = new LinkedBlockingQueue<>();
+	private final Map<List<Object>, Batch<?>> openBatches = new HashMap<>();
+	private final Thread worker;
+	private volatile boolean closed;
+
+	private long requestCount;
+	private long captureCount;
+
+	/**
+	 * Creates a new CameraArbiter that coalesces identical requests only while a matching
+	 * capture is still waiting in the queue.
+	 *
+	 * @param camera The RPiCamera to take images with.
+	 */
+	public CameraArbiter(RPiCamera camera) {
+		this(camera, 0);
+	}
+
+	/**
+	 * Creates a new CameraArbiter that also coalesces a request into a matching capture that has
+	 * already started, if the capture was first requested no more than window milliseconds ago.
+	 *
+	 * @param camera The RPiCamera to take images with.
+	 * @param window A long specifying the coalescing window in milliseconds.
+	 */
+	public CameraArbiter(RPiCamera camera, long window) {
+		this.camera = camera;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(window);
+		worker = new Thread(new Runnable() {
+			public void run() {
+				runCaptures();
+			}
+		}, "jrpicam-arbiter");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Requests an image stored in a BufferedImage, as taken by {@link RPiCamera#takeBufferedStill()}.
+	 *
+	 * @return A CompletableFuture completed with the image.
+	 */
+	public CompletableFuture<BufferedImage> takeBufferedStill() {
+		final CameraSettings settings = camera.getSettings();
+		return submit(Arrays.<Object>asList("buffered", settings), new Callable<BufferedImage>() {
+			public BufferedImage call() throws Exception {
+				return camera.takeBufferedStill(settings);
+			}
+		});
+	}
+
+	/**
+	 * Requests an image's RGB values, as captured by {@link RPiCamera#takeStillAsRGB(boolean)}.
+	 *
+	 * @param keepPadding A boolean indicating whether or not to preserve the padding on an image.
+	 * @return A CompletableFuture completed with the image's RGB values.
+	 */
+	public CompletableFuture<int[]> takeStillAsRGB(final boolean keepPadding) {
+		final CameraSettings settings = camera.getSettings();
+		return submit(Arrays.<Object>asList("rgb", settings, keepPadding), new Callable<int[]>() {
+			public int[] call() throws Exception {
+				return camera.takeStillAsRGB(settings, keepPadding);
+			}
+		});
+	}
+
+	/**
+	 * Requests an image saved under the specified name, as taken by
+	 * {@link RPiCamera#takeStill(String)}. Only requests for the same file name are coalesced.
+	 *
+	 * @param pictureName A String containing the name to save picture under.
+	 * @return A CompletableFuture completed with the File the image was saved to.
+	 */
+	public CompletableFuture<File> takeStill(final String pictureName) {
+		final CameraSettings settings = camera.getSettings();
+		return submit(Arrays.<Object>asList("file", settings, pictureName), new Callable<File>() {
+			public File call() throws Exception {
+				return camera.takeStill(settings, pictureName);
+			}
+		});
+	}
+
+	/**
+	 * Gets the number of requests made to this arbiter.
+	 *
+	 * @return The request count.
+	 */
+	public synchronized long getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * Gets the number of images actually taken by this arbiter. The difference between this and
+	 * {@link #getRequestCount()} is the number of requests that were coalesced.
+	 *
+	 * @return The capture count.
+	 */
+	public synchronized long getCaptureCount() {
+		return captureCount;
+	}
+
+	/**
+	 * Stops the arbiter. Requests that have not yet started are cancelled, and later requests
+	 * fail immediately.
+	 */
+	@Override
+	public synchronized void close() {
+		// Synchronized with submit, so no batch can be queued after the queue is drained
+		closed = true;
+		worker.interrupt();
+		Batch<?> batch;
+		while ((batch = queue.poll()) != null)
+			batch.result.cancel(false);
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized <T> CompletableFuture<T> submit(List<Object> key, Callable<T> capture) {
+		CompletableFuture<T> failed = new CompletableFuture<>();
+		if (closed) {
+			failed.completeExceptionally(new IllegalStateException("CameraArbiter has been closed"));
+			return failed;
+		}
+		requestCount++;
+		Batch<T> batch = (Batch<T>) openBatches.get(key);
+		if (batch == null || (batch.started && System.nanoTime() - batch.requestedAt > windowNanos)) {
+			batch = new Batch<>(key, capture);
+			openBatches.put(key, batch);
+			queue.add(batch);
+		}
+		// Give each requester its own future, so one cancelling doesn't affect the others
+		return batch.result.thenApply(Function.<T>identity());
+	}
+
+	private void runCaptures() {
+		while (!closed) {
+			Batch<?> batch;
+			try {
+				batch = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			run(batch);
+		}
+	}
+
+	private <T> void run(Batch<T> batch) {
+		synchronized (this) {
+			batch.started = true;
+			captureCount++;
+		}
+		try {
+			batch.result.complete(batch.capture.call());
+		} catch (Throwable e) {
+			batch.result.completeExceptionally(e);
+		} finally {
+			synchronized (this) {
+				// Later requests can't join a capture that has finished
+				if (openBatches.get(batch.key) == batch)
+					openBatches.remove(batch.key);
+			}
+		}
+	}
+}
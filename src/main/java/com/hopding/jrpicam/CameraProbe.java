@@ -0,0 +1,220 @@
+package com.hopding.jrpicam;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.hopding.jrpicam.exceptions.FailedToRunRaspistillException;
+
+/**
+ * CameraProbe checks that raspistill is installed without running a capture. The executable is
+ * looked up on the PATH once per JVM, so only the first RPiCamera created pays for the lookup.
+ * <p>
+ * If the {@value #TOOL_DIR_PROPERTY} system property is set, raspistill, raspiyuv, raspivid
+ * and vcgencmd are run from that directory instead of the PATH, by every RPiCamera that isn't
+ * given a tool directory of its own. This allows, for example, the tools installed by
+ * {@link com.hopding.jrpicam.emulator.CameraEmulator} to be used without changing any code:
+ * {@code java -Djrpicam.toolDir=/tmp/emulator -jar service.jar}.
+ * <p>
+ * The raspistill version and the camera detection status reported by the firmware are read
+ * the first time they're asked for, by running "raspistill --help" and "vcgencmd get_camera",
+ * neither of which touch the camera. Both are cached as well.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * CameraProbe probe = CameraProbe.get();
+ * System.out.println(probe.getExecutable() + " " + probe.getVersion());
+ * if (probe.getDetectedCameras() == 0)
+ *     System.out.println("No camera is connected");
+ *}
+ * </pre>
+ */
+public final class CameraProbe {
+
+	/**
+	 * The system property naming the default directory to run the camera tools from.
+	 */
+	public static final String TOOL_DIR_PROPERTY = "jrpicam.toolDir";
+
+	// Maximum time to wait for raspistill --help or vcgencmd to exit
+	private static final long PROBE_TIMEOUT_MS = 2000;
+
+	private static final Pattern VERSION = Pattern.compile("Camera App (v\\S+)");
+	private static final Pattern DETECTED = Pattern.compile("detected=(\\d+)");
+
+	private static final ConcurrentMap<String, CameraProbe> probes = new ConcurrentHashMap<>();
+
+	private final File executable;
+	private String version;
+	private int detectedCameras = -1;
+	private boolean probed;
+
+	private CameraProbe(File executable) {
+		this.executable = executable;
+	}
+
+	/**
+	 * Gets the probe for raspistill, in the default tool directory if one is set.
+	 *
+	 * @return The CameraProbe.
+	 * @throws FailedToRunRaspistillException if raspistill isn't on the PATH, or in the default
+	 *         tool directory.
+	 */
+	public static CameraProbe get() throws FailedToRunRaspistillException {
+		return get(executable(getDefaultToolDir(), "raspistill"));
+	}
+
+	/**
+	 * Gets the default directory to run the camera tools from, set with the
+	 * {@value #TOOL_DIR_PROPERTY} system property.
+	 *
+	 * @return The directory, or null if the tools are looked up on the PATH.
+	 */
+	public static String getDefaultToolDir() {
+		String toolDir = System.getProperty(TOOL_DIR_PROPERTY);
+		return toolDir == null || toolDir.isEmpty() ? null : toolDir;
+	}
+
+	/**
+	 * Gets the probe for the specified executable, which is either a name to look up on the PATH
+	 * or a path to the executable itself. Only successful lookups are cached, so installing a
+	 * missing executable doesn't require restarting the JVM.
+	 *
+	 * @param name The executable's name or path.
+	 * @return The CameraProbe.
+	 * @throws FailedToRunRaspistillException if the executable can't be found.
+	 */
+	static CameraProbe get(String name) throws FailedToRunRaspistillException {
+		CameraProbe probe = probes.get(name);
+		if (probe == null) {
+			File executable = resolve(name);
+			if (executable == null)
+				throw new FailedToRunRaspistillException(
+						"RPiCamera failed to find " + name + ". The JRPiCam library relies on "
+								+ "raspistill to function. Please ensure it is installed and configured "
+								+ "on your system.");
+			probe = new CameraProbe(executable);
+			CameraProbe existing = probes.putIfAbsent(name, probe);
+			if (existing != null)
+				probe = existing;
+		}
+		return probe;
+	}
+
+	/**
+	 * Gets the location of the executable.
+	 *
+	 * @return The executable's File.
+	 */
+	public File getExecutable() {
+		return executable;
+	}
+
+	/**
+	 * Gets the version of raspistill, e.g. "v1.3.11".
+	 *
+	 * @return The version, or null if it couldn't be determined.
+	 */
+	public synchronized String getVersion() {
+		probe();
+		return version;
+	}
+
+	/**
+	 * Gets the number of cameras the firmware has detected, as reported by "vcgencmd get_camera".
+	 *
+	 * @return The number of cameras detected, or -1 if it couldn't be determined.
+	 */
+	public synchronized int getDetectedCameras() {
+		probe();
+		return detectedCameras;
+	}
+
+	private void probe() {
+		if (probed)
+			return;
+		probed = true;
+		Matcher version = VERSION.matcher(run(executable.getPath(), "--help"));
+		if (version.find())
+			this.version = version.group(1);
+		// An emulator or alternative install provides vcgencmd alongside raspistill
+		File vcgencmd = new File(executable.getParentFile(), "vcgencmd");
+		if (!vcgencmd.isFile() || !vcgencmd.canExecute())
+			vcgencmd = resolve("vcgencmd");
+		if (vcgencmd != null) {
+			Matcher detected = DETECTED.matcher(run(vcgencmd.getPath(), "get_camera"));
+			if (detected.find())
+				detectedCameras = Integer.parseInt(detected.group(1));
+		}
+	}
+
+	/**
+	 * Runs a command to completion and returns its combined stdout and stderr, or an empty string
+	 * if it couldn't be run. The process is always reaped.
+	 */
+	private static String run(String... command) {
+		Process p;
+		try {
+			p = new ProcessBuilder(command).redirectErrorStream(true).start();
+		} catch (IOException e) {
+			return "";
+		}
+		try {
+			p.getOutputStream().close();
+			// Usage text is small enough to fit in the pipe, so the process can exit before it is read
+			if (!p.waitFor(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				p.destroyForcibly().waitFor();
+				return "";
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try (InputStream in = p.getInputStream()) {
+				byte[] buffer = new byte[4096];
+				int n;
+				while ((n = in.read(buffer)) != -1)
+					out.write(buffer, 0, n);
+			}
+			return out.toString();
+		} catch (IOException e) {
+			return "";
+		} catch (InterruptedException e) {
+			p.destroyForcibly();
+			Thread.currentThread().interrupt();
+			return "";
+		}
+	}
+
+	/**
+	 * Gets the command to run a tool with: its path in the tool directory, or just its name to
+	 * look it up on the PATH if there is no tool directory.
+	 */
+	static String executable(String toolDir, String name) {
+		return toolDir == null ? name : new File(toolDir, name).getPath();
+	}
+
+	/**
+	 * Finds an executable the same way the shell would: names containing a separator are used as
+	 * is, anything else is looked up in each directory on the PATH.
+	 */
+	private static File resolve(String name) {
+		if (name.indexOf(File.separatorChar) >= 0) {
+			File file = new File(name);
+			return file.isFile() && file.canExecute() ? file : null;
+		}
+		String path = System.getenv("PATH");
+		if (path == null)
+			return null;
+		for (String dir : path.split(File.pathSeparator)) {
+			File file = new File(dir.isEmpty() ? "." : dir, name);
+			if (file.isFile() && file.canExecute())
+				return file;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,308 @@
+package com.hopding.jrpicam;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CameraSettings is an immutable snapshot of an {@link RPiCamera}'s settings, taken with
+ * {@link RPiCamera#getSettings()}.
+ * <p>
+ * The raspistill and raspiyuv commands for the snapshot's settings are built once, when the
+ * snapshot is created, rather than for every capture. Captures always run with a snapshot, so
+ * an RPiCamera's settings may safely be changed while a capture is in progress, and a single
+ * CameraSettings may be shared between threads, or used to take images with several
+ * RPiCameras (e.g. with {@link RPiCamera#takeBufferedStill(CameraSettings)}).
+ * <p>
+ * The commands run raspistill, raspiyuv and raspivid from the RPiCamera's tool directory, or
+ * from the PATH if it has none (see {@link RPiCamera#RPiCamera(String, String)}).
+ * <p>
+ * Two CameraSettings are equal if they would produce identical images.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * RPiCamera piCamera = new RPiCamera()
+ *     .setWidth(640)
+ *     .setHeight(480)
+ *     .setExposure(Exposure.NIGHT);
+ * CameraSettings night = piCamera.getSettings();
+ *
+ * // Later changes to piCamera don't affect the snapshot
+ * piCamera.setExposure(Exposure.AUTO);
+ * BufferedImage image = piCamera.takeBufferedStill(night);
+ *}
+ * </pre>
+ */
+public final class CameraSettings {
+
+	// Options that don't apply to processes that keep running and write a sequence of JPEGs
+	// to stdout
+	private static final List<String> NON_CONTINUOUS_OPTIONS =
+			Arrays.asList("timeout", "encoding", "latest", "datetime", "timestamp");
+
+	// raspistill options that raspivid doesn't accept
+	private static final List<String> STILL_ONLY_OPTIONS = Arrays.asList("timeout", "encoding",
+			"quality", "raw", "thumb", "latest", "datetime", "timestamp", "burst", "fullpreview");
+
+	// raspistill's timeout when none is set
+	private static final int DEFAULT_TIMEOUT = 5000;
+
+	private final Map<String, String[]> options;
+	private final String saveDir;
+	private final String toolDir;
+	private final int width;
+	private final int height;
+
+	// Prebuilt commands and argument arrays
+	private final String[] args;           // All options except width and height
+	private final String[] continuousArgs; // Options for long running JPEG processes
+	private final List<String> stillToStdoutCommand;
+	private final List<String> rgbCommand;
+	private final List<String> yuvCommand;
+	private final List<String> lumaCommand;
+	private final List<String> sessionCommand;
+
+	CameraSettings(Map<String, String[]> options, String saveDir) {
+		this(options, saveDir, null);
+	}
+
+	CameraSettings(Map<String, String[]> options, String saveDir, String toolDir) {
+		Map<String, String[]> copy = new LinkedHashMap<>();
+		for (Map.Entry<String, String[]> entry : options.entrySet()) {
+			if (entry.getValue() != null)
+				copy.put(entry.getKey(), entry.getValue().clone());
+		}
+		this.options = Collections.unmodifiableMap(copy);
+		this.saveDir = saveDir;
+		this.toolDir = toolDir;
+		this.width = Integer.parseInt(copy.get("width")[1]);
+		this.height = Integer.parseInt(copy.get("height")[1]);
+
+		List<String> args = new ArrayList<>();
+		List<String> continuousArgs = new ArrayList<>();
+		for (Map.Entry<String, String[]> entry : copy.entrySet()) {
+			String key = entry.getKey();
+			if (!"width".equals(key) && !"height".equals(key))
+				Collections.addAll(args, entry.getValue());
+			if (!NON_CONTINUOUS_OPTIONS.contains(key))
+				Collections.addAll(continuousArgs, entry.getValue());
+		}
+		this.args = args.toArray(new String[args.size()]);
+		this.continuousArgs = continuousArgs.toArray(new String[continuousArgs.size()]);
+
+		String raspistill = tool("raspistill");
+		String raspiyuv = tool("raspiyuv");
+		stillToStdoutCommand = command(raspistill, "-o", "-v", "-w", "" + width, "-h", "" + height);
+		rgbCommand = command(raspiyuv, "-rgb", "-o", "-v", "-w", "" + width, "-h", "" + height);
+		yuvCommand = command(raspiyuv, "-o", "-v", "-w", "" + width, "-h", "" + height);
+		lumaCommand = command(raspiyuv, "-y", "-o", "-v", "-w", "" + width, "-h", "" + height);
+		sessionCommand = continuousCommand(raspistill, "-s", "-v", "-t", "0");
+	}
+
+	/**
+	 * Gets the width of images taken with these settings.
+	 *
+	 * @return The width in pixels.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Gets the height of images taken with these settings.
+	 *
+	 * @return The height in pixels.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Gets the time raspistill runs for before taking an image (or, for timelapses, the total
+	 * time to run for).
+	 *
+	 * @return The timeout in milliseconds, where 0 means run indefinitely.
+	 */
+	public int getTimeout() {
+		String[] timeout = options.get("timeout");
+		return timeout == null ? DEFAULT_TIMEOUT : Integer.parseInt(timeout[1]);
+	}
+
+	/**
+	 * Gets the directory images taken with these settings are saved to.
+	 *
+	 * @return The save directory.
+	 */
+	public String getSaveDir() {
+		return saveDir;
+	}
+
+	/**
+	 * Gets the directory raspistill, raspiyuv and raspivid are run from.
+	 *
+	 * @return The tool directory, or null if they are looked up on the PATH.
+	 */
+	public String getToolDir() {
+		return toolDir;
+	}
+
+	/**
+	 * Gets the raspistill arguments for a single option, as set by one of RPiCamera's setters.
+	 *
+	 * @param name The option's name, e.g. "width" or "timeout".
+	 * @return The option's arguments, or null if the option isn't set.
+	 */
+	public List<String> getOption(String name) {
+		String[] value = options.get(name);
+		return value == null ? null : Collections.unmodifiableList(Arrays.asList(value));
+	}
+
+	/**
+	 * Gets the raspistill arguments for all of these settings, except width and height.
+	 *
+	 * @return An unmodifiable List of arguments.
+	 */
+	public List<String> getArguments() {
+		return Collections.unmodifiableList(Arrays.asList(args));
+	}
+
+	/**
+	 * Gets a copy of these settings with a different width and height. If the dimensions are
+	 * unchanged, this CameraSettings is returned.
+	 *
+	 * @param width The width in pixels.
+	 * @param height The height in pixels.
+	 * @return CameraSettings with the specified dimensions.
+	 */
+	public CameraSettings withSize(int width, int height) {
+		if (width == this.width && height == this.height)
+			return this;
+		Map<String, String[]> resized = new LinkedHashMap<>(options);
+		resized.put("width", new String[] { "-w", "" + width });
+		resized.put("height", new String[] { "-h", "" + height });
+		return new CameraSettings(resized, saveDir, toolDir);
+	}
+
+	/**
+	 * Gets a copy of these settings that saves images to a different directory.
+	 *
+	 * @param saveDir The save directory.
+	 * @return CameraSettings with the specified save directory.
+	 */
+	public CameraSettings withSaveDir(String saveDir) {
+		if (saveDir == null ? this.saveDir == null : saveDir.equals(this.saveDir))
+			return this;
+		return new CameraSettings(options, saveDir, toolDir);
+	}
+
+	List<String> stillToFileCommand(String pictureName) {
+		return command(tool("raspistill"), "-o", saveDir + File.separator + pictureName,
+				"-w", "" + width, "-h", "" + height);
+	}
+
+	List<String> stillToStdoutCommand() {
+		return stillToStdoutCommand;
+	}
+
+	List<String> rgbCommand() {
+		return rgbCommand;
+	}
+
+	List<String> yuvCommand(boolean lumaOnly) {
+		return lumaOnly ? lumaCommand : yuvCommand;
+	}
+
+	List<String> timelapseCommand(String pictureName, int interval) {
+		// Timelapses use every option, including width and height
+		List<String> command = new ArrayList<>(5 + args.length + 4);
+		Collections.addAll(command, tool("raspistill"), "-tl", "" + interval, "-o", saveDir + File.separator + pictureName);
+		for (Map.Entry<String, String[]> entry : options.entrySet())
+			Collections.addAll(command, entry.getValue());
+		return Collections.unmodifiableList(command);
+	}
+
+	List<String> streamCommand(int interval) {
+		return continuousCommand(tool("raspistill"), "-tl", "" + interval, "-t", "0");
+	}
+
+	List<String> sessionCommand() {
+		return sessionCommand;
+	}
+
+	List<String> videoCommand(String... videoArgs) {
+		// raspivid runs until stopped, writing H.264 with SPS/PPS repeated before every keyframe
+		List<String> command = new ArrayList<>();
+		Collections.addAll(command, tool("raspivid"), "-t", "0", "-ih", "-fl", "-o", "-",
+				"-w", "" + width, "-h", "" + height);
+		for (Map.Entry<String, String[]> entry : options.entrySet()) {
+			String key = entry.getKey();
+			if (!"width".equals(key) && !"height".equals(key) && !STILL_ONLY_OPTIONS.contains(key))
+				Collections.addAll(command, entry.getValue());
+		}
+		Collections.addAll(command, videoArgs);
+		return Collections.unmodifiableList(command);
+	}
+
+	private String tool(String name) {
+		return CameraProbe.executable(toolDir, name);
+	}
+
+	private List<String> command(String... prefix) {
+		String[] command = Arrays.copyOf(prefix, prefix.length + args.length);
+		System.arraycopy(args, 0, command, prefix.length, args.length);
+		return Collections.unmodifiableList(Arrays.asList(command));
+	}
+
+	private List<String> continuousCommand(String... prefix) {
+		String[] command = Arrays.copyOf(prefix, prefix.length + 4 + continuousArgs.length);
+		command[prefix.length]     = "-e";
+		command[prefix.length + 1] = "jpg";
+		command[prefix.length + 2] = "-o";
+		command[prefix.length + 3] = "-";
+		System.arraycopy(continuousArgs, 0, command, prefix.length + 4, continuousArgs.length);
+		return Collections.unmodifiableList(Arrays.asList(command));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof CameraSettings))
+			return false;
+		CameraSettings other = (CameraSettings) o;
+		if (saveDir == null ? other.saveDir != null : !saveDir.equals(other.saveDir))
+			return false;
+		if (toolDir == null ? other.toolDir != null : !toolDir.equals(other.toolDir))
+			return false;
+		if (!options.keySet().equals(other.options.keySet()))
+			return false;
+		for (Map.Entry<String, String[]> entry : options.entrySet()) {
+			if (!Arrays.equals(entry.getValue(), other.options.get(entry.getKey())))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = saveDir == null ? 0 : saveDir.hashCode();
+		hash = 31 * hash + (toolDir == null ? 0 : toolDir.hashCode());
+		for (Map.Entry<String, String[]> entry : options.entrySet())
+			hash += entry.getKey().hashCode() ^ Arrays.hashCode(entry.getValue());
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("CameraSettings[");
+		for (String arg : stillToStdoutCommand.subList(1, stillToStdoutCommand.size()))
+			sb.append(arg).append(' ');
+		sb.setLength(sb.length() - 1);
+		return sb.append(']').toString();
+	}
+}
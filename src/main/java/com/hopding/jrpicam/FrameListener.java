@@ -0,0 +1,22 @@
+package com.hopding.jrpicam;
+
+/**
+ * A FrameListener receives encoded frames from a continuously running capture, such as an
+ * {@link RPiCameraStream}.
+ * <p>
+ * To avoid allocating memory for every frame, frames are delivered as a region of a buffer
+ * that is owned by the capture and reused for subsequent frames. The frame's bytes are only
+ * valid for the duration of the call to {@link #onFrame(byte[], int, int)}; listeners that
+ * need to keep a frame must copy it.
+ */
+public interface FrameListener {
+
+	/**
+	 * Called once for each frame captured.
+	 *
+	 * @param buffer The buffer containing the frame.
+	 * @param offset The offset of the frame's first byte within the buffer.
+	 * @param length The length of the frame in bytes.
+	 */
+	void onFrame(byte[] buffer, int offset, int length);
+}
@@ -0,0 +1,365 @@
+package com.hopding.jrpicam;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PreEventBuffer keeps the most recent few seconds of an {@link RPiVideo} in memory, so that
+ * when something happens (e.g. motion is detected) the footage from before the event can be
+ * saved along with the footage after it.
+ * <p>
+ * Frames are copied into a single direct (off-heap) ByteBuffer of fixed size, which is used as
+ * a ring buffer. The oldest footage is discarded a whole GOP (a keyframe and the frames that
+ * depend on it) at a time, so the buffer always starts with a keyframe and a recording of it
+ * can always be decoded. Footage is discarded once it is older than the pre-event duration, or
+ * when the memory budget is used up, whichever happens first. Buffering frames allocates no
+ * memory, so a PreEventBuffer can run around the clock.
+ * <p>
+ * When {@link #trigger(File, long)} is called, the buffered GOPs are written out, followed by
+ * live frames as they arrive, until the post-event duration has passed or
+ * {@link #stopRecording()} is called. The output is a raw H.264 Annex-B stream.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * RPiVideo video = new RPiVideo(piCamera).setFramerate(30).setIntraPeriod(30);
+ * // Keep the last 10 seconds, in at most 16MB of memory
+ * PreEventBuffer preEvent = new PreEventBuffer(16 * 1024 * 1024, 10000);
+ * video.subscribe(preEvent);
+ * video.start();
+ * ...
+ * // Save the 10 seconds before the event and the 20 seconds after it
+ * preEvent.trigger(new File("/home/pi/Videos/event.h264"), 20000);
+ *}
+ * </pre>
+ */
+public class PreEventBuffer implements VideoFrameListener {
+
+	private static final int DEFAULT_MAX_FRAMES = 4096;
+
+	private final ByteBuffer ring;
+	private final ByteBuffer view;  // Reused to write frames out of the ring
+	private final long preEventNanos;
+
+	// Index of the buffered frames, itself a ring of maxFrames entries
+	private final int[] frameOffsets;
+	private final int[] frameLengths;
+	private final long[] frameTimes;
+	private final boolean[] keyFrames;
+	private int first;       // Index entry of the oldest frame
+	private int count;       // Number of frames buffered
+	private int writePos;    // Offset in ring to write the next frame at
+	private boolean waitingForKeyFrame = true;
+	private long droppedFrames;
+
+	// Current recording, if any
+	private WritableByteChannel target;
+	private boolean closeTarget;
+	private boolean timed;
+	private long recordUntil; // System.nanoTime() to stop recording at, if timed
+	private IOException failure;
+
+	/**
+	 * Creates a new PreEventBuffer.
+	 *
+	 * @param capacity An int specifying the memory budget in bytes. The buffer must be able to
+	 *                 hold at least one whole GOP.
+	 * @param preEvent A long specifying how many milliseconds of footage to keep.
+	 */
+	public PreEventBuffer(int capacity, long preEvent) {
+		this(capacity, preEvent, DEFAULT_MAX_FRAMES);
+	}
+
+	/**
+	 * Creates a new PreEventBuffer that keeps at most the specified number of frames.
+	 *
+	 * @param capacity An int specifying the memory budget in bytes. The buffer must be able to
+	 *                 hold at least one whole GOP.
+	 * @param preEvent A long specifying how many milliseconds of footage to keep.
+	 * @param maxFrames An int specifying the maximum number of frames to keep.
+	 */
+	public PreEventBuffer(int capacity, long preEvent, int maxFrames) {
+		this.ring = ByteBuffer.allocateDirect(capacity);
+		this.view = ring.duplicate();
+		this.preEventNanos = TimeUnit.MILLISECONDS.toNanos(preEvent);
+		this.frameOffsets = new int[maxFrames];
+		this.frameLengths = new int[maxFrames];
+		this.frameTimes = new long[maxFrames];
+		this.keyFrames = new boolean[maxFrames];
+	}
+
+	/**
+	 * Buffers a frame, and writes it to the current recording, if there is one. Called by the
+	 * {@link RPiVideo} this buffer is subscribed to.
+	 */
+	@Override
+	public synchronized void onFrame(byte[] buffer, int offset, int length, boolean keyFrame) {
+		long now = System.nanoTime();
+		if (keyFrame)
+			waitingForKeyFrame = false;
+		int index = -1;
+		if (!waitingForKeyFrame) {
+			index = append(buffer, offset, length, keyFrame, now);
+			if (index < 0) {
+				// Frames that depend on a dropped frame are useless, so drop the rest of its GOP
+				droppedFrames++;
+				waitingForKeyFrame = true;
+			}
+		}
+		if (target == null)
+			return;
+		try {
+			if (index >= 0)
+				writeFrame(index);
+			else
+				writeFully(ByteBuffer.wrap(buffer, offset, length));
+			if (timed && now - recordUntil >= 0)
+				stopRecording();
+		} catch (IOException e) {
+			failure = e;
+			closeQuietly();
+		}
+	}
+
+	/**
+	 * Writes the buffered footage to a file, followed by live footage for the specified time.
+	 *
+	 * @param file The File to save the footage to.
+	 * @param postEvent A long specifying how many milliseconds of live footage to record, or 0 to
+	 *                  record until {@link #stopRecording()} is called.
+	 * @throws IOException
+	 */
+	public void trigger(File file, long postEvent) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			trigger(out.getChannel(), postEvent, true);
+		} catch (IOException | RuntimeException e) {
+			out.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the buffered footage to an OutputStream, followed by live footage for the specified
+	 * time. The stream is not closed when the recording stops.
+	 *
+	 * @param out The OutputStream to write the footage to.
+	 * @param postEvent A long specifying how many milliseconds of live footage to record, or 0 to
+	 *                  record until {@link #stopRecording()} is called.
+	 * @throws IOException
+	 */
+	public void trigger(OutputStream out, long postEvent) throws IOException {
+		trigger(Channels.newChannel(out), postEvent, false);
+	}
+
+	/**
+	 * Writes the buffered footage to a channel, followed by live footage for the specified time.
+	 * The channel is not closed when the recording stops.
+	 *
+	 * @param channel The WritableByteChannel to write the footage to.
+	 * @param postEvent A long specifying how many milliseconds of live footage to record, or 0 to
+	 *                  record until {@link #stopRecording()} is called.
+	 * @throws IOException
+	 */
+	public void trigger(WritableByteChannel channel, long postEvent) throws IOException {
+		trigger(channel, postEvent, false);
+	}
+
+	/**
+	 * Stops the current recording, if there is one.
+	 *
+	 * @throws IOException if the recording's file couldn't be closed.
+	 */
+	public synchronized void stopRecording() throws IOException {
+		WritableByteChannel target = this.target;
+		this.target = null;
+		if (target != null && closeTarget)
+			target.close();
+	}
+
+	/**
+	 * Indicates whether footage is currently being recorded.
+	 *
+	 * @return true if a recording is in progress.
+	 */
+	public synchronized boolean isRecording() {
+		return target != null;
+	}
+
+	/**
+	 * Gets the exception that stopped the last recording, if writing to it failed.
+	 *
+	 * @return The IOException, or null.
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Gets the number of frames currently buffered.
+	 *
+	 * @return The frame count.
+	 */
+	public synchronized int getBufferedFrameCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the amount of footage currently buffered.
+	 *
+	 * @return The time between the oldest and newest buffered frames in milliseconds.
+	 */
+	public synchronized long getBufferedMillis() {
+		if (count == 0)
+			return 0;
+		return TimeUnit.NANOSECONDS.toMillis(frameTimes[entry(count - 1)] - frameTimes[first]);
+	}
+
+	/**
+	 * Gets the number of frames that were too large to buffer, even after discarding all other
+	 * footage. If this is not 0, the memory budget is too small for the video's bitrate.
+	 *
+	 * @return The dropped frame count.
+	 */
+	public synchronized long getDroppedFrameCount() {
+		return droppedFrames;
+	}
+
+	private synchronized void trigger(WritableByteChannel channel, long postEvent, boolean close)
+			throws IOException {
+		if (target != null)
+			throw new IllegalStateException("PreEventBuffer is already recording");
+		target = channel;
+		closeTarget = close;
+		failure = null;
+		timed = postEvent != 0;
+		recordUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(postEvent);
+		try {
+			for (int i = 0; i < count; i++)
+				writeFrame(entry(i));
+		} catch (IOException e) {
+			closeQuietly();
+			throw e;
+		}
+	}
+
+	/**
+	 * Copies a frame into the ring, discarding old GOPs to make room for it, and returns its index
+	 * entry, or -1 if it couldn't be buffered.
+	 */
+	private int append(byte[] buffer, int offset, int length, boolean keyFrame, long now) {
+		int capacity = ring.capacity();
+		if (length > capacity)
+			return -1;
+		int pos;
+		while (true) {
+			if (count == frameOffsets.length) {
+				if (!keyFrame && isOnlyGop())
+					return -1; // Evicting would remove the keyframe this frame depends on
+				evictGop();
+				continue;
+			}
+			if (count == 0) {
+				pos = 0;
+				break;
+			}
+			int oldest = frameOffsets[first];
+			if (writePos > oldest) {
+				// Free space runs from writePos to the end, and from 0 to the oldest frame
+				if (capacity - writePos >= length) {
+					pos = writePos;
+					break;
+				}
+				if (oldest >= length) {
+					pos = 0;
+					break;
+				}
+			} else if (oldest - writePos >= length) {
+				// Free space runs from writePos to the oldest frame
+				pos = writePos;
+				break;
+			}
+			if (!keyFrame && isOnlyGop())
+				return -1; // Evicting would remove the keyframe this frame depends on
+			evictGop();
+		}
+
+		ring.position(pos);
+		ring.put(buffer, offset, length);
+		writePos = pos + length;
+		int index = entry(count);
+		frameOffsets[index] = pos;
+		frameLengths[index] = length;
+		frameTimes[index] = now;
+		keyFrames[index] = keyFrame;
+		count++;
+
+		// Discard the oldest GOP while the next one alone covers the pre-event duration
+		while (true) {
+			int next = nextGop();
+			if (next < 0 || frameTimes[entry(next)] > now - preEventNanos)
+				break;
+			evictGop();
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the position (relative to the oldest frame) of the second GOP's keyframe, or -1 if
+	 * only one GOP is buffered.
+	 */
+	private int nextGop() {
+		for (int i = 1; i < count; i++) {
+			if (keyFrames[entry(i)])
+				return i;
+		}
+		return -1;
+	}
+
+	private boolean isOnlyGop() {
+		return nextGop() < 0;
+	}
+
+	/**
+	 * Discards the oldest GOP.
+	 */
+	private void evictGop() {
+		int next = nextGop();
+		int evict = next < 0 ? count : next;
+		first = entry(evict);
+		count -= evict;
+		if (count == 0) {
+			first = 0;
+			writePos = 0;
+		}
+	}
+
+	private int entry(int i) {
+		return (first + i) % frameOffsets.length;
+	}
+
+	private void writeFrame(int index) throws IOException {
+		view.limit(frameOffsets[index] + frameLengths[index]);
+		view.position(frameOffsets[index]);
+		writeFully(view);
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			target.write(buffer);
+	}
+
+	private void closeQuietly() {
+		try {
+			stopRecording();
+		} catch (IOException e) {
+			// Ignore, the recording has already failed
+		}
+	}
+}
@@ -0,0 +1,437 @@
+package com.hopding.jrpicam;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * ProcessSupervisor starts and looks after the raspistill, raspiyuv and raspivid processes run
+ * by JRPiCam. For every process it starts, the supervisor:
+ * <ul>
+ * <li>drains stderr on a background thread, keeping the last few lines for error messages, so
+ * the process can never block on a full pipe (raspistill's "-v" output alone can fill one);</li>
+ * <li>kills the process if it is still running when its deadline passes;</li>
+ * <li>reaps the process once it exits, so no zombies or pipe file descriptors are left behind,
+ * even if the caller never waits for it.</li>
+ * </ul>
+ * All RPiCameras share the supervisor returned by {@link #getDefault()}. Its counters can be
+ * used to check that captures are not leaking processes or file descriptors.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * ProcessSupervisor supervisor = ProcessSupervisor.getDefault();
+ * System.out.println(supervisor.getLiveProcessCount() + " processes, "
+ *     + ProcessSupervisor.getOpenFileDescriptorCount() + " open files");
+ *}
+ * </pre>
+ */
+public class ProcessSupervisor {
+
+	// Number of stderr lines kept for error messages
+	private static final int ERROR_LINES = 20;
+
+	// How long a failed process's stderr is given to be drained before it is reported
+	private static final long DRAIN_WAIT_MS = 1000;
+
+	private static ProcessSupervisor defaultSupervisor;
+
+	private final ScheduledThreadPoolExecutor deadlines;
+	private final ExecutorService drainers;
+	private final AtomicInteger liveCount = new AtomicInteger();
+	private final AtomicLong startedCount = new AtomicLong();
+	private final AtomicLong killedCount = new AtomicLong();
+
+	/**
+	 * A process started by a ProcessSupervisor. Closing a Child releases its stdout; the process
+	 * itself is reaped by the supervisor as soon as it exits.
+	 */
+	public final class Child implements Closeable {
+		private final List<String> command;
+		private final Process process;
+		private final InputStream stdout;
+		private final Deque<String> errorLines = new ArrayDeque<>();
+		private final CountDownLatch drained = new CountDownLatch(1);
+		private final long deadline;
+		private volatile ScheduledFuture<?> deadlineTask;
+		private volatile boolean timedOut;
+		private boolean reaped;
+
+		private Child(List<String> command, Process process, long deadline) {
+			this.command = command;
+			this.process = process;
+			this.deadline = deadline;
+			this.stdout = new FilterInputStream(process.getInputStream()) {
+				@Override
+				public int read() throws IOException {
+					try {
+						int b = super.read();
+						if (b == -1)
+							checkTimedOut();
+						return b;
+					} catch (IOException e) {
+						checkTimedOut();
+						throw e;
+					}
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					try {
+						int n = super.read(b, off, len);
+						if (n == -1)
+							checkTimedOut();
+						return n;
+					} catch (IOException e) {
+						checkTimedOut();
+						throw e;
+					}
+				}
+			};
+		}
+
+		/**
+		 * Gets the process's stdout. If the process is killed because its deadline passed,
+		 * reading from the stream throws an IOException saying so, rather than just reaching the
+		 * end of the stream early.
+		 *
+		 * @return The process's stdout.
+		 */
+		public InputStream getInputStream() {
+			return stdout;
+		}
+
+		/**
+		 * Drains and discards stdout on a background thread, for processes whose stdout isn't
+		 * needed.
+		 */
+		public void discardOutput() {
+			drainers.execute(new Runnable() {
+				public void run() {
+					byte[] buffer = new byte[8192];
+					try (InputStream in = stdout) {
+						while (in.read(buffer) != -1) {
+							// Discard
+						}
+					} catch (IOException e) {
+						// Process has gone away
+					}
+				}
+			});
+		}
+
+		/**
+		 * Blocks until the process exits.
+		 *
+		 * @return The process's exit value.
+		 * @throws IOException if the process was killed because its deadline passed.
+		 * @throws InterruptedException
+		 */
+		public int waitFor() throws IOException, InterruptedException {
+			int exitValue = process.waitFor();
+			checkTimedOut();
+			return exitValue;
+		}
+
+		/**
+		 * Blocks until the process exits, and checks that it succeeded. This should be called
+		 * once stdout has been read to its end, as a process that fails may still have written
+		 * some, or even all, of its output.
+		 *
+		 * @throws IOException if the process exited with a non-zero status, or was killed
+		 *         because its deadline passed.
+		 */
+		public void checkExitValue() throws IOException {
+			int exitValue;
+			try {
+				exitValue = waitFor();
+				if (exitValue != 0)
+					drained.await(DRAIN_WAIT_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for " + command.get(0) + " to exit");
+			}
+			if (exitValue != 0)
+				throw new IOException(command.get(0) + " failed with exit status " + exitValue
+						+ ". Last output:\n" + getErrorOutput());
+		}
+
+		/**
+		 * Indicates whether the process is still running.
+		 *
+		 * @return true if the process hasn't exited.
+		 */
+		public boolean isAlive() {
+			return process.isAlive();
+		}
+
+		/**
+		 * Indicates whether the process was killed because its deadline passed.
+		 *
+		 * @return true if the process timed out.
+		 */
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+
+		/**
+		 * Gets the last lines the process wrote to stderr.
+		 *
+		 * @return The lines, separated by newlines.
+		 */
+		public String getErrorOutput() {
+			StringBuilder sb = new StringBuilder();
+			synchronized (errorLines) {
+				for (String line : errorLines)
+					sb.append(line).append('\n');
+			}
+			return sb.toString();
+		}
+
+		/**
+		 * Kills the process if it is still running after the specified time, as if its deadline
+		 * had passed, unless the returned future is cancelled first. This puts a deadline on each
+		 * capture made by a process that runs for many captures, such as a session's raspistill.
+		 *
+		 * @param millis The number of milliseconds to wait before killing the process.
+		 * @return A ScheduledFuture to cancel once the capture has completed.
+		 */
+		public ScheduledFuture<?> killAfter(long millis) {
+			return deadlines.schedule(new Runnable() {
+				public void run() {
+					kill();
+				}
+			}, millis, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Kills the process and waits for it to exit.
+		 */
+		public void destroy() {
+			process.destroy();
+			try {
+				if (!process.waitFor(1, TimeUnit.SECONDS))
+					process.destroyForcibly().waitFor();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Closes the process's stdin and stdout. A process that is still writing output will
+		 * usually exit once it sees stdout has been closed; one that doesn't is still killed at
+		 * its deadline.
+		 */
+		@Override
+		public void close() {
+			try {
+				process.getOutputStream().close();
+			} catch (IOException e) {
+				// Ignore, nothing is written to stdin
+			}
+			try {
+				stdout.close();
+			} catch (IOException e) {
+				// Ignore, the stream is unusable either way
+			}
+		}
+
+		private void checkTimedOut() throws IOException {
+			if (timedOut)
+				throw new IOException(command.get(0) + " did not finish within " + deadline
+						+ "ms and was killed. Last output:\n" + getErrorOutput());
+		}
+
+		private void kill() {
+			if (process.isAlive()) {
+				timedOut = true;
+				killedCount.incrementAndGet();
+				process.destroyForcibly();
+			}
+		}
+
+		/**
+		 * Reads stderr until the process closes it, then reaps the process.
+		 */
+		private void drainErrors(Consumer<String> listener) {
+			try (BufferedReader stderr = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
+				String line;
+				while ((line = stderr.readLine()) != null) {
+					synchronized (errorLines) {
+						if (errorLines.size() == ERROR_LINES)
+							errorLines.removeFirst();
+						errorLines.addLast(line);
+					}
+					if (listener != null)
+						listener.accept(line);
+				}
+			} catch (IOException e) {
+				// Process has gone away
+			} finally {
+				drained.countDown();
+				reap();
+			}
+		}
+
+		private void reap() {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					process.waitFor();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			synchronized (this) {
+				if (reaped)
+					return;
+				reaped = true;
+			}
+			ScheduledFuture<?> task = deadlineTask;
+			if (task != null)
+				task.cancel(false);
+			liveCount.decrementAndGet();
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Creates a new ProcessSupervisor with its own deadline and stderr draining threads. Most
+	 * applications should use {@link #getDefault()} instead.
+	 */
+	public ProcessSupervisor() {
+		deadlines = new ScheduledThreadPoolExecutor(1, daemonThreads("jrpicam-supervisor"));
+		deadlines.setRemoveOnCancelPolicy(true);
+		drainers = Executors.newCachedThreadPool(daemonThreads("jrpicam-drain"));
+	}
+
+	/**
+	 * Gets the ProcessSupervisor shared by all RPiCameras.
+	 *
+	 * @return The default ProcessSupervisor.
+	 */
+	public static synchronized ProcessSupervisor getDefault() {
+		if (defaultSupervisor == null)
+			defaultSupervisor = new ProcessSupervisor();
+		return defaultSupervisor;
+	}
+
+	/**
+	 * Starts the specified command.
+	 *
+	 * @param command The command to run.
+	 * @param deadline The number of milliseconds the process may run for before it is killed,
+	 *                 or 0 to let it run until it exits or is destroyed.
+	 * @return The Child representing the running process.
+	 * @throws IOException if the process couldn't be started.
+	 */
+	public Child start(List<String> command, long deadline) throws IOException {
+		return start(command, deadline, null);
+	}
+
+	/**
+	 * Starts the specified command, passing every line it writes to stderr to a listener. The
+	 * listener is called on a background thread.
+	 *
+	 * @param command The command to run.
+	 * @param deadline The number of milliseconds the process may run for before it is killed,
+	 *                 or 0 to let it run until it exits or is destroyed.
+	 * @param errorListener The Consumer to pass stderr lines to, or null.
+	 * @return The Child representing the running process.
+	 * @throws IOException if the process couldn't be started.
+	 */
+	public Child start(List<String> command, long deadline, final Consumer<String> errorListener)
+			throws IOException {
+		Process process = new ProcessBuilder(command).start();
+		final Child child = new Child(command, process, deadline);
+		liveCount.incrementAndGet();
+		startedCount.incrementAndGet();
+		if (deadline > 0) {
+			child.deadlineTask = deadlines.schedule(new Runnable() {
+				public void run() {
+					child.kill();
+				}
+			}, deadline, TimeUnit.MILLISECONDS);
+		}
+		drainers.execute(new Runnable() {
+			public void run() {
+				child.drainErrors(errorListener);
+			}
+		});
+		return child;
+	}
+
+	/**
+	 * Gets the number of processes started by this supervisor that haven't yet exited and been
+	 * reaped.
+	 *
+	 * @return The live process count.
+	 */
+	public int getLiveProcessCount() {
+		return liveCount.get();
+	}
+
+	/**
+	 * Gets the number of processes started by this supervisor.
+	 *
+	 * @return The started process count.
+	 */
+	public long getStartedCount() {
+		return startedCount.get();
+	}
+
+	/**
+	 * Gets the number of processes this supervisor has killed because their deadline passed.
+	 *
+	 * @return The killed process count.
+	 */
+	public long getKilledCount() {
+		return killedCount.get();
+	}
+
+	/**
+	 * Gets the number of file descriptors the JVM has open, including the pipes to child
+	 * processes.
+	 *
+	 * @return The open file descriptor count, or -1 if it can't be determined on this platform.
+	 */
+	public static long getOpenFileDescriptorCount() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.UnixOperatingSystemMXBean)
+			return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+		String[] fds = new File("/proc/self/fd").list();
+		return fds == null ? -1 : fds.length;
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -1,12 +1,28 @@
 package com.hopding.jrpicam;
 
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 import com.hopding.jrpicam.enums.AWB;
 import com.hopding.jrpicam.enums.DRC;
@@ -15,6 +31,16 @@ import com.hopding.jrpicam.enums.Exposure;
 import com.hopding.jrpicam.enums.ImageEffect;
 import com.hopding.jrpicam.enums.MeteringMode;
 import com.hopding.jrpicam.exceptions.FailedToRunRaspistillException;
+import com.hopding.jrpicam.image.BufferPool;
+import com.hopding.jrpicam.image.DecodeOptions;
+import com.hopding.jrpicam.image.EncodedFrame;
+import com.hopding.jrpicam.image.PixelBuffer;
+import com.hopding.jrpicam.image.YUV420Image;
+import com.hopding.jrpicam.io.RGBReader;
+import com.hopding.jrpicam.raw.BayerImage;
+import com.hopding.jrpicam.raw.Demosaic;
+import com.hopding.jrpicam.raw.RawBayerReader;
+import com.hopding.jrpicam.store.FrameStore;
 
 /**
  * RPiCamera is used to access the Raspberry Pi Camera and take still photos.
@@ -47,13 +73,28 @@ import com.hopding.jrpicam.exceptions.FailedToRunRaspistillException;
  */
 public class RPiCamera {
 	
-	private String						prevCommand;
+	private List<String>				prevCommand;
 	private String						saveDir;
+	private final String				toolDir;
 	private HashMap<String, String[]>	options	= new HashMap<>();
-	private ProcessBuilder				pb;
-	private Process						p;
+	private CameraSettings				settings;
+	private volatile ProcessSupervisor.Child	child;
+	private Executor					ioExecutor;
+	private long						captureDeadline;
+	private volatile int				lastStillLength;
 	private static final int DEFAULT_WIDTH  = 500;
 	private static final int DEFAULT_HEIGHT = 500;
+	
+	// Time allowed on top of the raspistill timeout for the camera to start up and the image to
+	// be written out, before a capture is considered hung
+	private static final long DEADLINE_SLACK = 10000;
+	
+	// Size of the buffer images are copied through when written to a stream or channel
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	
+	// Shared by all RPiCameras that haven't been given their own executor. A single thread is
+	// enough, since the camera can only take one image at a time anyway.
+	private static ExecutorService defaultIOExecutor;
 								
 	/**
 	 * Creates new RPiCamera. The resulting RPiCamera's save directory will be set to
@@ -72,19 +113,38 @@ public class RPiCamera {
 	 * @throws FailedToRunRaspistillException 
 	 */
 	public RPiCamera(String saveDir) throws FailedToRunRaspistillException {
+		this(saveDir, CameraProbe.getDefaultToolDir());
+	}
+	
+	/**
+	 * Creates new RPiCamera that runs raspistill, raspiyuv and raspivid from the specified
+	 * directory, rather than looking them up on the PATH. This allows another build of the
+	 * tools, or the emulator installed by {@link com.hopding.jrpicam.emulator.CameraEmulator},
+	 * to be used.
+	 * <p>
+	 * Usage Example:
+	 * <pre>
+	 *{@code
+	 * // Take images without a Pi, from a 15fps camera that takes 200ms to start up
+	 * File toolDir = new CameraEmulator().setStartupDelay(200).setFrameRate(15)
+	 *     .install(new File("/tmp/emulator"));
+	 * RPiCamera piCamera = new RPiCamera("/tmp/images", toolDir.getPath()).setTimeout(1);
+	 * BufferedImage image = piCamera.takeBufferedStill();
+	 *}
+	 * </pre>
+	 * 
+	 * @param saveDir A String specifying the directory for RPiCamera to save images.
+	 * @param toolDir A String specifying the directory containing the tools, or null to look
+	 *        them up on the PATH.
+	 * @throws FailedToRunRaspistillException if raspistill isn't in the tool directory.
+	 * @see CameraProbe#TOOL_DIR_PROPERTY
+	 */
+	public RPiCamera(String saveDir, String toolDir) throws FailedToRunRaspistillException {
 		this.saveDir = saveDir;
-		try {
-			pb = new ProcessBuilder("raspistill");
-			pb.start();
-		} catch (IOException e) {
-			// The IOException was most likely thrown because raspistill isn't installed
-			// and/or configured properly, so throw FailedToRunRaspistillException to 
-			// indicate that.
-			throw new FailedToRunRaspistillException(
-					"RPiCamera failed to run raspistill. The JRPiCam library relies on"
-							+ "raspistill to function. Please ensure it is installed and configured"
-							+ "on your system.");
-		}
+		this.toolDir = toolDir;
+		// Make sure raspistill is installed. The lookup is cached, so only the first RPiCamera
+		// created pays for it, and no camera process is started.
+		CameraProbe.get(CameraProbe.executable(toolDir, "raspistill"));
 		//  Set default width and height of images
         this.setWidth(DEFAULT_WIDTH);
 		this.setHeight(DEFAULT_HEIGHT);
@@ -120,33 +180,26 @@ public class RPiCamera {
 	 * @throws InterruptedException
 	 */
 	public File takeStill(String pictureName, int width, int height) throws IOException, InterruptedException {
-		List<String> command = new ArrayList<>();
-		command.add("raspistill");
-		command.add("-o");
-		command.add(saveDir + File.separator + pictureName);
-		command.add("-w");
-		command.add("" + width);
-		command.add("-h");
-		command.add("" + height);
-		for (Map.Entry<String, String[]> entry : options.entrySet()) {
-			if (entry.getValue() != null        &&
-                !"width".equals(entry.getKey()) &&
-                !"height".equals(entry.getKey())) {
-                command.addAll(Arrays.asList(entry.getValue()));
-			}
-		}
-		prevCommand = command.toString();
-		pb = new ProcessBuilder(command);
-		
-// 		System.out.println("Executed this command:\n\t" + command.toString());
-// 		pb.redirectErrorStream(true);
-// 		pb.redirectOutput(
-// 				new File(System.getProperty("user.home") + File.separator +
-// 						"Desktop" + File.separator + "RPiCamera.out"));
-		
-		p = pb.start();
-		p.waitFor();
-		return new File(saveDir + File.separator + pictureName);
+		return takeStill(getSettings().withSize(width, height), pictureName);
+	}
+	
+	/**
+	 * Takes an image with the specified settings and saves it under the specified name to the
+	 * settings' save directory. The settings may have been taken from any RPiCamera.
+	 * 
+	 * @param settings The CameraSettings to take the image with.
+	 * @param pictureName A String containing the name to save picture under.
+	 * @return A File object representing the full path the picture was saved to.
+	 * @throws IOException if raspistill failed.
+	 * @throws InterruptedException
+	 * @see #getSettings()
+	 */
+	public File takeStill(CameraSettings settings, String pictureName) throws IOException, InterruptedException {
+		ProcessSupervisor.Child child = start(settings, settings.stillToFileCommand(pictureName));
+		child.discardOutput();
+		child.waitFor(); // Interruptible, unlike checkExitValue()
+		child.checkExitValue();
+		return new File(settings.getSaveDir() + File.separator + pictureName);
 	}
 	
 	/**
@@ -173,9 +226,242 @@ public class RPiCamera {
 	 * @throws InterruptedException
 	 */
 	public File takeStill(String pictureName) throws IOException, InterruptedException {
-		return takeStill(pictureName,
-				Integer.parseInt(options.get("width")[1]),
-				Integer.parseInt(options.get("height")[1]));
+		return takeStill(getSettings(), pictureName);
+	}
+	
+	/**
+	 * Takes an image and appends it to a {@link FrameStore}, instead of saving it to a file of
+	 * its own. The image's encoding will be the same as the RPiCamera's encoding setting (JPEG
+	 * by default).
+	 * <p>
+	 * Usage Example:
+	 * <pre>
+	 *{@code
+	 * try (FrameStore store = new FrameStore(new File("/home/pi/stills"))) {
+	 *     int frame = piCamera.takeStill(store);
+	 * }
+	 *}
+	 * </pre>
+	 * 
+	 * @param store The FrameStore to append the image to.
+	 * @return The image's frame number in the store.
+	 * @throws IOException if raspistill failed, in which case nothing is appended.
+	 */
+	public int takeStill(FrameStore store) throws IOException {
+		CameraSettings settings = getSettings();
+		try (final ProcessSupervisor.Child child = start(settings, settings.stillToStdoutCommand())) {
+			// Check the exit status at the end of the image, so a failed capture is never appended
+			InputStream in = new FilterInputStream(child.getInputStream()) {
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b == -1)
+						child.checkExitValue();
+					return b;
+				}
+				
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n == -1)
+						child.checkExitValue();
+					return n;
+				}
+			};
+			return store.append(in);
+		}
+	}
+	
+	/**
+	 * Takes an image and returns it exactly as raspistill encoded it, in the RPiCamera's
+	 * encoding (JPEG by default), without decoding it. This is the cheapest way to take an image
+	 * that is only going to be stored or sent over the network, as decoding it into a
+	 * BufferedImage and encoding it again costs far more CPU time than the capture itself.
+	 * <p>
+	 * Usage Example:
+	 * <pre>
+	 *{@code
+	 * RPiCamera piCamera = new RPiCamera();
+	 * byte[] jpeg = piCamera.takeStillAsBytes();
+	 * upload(jpeg);
+	 *}
+	 * </pre>
+	 * 
+	 * @return A byte array containing the encoded image.
+	 * @throws IOException
+	 */
+	public byte[] takeStillAsBytes() throws IOException {
+		return takeStillAsBytes(getSettings());
+	}
+	
+	/**
+	 * Takes an image with the specified settings and returns it exactly as raspistill encoded
+	 * it.
+	 * 
+	 * @param settings The CameraSettings to take the image with.
+	 * @return A byte array containing the encoded image.
+	 * @throws IOException
+	 * @see #takeStillAsBytes()
+	 */
+	public byte[] takeStillAsBytes(CameraSettings settings) throws IOException {
+		// Read into a buffer the size of the last image, which the next is usually close to,
+		// rather than one big enough for an uncompressed image
+		int expected = lastStillLength;
+		if (expected == 0)
+			expected = settings.getWidth() * settings.getHeight() / 4;
+		EncodedFrame frame = new EncodedFrame(expected + expected / 8);
+		try (ProcessSupervisor.Child child = start(settings, settings.stillToStdoutCommand())) {
+			readFully(child, frame);
+		}
+		lastStillLength = frame.getLength();
+		return Arrays.copyOf(frame.getData(), frame.getLength());
+	}
+	
+	/**
+	 * Takes an image and stores it, exactly as raspistill encoded it, in an EncodedFrame leased
+	 * from the specified BufferPool, so no memory is allocated for the image once the pool's
+	 * frames have grown to the size of an image. The lease must be released once the image is
+	 * no longer needed.
+	 * <p>
+	 * Usage Example:
+	 * <pre>
+	 *{@code
+	 * BufferPool<EncodedFrame> pool = new BufferPool<>(2, EncodedFrame::new);
+	 * try (BufferPool.Lease<EncodedFrame> jpeg = piCamera.takeStillAsBytes(pool)) {
+	 *     out.write(jpeg.get().getData(), 0, jpeg.get().getLength());
+	 * }
+	 *}
+	 * </pre>
+	 * 
+	 * @param pool The BufferPool to lease the EncodedFrame from.
+	 * @return A Lease holding the EncodedFrame containing the image.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public BufferPool.Lease<EncodedFrame> takeStillAsBytes(BufferPool<EncodedFrame> pool)
+			throws IOException, InterruptedException {
+		CameraSettings settings = getSettings();
+		BufferPool.Lease<EncodedFrame> lease = pool.acquire(settings.getWidth(), settings.getHeight());
+		try (ProcessSupervisor.Child child = start(settings, settings.stillToStdoutCommand())) {
+			readFully(child, lease.get());
+			return lease;
+		} catch (IOException | RuntimeException e) {
+			lease.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Takes an image and writes it, exactly as raspistill encoded it, to the specified
+	 * OutputStream as it is produced. The image is never held in memory as a whole. The stream
+	 * is not closed.
+	 * <p>
+	 * Usage Example:
+	 * <pre>
+	 *{@code
+	 * // Send an image straight to a network client
+	 * piCamera.takeStill(socket.getOutputStream());
+	 *}
+	 * </pre>
+	 * 
+	 * @param out The OutputStream to write the image to.
+	 * @return The number of bytes written.
+	 * @throws IOException if raspistill failed, in which case part of an image may already
+	 *         have been written.
+	 */
+	public long takeStill(OutputStream out) throws IOException {
+		CameraSettings settings = getSettings();
+		try (ProcessSupervisor.Child child = start(settings, settings.stillToStdoutCommand())) {
+			InputStream in = child.getInputStream();
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			long total = 0;
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+				total += n;
+			}
+			child.checkExitValue();
+			return total;
+		}
+	}
+	
+	/**
+	 * Takes an image and writes it, exactly as raspistill encoded it, to the specified channel
+	 * (e.g. a FileChannel or SocketChannel) as it is produced. The image is never held in memory
+	 * as a whole. The channel is not closed.
+	 * 
+	 * @param channel The WritableByteChannel to write the image to.
+	 * @return The number of bytes written.
+	 * @throws IOException if raspistill failed, in which case part of an image may already
+	 *         have been written.
+	 */
+	public long takeStill(WritableByteChannel channel) throws IOException {
+		CameraSettings settings = getSettings();
+		try (ProcessSupervisor.Child child = start(settings, settings.stillToStdoutCommand())) {
+			ReadableByteChannel in = Channels.newChannel(child.getInputStream());
+			ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+			long total = 0;
+			while (in.read(buffer) >= 0 || buffer.position() > 0) {
+				buffer.flip();
+				total += channel.write(buffer);
+				buffer.compact();
+			}
+			child.checkExitValue();
+			return total;
+		}
+	}
+	
+	/**
+	 * Reads whatever a process writes after the image, such as raspiyuv's padding rows, so it
+	 * can exit, then checks that it succeeded. The rest is read a byte at a time from the
+	 * buffered stream, so nothing is allocated.
+	 */
+	private static void finish(ProcessSupervisor.Child child) throws IOException {
+		InputStream in = child.getInputStream();
+		while (in.read() >= 0) {
+			// Discard
+		}
+		child.checkExitValue();
+	}
+	
+	/**
+	 * Chooses the exception to throw when a process's output couldn't be read: the process's
+	 * own failure if it failed, as that is why its output was unreadable.
+	 */
+	private static IOException failure(ProcessSupervisor.Child child, IOException e) {
+		try {
+			finish(child);
+		} catch (IOException exit) {
+			exit.addSuppressed(e);
+			return exit;
+		}
+		return e;
+	}
+	
+	private static void checkRows(int rows, int expected) throws IOException {
+		if (rows < expected)
+			throw new IOException("raspiyuv produced " + rows + " of " + expected + " rows");
+	}
+	
+	/**
+	 * Reads a process's output into an EncodedFrame, growing it if necessary, and checks that
+	 * the process succeeded.
+	 */
+	private static void readFully(ProcessSupervisor.Child child, EncodedFrame frame) throws IOException {
+		InputStream in = child.getInputStream();
+		int length = 0;
+		int n;
+		while (true) {
+			frame.ensureCapacity(length + 1);
+			byte[] data = frame.getData();
+			if ((n = in.read(data, length, data.length - length)) < 0)
+				break;
+			length += n;
+		}
+		child.checkExitValue();
+		if (length == 0)
+			throw new IOException("raspistill did not produce an image");
+		frame.setLength(length);
 	}
 	
 	/**
@@ -203,32 +489,30 @@ public class RPiCamera {
 	 * @throws InterruptedException
 	 */
 	public BufferedImage takeBufferedStill(int width, int height) throws IOException, InterruptedException {
-		List<String> command = new ArrayList<>();
-		command.add("raspistill");
-		command.add("-o");
-		command.add("-v");
-		command.add("-w");
-		command.add("" + width);
-		command.add("-h");
-		command.add("" + height);
-		for (Map.Entry<String, String[]> entry : options.entrySet()) {
-			if (entry.getValue() != null        &&
-                !entry.getKey().equals("width") &&
-                !entry.getKey().equals("height")) {
-                Collections.addAll(command, entry.getValue());
+		return takeBufferedStill(getSettings().withSize(width, height));
+	}
+	
+	/**
+	 * Takes an image with the specified settings and stores it in a BufferedImage object. The
+	 * settings may have been taken from any RPiCamera.
+	 * 
+	 * @param settings The CameraSettings to take the image with.
+	 * @return A BufferedImage containing the image.
+	 * @throws IOException if raspistill failed or its image couldn't be decoded.
+	 * @throws InterruptedException
+	 * @see #getSettings()
+	 */
+	public BufferedImage takeBufferedStill(CameraSettings settings) throws IOException, InterruptedException {
+		BufferedImage bi;
+		try (ProcessSupervisor.Child child = start(settings, settings.stillToStdoutCommand())) {
+			try {
+				bi = ImageIO.read(child.getInputStream());
+			} catch (IOException e) {
+				throw failure(child, e);
 			}
+			// A truncated image decodes without error, with its lower rows left blank
+			finish(child);
 		}
-		prevCommand = command.toString();
-		pb = new ProcessBuilder(command);
-		
-// 		System.out.println("Executed this command:\n\t" + command.toString());
-// 		pb.redirectErrorStream(true);
-// 		pb.redirectOutput(
-// 				new File(System.getProperty("user.home") + File.separator + 
-// 				"Desktop" + File.separator + "RPiCamera.out"));
-		
-		p = pb.start();
-		BufferedImage bi = ImageIO.read(p.getInputStream());
 // 		--------------------------------------------------------------------------
 // 		This code can be used to specify an ImageReader - perhaps for a specific 
 // 		type of image - in place of the previous line:
@@ -240,7 +524,6 @@ public class RPiCamera {
 // 		ImageReadParam param = reader.getDefaultReadParam();
 // 		BufferedImage bi = reader.read(0, param);
 // 		--------------------------------------------------------------------------
-		p.getInputStream().close();
 		return bi;
 	}
 	
@@ -266,9 +549,140 @@ public class RPiCamera {
 	 * @throws InterruptedException
 	 */
 	public BufferedImage takeBufferedStill() throws IOException, InterruptedException {
-		return takeBufferedStill(
-				Integer.parseInt(options.get("width")[1]),
-				Integer.parseInt(options.get("height")[1]));
+		return takeBufferedStill(getSettings());
+	}
+	
+	/**
+	 * Takes an image at the RPiCamera's width and height and decodes only as much of it as the
+	 * specified DecodeOptions ask for, such as a scaled down preview or a single tile. This is
+	 * faster and uses less memory than decoding the full image and scaling or cropping it
+	 * afterwards.
+	 * <p>
+	 * Usage Example:
+	 * <pre>
+	 *{@code
+	 * RPiCamera piCamera = new RPiCamera().setWidth(2592).setHeight(1944);
+	 * // Take a full resolution image, but only decode a 324x243 preview
+	 * BufferedImage preview = piCamera.takeBufferedStill(new DecodeOptions().setScale(8));
+	 *}
+	 * </pre>
+	 * 
+	 * @param options The DecodeOptions to decode the image with.
+	 * @return A BufferedImage containing the decoded image.
+	 * @throws IOException if raspistill failed or its image couldn't be decoded.
+	 * @see DecodeOptions
+	 */
+	public BufferedImage takeBufferedStill(DecodeOptions options) throws IOException {
+		CameraSettings settings = getSettings();
+		try (ProcessSupervisor.Child child = start(settings, settings.stillToStdoutCommand())) {
+			BufferedImage image;
+			try {
+				image = options.decode(child.getInputStream());
+			} catch (IOException e) {
+				throw failure(child, e);
+			}
+			finish(child);
+			return image;
+		}
+	}
+	
+	/**
+	 * Takes an image with raw Bayer data appended, whether or not
+	 * {@link #setAddRawBayer(boolean)} is on, and returns the unpacked raw sensor values
+	 * instead of the JPEG. The raw data is always at the sensor's full resolution, so the
+	 * RPiCamera's width and height only affect the JPEG that is discarded; setting them small
+	 * saves encoding time.
+	 * <p>
+	 * Usage Example:
+	 * <pre>
+	 *{@code
+	 * RPiCamera piCamera = new RPiCamera().setWidth(320).setHeight(240);
+	 * BayerImage raw = piCamera.takeStillAsBayer();
+	 * BufferedImage image = new Demosaic(Demosaic.Method.MALVAR).toBufferedImage(raw);
+	 *}
+	 * </pre>
+	 * 
+	 * @return A BayerImage containing the sensor's values.
+	 * @throws IOException if the image couldn't be taken or held no raw data.
+	 * @see RawBayerReader
+	 * @see Demosaic
+	 */
+	public BayerImage takeStillAsBayer() throws IOException {
+		CameraSettings settings = getSettings();
+		List<String> command = settings.stillToStdoutCommand();
+		if (!command.contains("-r")) {
+			command = new ArrayList<>(command);
+			command.add("-r");
+		}
+		try (ProcessSupervisor.Child child = start(settings, command)) {
+			BayerImage image;
+			try {
+				image = RawBayerReader.read(child.getInputStream());
+			} catch (IOException e) {
+				// A failed capture has no raw data either, but the process's error says why
+				throw failure(child, e);
+			}
+			finish(child);
+			return image;
+		}
+	}
+	
+	/**
+	 * Takes an image at the RPiCamera's width and height and decodes it into a BufferedImage
+	 * leased from the specified BufferPool, instead of allocating a new BufferedImage for every
+	 * capture. The lease must be released once the image is no longer needed. The pool's
+	 * BufferedImages must be of a type the image can be decoded into; for JPEGs,
+	 * {@link BufferedImage#TYPE_3BYTE_BGR} is the natural choice.
+	 * <p>
+	 * Usage Example:
+	 * <pre>
+	 *{@code
+	 * RPiCamera piCamera = new RPiCamera().setWidth(640).setHeight(480);
+	 * BufferPool<BufferedImage> pool = new BufferPool<>(2,
+	 *     (w, h) -> new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR));
+	 * 
+	 * try (BufferPool.Lease<BufferedImage> image = piCamera.takeBufferedStill(pool)) {
+	 *     display(image.get());
+	 * }
+	 *}
+	 * </pre>
+	 * 
+	 * @param pool The BufferPool to lease the BufferedImage from.
+	 * @return A Lease holding the BufferedImage containing the image.
+	 * @throws IOException if raspistill failed or its image couldn't be decoded. The lease is
+	 *         released.
+	 * @throws InterruptedException
+	 */
+	public BufferPool.Lease<BufferedImage> takeBufferedStill(BufferPool<BufferedImage> pool)
+			throws IOException, InterruptedException {
+		CameraSettings settings = getSettings();
+		BufferPool.Lease<BufferedImage> lease = pool.acquire(settings.getWidth(), settings.getHeight());
+		try {
+			try (ProcessSupervisor.Child child = start(settings, settings.stillToStdoutCommand())) {
+				try (ImageInputStream iis = ImageIO.createImageInputStream(child.getInputStream())) {
+					Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+					if (!readers.hasNext())
+						throw new IOException("raspistill did not produce a readable image");
+					ImageReader reader = readers.next();
+					try {
+						reader.setInput(iis, true, true);
+						ImageReadParam param = reader.getDefaultReadParam();
+						param.setDestination(lease.get());
+						reader.read(0, param);
+					} finally {
+						reader.dispose();
+					}
+				} catch (IOException e) {
+					throw failure(child, e);
+				}
+				// A truncated image decodes without error, leaving the lower rows as they were
+				finish(child);
+			}
+			return lease;
+		} catch (IOException | RuntimeException e) {
+			lease.release();
+			throw e;
+		}
 	}
 	
 	/**
@@ -282,9 +696,8 @@ public class RPiCamera {
 	 * (e.g. a 500x500 image would have a black band 12 pixels thick added to the right and bottom
 	 * sides to achieve dimensions of 512x512, the closest multiple of 16 to 500).
 	 * <p>
-	 * The boolean keepPadding parameter may be set to false to remove this padding. Note that this does
-	 * require extra computations to be performed, so it has the potential to slightly reduce the fps
-	 * a Pi is capable of. However, this has not yet been officially tested for. If the padding is kept,
+	 * The boolean keepPadding parameter may be set to false to remove this padding. The padding is
+	 * skipped a row at a time while the image is read, so removing it costs practically nothing. If the padding is kept,
 	 * then it is the responsibility of the caller to determine what the dimensions of the resulting image
 	 * will be, and adjust their processing as such (e.g. If the padding is kept on a 500x500 image, the 
 	 * array that is returned will contain 786,432 elements, as opposed to the 750,000 one would expect from
@@ -321,84 +734,32 @@ public class RPiCamera {
 	 * @throws IOException
 	 */
 	public int[] takeStillAsRGB(int width, int height, boolean keepPadding) throws IOException {
-		List<String> command = new ArrayList<>();
-		command.add("raspiyuv");
-		command.add("-rgb");
-		command.add("-o");
-		command.add("-v");
-		command.add("-w");
-		command.add("" + width);
-		command.add("-h");
-		command.add("" + height);
-		for (Map.Entry<String, String[]> entry : options.entrySet()) {
-			if (entry.getValue() != null        &&
-                !entry.getKey().equals("width") &&
-                !entry.getKey().equals("height")) {
-                Collections.addAll(command, entry.getValue());
-			}
-		}
-		prevCommand = command.toString();
-		pb = new ProcessBuilder(command);
-		
-// 		System.out.println("Executed this command:\n\t" + command.toString());
-// 		pb.redirectErrorStream(true);
-// 		pb.redirectOutput(
-// 				new File(System.getProperty("user.home") + File.separator + 
-// 				"Desktop" + File.separator + "RPiCamera.out"));
-		
-		p = pb.start();
-		BufferedInputStream inputStream = new BufferedInputStream(p.getInputStream());
-		
-		// Calculate the width and height of the image with padding, if dimensions 
-		// aren't multiples of 16
-		int paddedWidth = width;
-		int paddedHeight = height;
-		
-		int widthRemainder = width % 16;
-		if (widthRemainder != 0)
-			paddedWidth = width + 16 - widthRemainder;
-			
-		int heightRemainder = height % 16;
-		if (heightRemainder != 0)
-			paddedHeight = height + 16 - heightRemainder;
-			
-		// Create an int array to hold RGB values of the image, size will differ
-		// depending upon whether or not the image will have padding
-		int[] rgbVals;
-		if (!keepPadding)
-			rgbVals = new int[width * height * 3]; // times three because each pixel is made up of three bytes, 
-													// and each element holds one byte (an R, G, or B value)
-		else
-			rgbVals = new int[paddedWidth * paddedHeight * 3];
-			
-		int rgbData;
-		int pos = 0;
-		
-		// Read the image into the array, but avoid storing pixels that make up padding
-		if (!keepPadding) {
-			int storedBytes = 0;
-			int columnPos = 1;
-			int areaWithoutPadding = width * height;
-			while ((rgbData = inputStream.read()) != -1) {
-				if ((columnPos / 3d) <= width) {
-					rgbVals[storedBytes] = rgbData;
-					storedBytes++;
-				}
-				columnPos++;
-				if (columnPos == (paddedWidth * 3) + 1)
-					columnPos = 1;
-				if ((storedBytes / 3d) == areaWithoutPadding)
-					break;
-			}
-		}
-		// Just read the image into the array, and don't worry about the padding
-		else {
-			while ((rgbData = inputStream.read()) != -1) {
-				rgbVals[pos] = rgbData;
-				pos++;
-			}
+		return takeStillAsRGB(getSettings().withSize(width, height), keepPadding);
+	}
+	
+	/**
+	 * Captures an image with the specified settings and returns the RGB values of that image, in
+	 * the same format as {@link #takeStillAsRGB(int, int, boolean)}. The settings may have been
+	 * taken from any RPiCamera.
+	 * 
+	 * @param settings The CameraSettings to take the image with.
+	 * @param keepPadding A boolean indicating whether or not to preserve the padding on an image.
+	 * @return An int array containing the image's RGB values.
+	 * @throws IOException if raspiyuv failed or didn't produce a whole image.
+	 * @see #getSettings()
+	 */
+	public int[] takeStillAsRGB(CameraSettings settings, boolean keepPadding) throws IOException {
+		int width = settings.getWidth();
+		int height = settings.getHeight();
+		// Read the image a row at a time, dropping the padding that raspiyuv adds to make the
+		// dimensions multiples of 16 unless the caller wants to keep it
+		RGBReader reader = new RGBReader(width, height);
+		int[] rgbVals = new int[reader.getImageSize(keepPadding)];
+		try (ProcessSupervisor.Child child = start(settings, settings.rgbCommand())) {
+			int rows = reader.read(child.getInputStream(), rgbVals, keepPadding);
+			finish(child);
+			checkRows(rows, keepPadding ? reader.getPaddedHeight() : height);
 		}
-		inputStream.close();
 		return rgbVals;
 	}
 	
@@ -413,9 +774,8 @@ public class RPiCamera {
 	 * (e.g. a 500x500 image would have a black band 12 pixels thick added to the right and bottom
 	 * sides to achieve dimensions of 512x512, the closest multiple of 16 to 500).
 	 * <p>
-	 * The boolean keepPadding parameter may be set to false to remove this padding. Note that this does
-	 * require extra computations to be performed, so it has the potential to slightly reduce the fps
-	 * a Pi is capable of. However, this has not yet been officially tested for. If the padding is kept,
+	 * The boolean keepPadding parameter may be set to false to remove this padding. The padding is
+	 * skipped a row at a time while the image is read, so removing it costs practically nothing. If the padding is kept,
 	 * then it is the responsibility of the caller to determine what the dimensions of the resulting image
 	 * will be, and adjust their processing as such (e.g. If the padding is kept on a 500x500 image, the 
 	 * array that is returned will contain 786,432 elements, as opposed to the 750,000 one would expect from
@@ -450,10 +810,145 @@ public class RPiCamera {
 	 * @throws IOException
 	 */
 	public int[] takeStillAsRGB(boolean keepPadding) throws IOException {
-		return takeStillAsRGB(
-				Integer.parseInt(options.get("width")[1]),
-				Integer.parseInt(options.get("height")[1]),
-				keepPadding);
+		return takeStillAsRGB(getSettings(), keepPadding);
+	}
+	
+	/**
+	 * Captures an image and stores its pixels in the specified PixelBuffer. The image is taken
+	 * at the PixelBuffer's dimensions, and any padding added by raspiyuv is removed. Unlike the
+	 * int arrays returned by {@link #takeStillAsRGB(int, int, boolean)}, which use an int for
+	 * every colour channel, PixelBuffers store each pixel in three or four bytes, and can be
+	 * reused for every capture.
+	 * <p>
+	 * Usage Example:
+	 * <pre>
+	 *{@code
+	 * RPiCamera piCamera = new RPiCamera()
+	 *     .turnOffPreview()
+	 *     .setTimeout(1);
+	 * 
+	 * // Capture a 640x480 image in BGR order, and use it as a BufferedImage without copying it
+	 * BytePixelBuffer pixels = new BytePixelBuffer(640, 480, BytePixelBuffer.ChannelOrder.BGR);
+	 * piCamera.takeStillAsRGB(pixels);
+	 * ImageIO.write(pixels.toBufferedImage(), "png", new File("/home/pi/Desktop/Image.png"));
+	 *}
+	 * </pre>
+	 * 
+	 * @param buffer The PixelBuffer to store the image in.
+	 * @return The PixelBuffer passed in.
+	 * @throws IOException if raspiyuv failed or didn't produce a whole image, in which case
+	 *         the buffer may hold part of an earlier image.
+	 */
+	public <T extends PixelBuffer> T takeStillAsRGB(T buffer) throws IOException {
+		CameraSettings settings = getSettings().withSize(buffer.getWidth(), buffer.getHeight());
+		RGBReader reader = new RGBReader(buffer.getWidth(), buffer.getHeight());
+		try (ProcessSupervisor.Child child = start(settings, settings.rgbCommand())) {
+			int rows = reader.read(child.getInputStream(), buffer);
+			finish(child);
+			checkRows(rows, buffer.getHeight());
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Captures an image at the RPiCamera's width and height, and stores its pixels in a
+	 * PixelBuffer leased from the specified BufferPool. Once the pool has warmed up, a loop of
+	 * captures allocates no new pixel buffers. The lease must be released once the pixels are
+	 * no longer needed.
+	 * <p>
+	 * Usage Example:
+	 * <pre>
+	 *{@code
+	 * RPiCamera piCamera = new RPiCamera().setWidth(640).setHeight(480);
+	 * BufferPool<BytePixelBuffer> pool = new BufferPool<>(3, BytePixelBuffer::new);
+	 * 
+	 * try (BufferPool.Lease<BytePixelBuffer> pixels = piCamera.takeStillAsRGB(pool)) {
+	 *     analyse(pixels.get());
+	 * }
+	 *}
+	 * </pre>
+	 * 
+	 * @param pool The BufferPool to lease the PixelBuffer from.
+	 * @return A Lease holding the PixelBuffer containing the image.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public <T extends PixelBuffer> BufferPool.Lease<T> takeStillAsRGB(BufferPool<T> pool)
+			throws IOException, InterruptedException {
+		CameraSettings settings = getSettings();
+		BufferPool.Lease<T> lease = pool.acquire(settings.getWidth(), settings.getHeight());
+		try {
+			takeStillAsRGB(lease.get());
+			return lease;
+		} catch (IOException | RuntimeException e) {
+			lease.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Captures an image in the planar YUV420 format, and stores it in the specified YUV420Image.
+	 * The image is taken at the YUV420Image's dimensions. YUV420 is the camera's native format,
+	 * so the GPU doesn't need to convert the image, and it takes half the space of an RGB image.
+	 * If the YUV420Image is luma only, raspiyuv outputs just the Y plane, which is a third of the
+	 * size of an RGB image.
+	 * <p>
+	 * Usage Example:
+	 * <pre>
+	 *{@code
+	 * RPiCamera piCamera = new RPiCamera()
+	 *     .turnOffPreview()
+	 *     .setTimeout(1);
+	 * 
+	 * // Capture only the brightness of a 640x480 image
+	 * YUV420Image image = piCamera.takeStillAsYUV(new YUV420Image(640, 480, true));
+	 * int centre = image.getY().get(320, 240);
+	 *}
+	 * </pre>
+	 * 
+	 * @param image The YUV420Image to store the image in.
+	 * @return The YUV420Image passed in.
+	 * @throws IOException if raspiyuv failed or didn't produce a whole image, in which case
+	 *         the YUV420Image may hold part of an earlier image.
+	 * @see YUV420Image
+	 */
+	public YUV420Image takeStillAsYUV(YUV420Image image) throws IOException {
+		CameraSettings settings = getSettings().withSize(image.getWidth(), image.getHeight());
+		try (ProcessSupervisor.Child child = start(settings, settings.yuvCommand(image.isLumaOnly()))) {
+			boolean complete = image.read(child.getInputStream());
+			finish(child);
+			if (!complete)
+				throw new IOException("raspiyuv did not produce a whole image");
+		}
+		return image;
+	}
+	
+	/**
+	 * Starts the specified raspistill or raspiyuv command under the default ProcessSupervisor,
+	 * with a deadline based on the settings' timeout.
+	 */
+	private ProcessSupervisor.Child start(CameraSettings settings, List<String> command) throws IOException {
+		prevCommand = command;
+		
+// 		System.out.println("Executed this command:\n\t" + command.toString());
+// 		pb.redirectErrorStream(true);
+// 		pb.redirectOutput(
+// 				new File(System.getProperty("user.home") + File.separator + 
+// 				"Desktop" + File.separator + "RPiCamera.out"));
+		
+		child = ProcessSupervisor.getDefault().start(command, getCaptureDeadline(settings));
+		return child;
+	}
+	
+	/**
+	 * Gets the deadline for a capture with the specified settings: either the deadline set with
+	 * {@link #setCaptureDeadline(long)}, or the timeout plus time for raspistill to start up.
+	 */
+	long getCaptureDeadline(CameraSettings settings) {
+		if (captureDeadline > 0)
+			return captureDeadline;
+		// A timeout of 0 makes raspistill run until it is stopped
+		return settings.getTimeout() == 0 ? 0 : settings.getTimeout() + DEADLINE_SLACK;
 	}
 	
 	/**
@@ -503,36 +998,275 @@ public class RPiCamera {
 		if (!pictureName.contains("%04d"))
 			pictureName = "%04d" + pictureName;
 			
-		List<String> command = new ArrayList<>();
-		command.add("raspistill");
-		command.add("-tl");
-		command.add("" + time);
-		command.add("-o");
-		command.add(saveDir + File.separator + pictureName);
-		for (Map.Entry<String, String[]> entry : options.entrySet()) {
-			if (entry.getValue() != null)
-                Collections.addAll(command, entry.getValue());
-		}
-		prevCommand = command.toString();
-		pb = new ProcessBuilder(command);
-		
-// 		System.out.println("Executed this command:\n\t" + command.toString());	
-// 		pb.redirectErrorStream(true);
-// 		pb.redirectOutput(
-// 				   new File(System.getProperty("user.home") + File.separator + 
-// 		           "Desktop" + File.separator + "RPiCamera.out"));
-		
-		p = pb.start();
+		CameraSettings settings = getSettings();
+		ProcessSupervisor.Child child = start(settings, settings.timelapseCommand(pictureName, time));
+		child.discardOutput();
 		if (wait)
-			p.waitFor();
+			child.waitFor();
 			
-// 		if (!options.get("latest").equals(null)) {
-		try {
-			return new File(options.get("latest")[1]);
-		} catch (NullPointerException e) {
-			return null;
+		List<String> latest = settings.getOption("latest");
+		return latest == null ? null : new File(latest.get(1));
+	}
+	
+	/**
+	 * Opens a capture session that keeps a single raspistill process running between captures,
+	 * triggering each capture with a signal instead of starting a new process. This avoids paying
+	 * for camera initialisation and AE/AWB settling on every image, so repeated captures complete
+	 * in roughly one frame interval rather than several seconds. The session uses this RPiCamera's
+	 * options, and restarts raspistill automatically if they are changed while it is open.
+	 * <p>
+	 * Usage Example:
+	 * <pre>
+	 *{@code
+	 * RPiCamera piCamera = new RPiCamera();
+	 * try (RPiCameraSession session = piCamera.openSession()) {
+	 *     BufferedImage first = session.takeBufferedStill();  // Waits for camera startup
+	 *     BufferedImage second = session.takeBufferedStill(); // Returns almost immediately
+	 * }
+	 *}
+	 * </pre>
+	 * 
+	 * @return An RPiCameraSession, which must be closed when no longer needed.
+	 * @throws IOException
+	 * @see RPiCameraSession
+	 */
+	public RPiCameraSession openSession() throws IOException {
+		return new RPiCameraSession(this);
+	}
+	
+	/**
+	 * Starts a continuous capture that runs a single raspistill process in timelapse mode and
+	 * delivers every JPEG it produces to the specified FrameListener. Frames are split out of
+	 * raspistill's output as it arrives, so no new process is started for each frame. The stream
+	 * runs until it is closed, regardless of this RPiCamera's timeout setting, and always
+	 * captures JPEGs regardless of its encoding setting.
+	 * <p>
+	 * Usage Example:
+	 * <pre>
+	 *{@code
+	 * RPiCamera piCamera = new RPiCamera().turnOffPreview();
+	 * 
+	 * // Capture frames as fast as the camera allows, and count them
+	 * final AtomicLong bytes = new AtomicLong();
+	 * RPiCameraStream stream = piCamera.startStream(0, new FrameListener() {
+	 *     public void onFrame(byte[] buffer, int offset, int length) {
+	 *         bytes.addAndGet(length);
+	 *     }
+	 * });
+	 * Thread.sleep(10000);
+	 * stream.close();
+	 * System.out.println(stream.getFrameCount() + " frames, " + bytes + " bytes");
+	 *}
+	 * </pre>
+	 * 
+	 * @param interval Period of time in milliseconds to wait between capturing each frame.
+	 * @param listener The FrameListener to deliver frames to.
+	 * @return An RPiCameraStream, which must be closed to stop capturing.
+	 * @throws IOException
+	 * @see RPiCameraStream
+	 */
+	public RPiCameraStream startStream(int interval, FrameListener listener) throws IOException {
+		CameraSettings settings = getSettings();
+		List<String> command = settings.streamCommand(interval);
+		prevCommand = command;
+		// Size the frame buffer generously so it never needs to grow once frames are flowing
+		int expectedFrameSize = settings.getWidth() * settings.getHeight();
+		return new RPiCameraStream(command, expectedFrameSize, listener);
+	}
+	
+	/**
+	 * Starts a continuous capture like {@link #startStream(int, FrameListener)}, but copies each
+	 * frame into an EncodedFrame leased from the specified BufferPool before handing it to the
+	 * consumer. The consumer may keep the frame for as long as it likes (for example, by passing
+	 * it to another thread), and must release the lease once it is done with it. If every frame
+	 * in the pool is still leased, the stream waits for one to be released.
+	 * 
+	 * @param interval Period of time in milliseconds to wait between capturing each frame.
+	 * @param pool The BufferPool to lease EncodedFrames from.
+	 * @param consumer The Consumer to deliver leased frames to.
+	 * @return An RPiCameraStream, which must be closed to stop capturing.
+	 * @throws IOException
+	 */
+	public RPiCameraStream startStream(int interval, final BufferPool<EncodedFrame> pool,
+			final Consumer<BufferPool.Lease<EncodedFrame>> consumer) throws IOException {
+		CameraSettings settings = getSettings();
+		final int width = settings.getWidth();
+		final int height = settings.getHeight();
+		return startStream(interval, new FrameListener() {
+			public void onFrame(byte[] buffer, int offset, int length) {
+				BufferPool.Lease<EncodedFrame> lease;
+				try {
+					lease = pool.acquire(width, height);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while waiting for a free frame", e);
+				}
+				lease.get().set(buffer, offset, length);
+				consumer.accept(lease);
+			}
+		});
+	}
+	
+	/**
+	 * Records the command run by an {@link RPiCameraSession}, for {@link #getPrevCommand()}.
+	 */
+	void setPrevCommand(List<String> command) {
+		prevCommand = command;
+	}
+	
+	/**
+	 * Asynchronously takes an image and saves it under the specified name to the RPiCamera's
+	 * save directory. The image is taken on the RPiCamera's I/O executor, so the calling thread
+	 * is never blocked. By default, that is a single thread shared by every RPiCamera, so the
+	 * capture waits for any asynchronous captures requested before it, even on other
+	 * RPiCameras (see {@link #setIOExecutor(Executor)}).
+	 * <p>
+	 * Usage Example:
+	 * <pre>
+	 *{@code
+	 * RPiCamera piCamera = new RPiCamera();
+	 * piCamera.takeStillAsync("AStillImage.jpg")
+	 *     .thenAccept(file -> upload(file))
+	 *     .exceptionally(e -> { e.printStackTrace(); return null; });
+	 * // Carry on with other work while the image is taken
+	 *}
+	 * </pre>
+	 * 
+	 * @param pictureName A String containing the name to save picture under.
+	 * @return A CompletableFuture completed with the File the picture was saved to.
+	 */
+	public CompletableFuture<File> takeStillAsync(final String pictureName) {
+		final CameraSettings settings = getSettings();
+		return async(new Callable<File>() {
+			public File call() throws Exception {
+				return takeStill(settings, pictureName);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronously takes an image and stores it in a BufferedImage object. The image is taken
+	 * and decoded on the RPiCamera's I/O executor, so the calling thread is never blocked. By
+	 * default, that is a single thread shared by every RPiCamera (see
+	 * {@link #setIOExecutor(Executor)}).
+	 * 
+	 * @return A CompletableFuture completed with a BufferedImage containing the image.
+	 */
+	public CompletableFuture<BufferedImage> takeBufferedStillAsync() {
+		final CameraSettings settings = getSettings();
+		return async(new Callable<BufferedImage>() {
+			public BufferedImage call() throws Exception {
+				return takeBufferedStill(settings);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronously captures an image and returns the RGB values of that image, in the same
+	 * format as {@link #takeStillAsRGB(boolean)}. The image is captured on the RPiCamera's I/O
+	 * executor, so the calling thread is never blocked. By default, that is a single thread
+	 * shared by every RPiCamera (see {@link #setIOExecutor(Executor)}).
+	 * 
+	 * @param keepPadding A boolean indicating whether or not to preserve the padding on an image.
+	 * @return A CompletableFuture completed with an int array containing the image's RGB values.
+	 */
+	public CompletableFuture<int[]> takeStillAsRGBAsync(final boolean keepPadding) {
+		final CameraSettings settings = getSettings();
+		return async(new Callable<int[]>() {
+			public int[] call() throws Exception {
+				return takeStillAsRGB(settings, keepPadding);
+			}
+		});
+	}
+	
+	/**
+	 * Asynchronously takes an image and returns it exactly as raspistill encoded it, as
+	 * {@link #takeStillAsBytes()} does. The image is taken on the RPiCamera's I/O executor, so
+	 * the calling thread is never blocked. By default, that is a single thread shared by every
+	 * RPiCamera (see {@link #setIOExecutor(Executor)}).
+	 * 
+	 * @return A CompletableFuture completed with a byte array containing the encoded image.
+	 */
+	public CompletableFuture<byte[]> takeStillAsBytesAsync() {
+		final CameraSettings settings = getSettings();
+		return async(new Callable<byte[]>() {
+			public byte[] call() throws Exception {
+				return takeStillAsBytes(settings);
+			}
+		});
+	}
+	
+	/**
+	 * Sets the Executor that asynchronous captures (e.g. {@link #takeStillAsync(String)}) are run
+	 * on. Each capture occupies one of the Executor's threads until raspistill exits.
+	 * <p>
+	 * By default, every RPiCamera without an Executor of its own shares one daemon thread,
+	 * named "jrpicam-io", for the whole JVM. Asynchronous captures therefore run one at a time,
+	 * in the order they were requested, even when they are made on different RPiCameras, and a
+	 * slow capture on one RPiCamera delays the others. That suits a Pi with a single camera,
+	 * which can only take one image at a time anyway. Give an RPiCamera its own Executor to run
+	 * its captures independently, e.g. on a Compute Module with two cameras:
+	 * <pre>
+	 *{@code
+	 * RPiCamera left = new RPiCamera()
+	 *     .selectCamera(0)
+	 *     .setIOExecutor(Executors.newSingleThreadExecutor());
+	 *}
+	 * </pre>
+	 * 
+	 * @param executor The Executor to run captures on, or null to use the default.
+	 */
+	public RPiCamera setIOExecutor(Executor executor) {
+		this.ioExecutor = executor;
+		return this;
+	}
+	
+	/**
+	 * Sets how long a capture's raspistill or raspiyuv process may run before it is considered
+	 * hung and killed, in which case the capture fails with an IOException. By default, the
+	 * deadline is the RPiCamera's timeout (see {@link #setTimeout(int)}) plus 10 seconds for
+	 * the camera to start up, and captures with a timeout of 0 have no deadline.
+	 * <p>
+	 * The deadline also applies to each capture made by an {@link RPiCameraSession}, measured
+	 * from signalling raspistill, except that session captures always have a deadline: 10
+	 * seconds if the default would be none.
+	 * 
+	 * @param deadline A long specifying the deadline in milliseconds, or 0 for the default.
+	 * @see ProcessSupervisor
+	 */
+	public RPiCamera setCaptureDeadline(long deadline) {
+		this.captureDeadline = deadline;
+		return this;
+	}
+	
+	private <T> CompletableFuture<T> async(final Callable<T> capture) {
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		Executor executor = ioExecutor != null ? ioExecutor : getDefaultIOExecutor();
+		executor.execute(new Runnable() {
+			public void run() {
+				if (future.isDone())
+					return; // Cancelled while queued
+				try {
+					future.complete(capture.call());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			}
+		});
+		return future;
+	}
+	
+	private static synchronized ExecutorService getDefaultIOExecutor() {
+		if (defaultIOExecutor == null) {
+			defaultIOExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "jrpicam-io");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 		}
-// 		} else
+		return defaultIOExecutor;
 	}
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 ////////////////////////////////////////// End of Image Taking Methods /////////////////////////////////////////////////
@@ -542,8 +1276,9 @@ public class RPiCamera {
 	 * Stops any raspistill processes being run by RPiCamera. 
 	 */
 	public void stop() {
-		if (p != null)
-			p.destroy();
+		ProcessSupervisor.Child child = this.child;
+		if (child != null)
+			child.destroy();
 	}
 	
 	/**
@@ -553,7 +1288,22 @@ public class RPiCamera {
 	 * @return String containing command previously executed.
 	 */
 	public String getPrevCommand() {
-		return prevCommand.substring(1, prevCommand.lastIndexOf("]")).replaceAll(",", "");
+		List<String> command = prevCommand;
+		if (command == null)
+			return null;
+		StringBuilder sb = new StringBuilder();
+		for (String arg : command)
+			sb.append(sb.length() == 0 ? "" : " ").append(arg);
+		return sb.toString();
+	}
+	
+	/**
+	 * Gets the RPiCamera's save directory.
+	 * 
+	 * @return String containing directory RPiCamera saves images to.
+	 */
+	public String getSaveDir() {
+		return saveDir;
 	}
 	
 	/**
@@ -561,11 +1311,22 @@ public class RPiCamera {
 	 * 
 	 * @param saveDir String containing directory for RPiCamera to save images to.
 	 */
-	public RPiCamera setSaveDir(String saveDir) {
+	public synchronized RPiCamera setSaveDir(String saveDir) {
 		this.saveDir = saveDir;
+		settings = null;
 		return this;
 	}
 	
+	/**
+	 * Gets the directory the RPiCamera runs raspistill, raspiyuv and raspivid from.
+	 * 
+	 * @return String containing the tool directory, or null if the tools are looked up on the
+	 *         PATH.
+	 */
+	public String getToolDir() {
+		return toolDir;
+	}
+	
 // 	public String getCameraSettings() {
 // 		List<String> command = new ArrayList<String>();
 // 		command.add("raspistill");
@@ -592,12 +1353,38 @@ public class RPiCamera {
 	 * Sets all RPiCamera options to their default settings, overriding any previously
 	 * set options.
 	 */
-	public RPiCamera setToDefaults() {
+	public synchronized RPiCamera setToDefaults() {
 		saveDir = "/home/pi/Pictures";
 		for (Map.Entry<String, String[]> entry : options.entrySet()) {
 			entry.setValue(null);
 		}
-		return this;
+		settings = null;
+		// Width and height must always be set
+		return setWidth(DEFAULT_WIDTH).setHeight(DEFAULT_HEIGHT);
+	}
+	
+	/**
+	 * Gets an immutable snapshot of the RPiCamera's current settings. The snapshot is not
+	 * affected by later changes to the RPiCamera, so it may be used to take images with exactly
+	 * these settings at any time, from any thread, or with a different RPiCamera. Snapshots are
+	 * cached, so calling this method repeatedly without changing any settings is cheap.
+	 * 
+	 * @return A CameraSettings holding the RPiCamera's current settings.
+	 * @see CameraSettings
+	 */
+	public synchronized CameraSettings getSettings() {
+		if (settings == null)
+			settings = new CameraSettings(options, saveDir, toolDir);
+		return settings;
+	}
+	
+	/**
+	 * Sets a single raspistill option. All option changes go through here so the cached
+	 * settings snapshot is discarded.
+	 */
+	private synchronized void setOption(String name, String[] value) {
+		options.put(name, value);
+		settings = null;
 	}
 	
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -608,7 +1395,7 @@ public class RPiCamera {
 	 * Turns off image preview.
 	 */
 	public RPiCamera turnOffPreview() {
-		options.put("preview", new String[] { "-n" });
+		setOption("preview", new String[] { "-n" });
 		return this;
 	}
 	
@@ -617,7 +1404,7 @@ public class RPiCamera {
 	 * any other windows/graphics.
 	 */
 	public RPiCamera turnOnPreview() {
-		options.put("preview", null);
+		setOption("preview", null);
 		return this;
 	}
 	
@@ -628,7 +1415,7 @@ public class RPiCamera {
 	 * This feature is currently under development.
 	 */
 	public RPiCamera setFullPreviewOn() {
-		options.put("fullpreview", new String[] { "-fp" });
+		setOption("fullpreview", new String[] { "-fp" });
 		return this;
 	}
 	
@@ -636,7 +1423,7 @@ public class RPiCamera {
 	 * Turns off fullpreview mode.
 	 */
 	public RPiCamera setFullPreviewOff() {
-		options.put("fullpreview", null);
+		setOption("fullpreview", null);
 		return this;
 	}
 	
@@ -650,7 +1437,7 @@ public class RPiCamera {
 	 * @param h An int specifying height of preview window.
 	 */
 	public RPiCamera turnOnPreview(int x, int y, int w, int h) {
-		options.put("preview", new String[] { "-p", "" + x + "," + y + "," + w + "," + h });
+		setOption("preview", new String[] { "-p", "" + x + "," + y + "," + w + "," + h });
 		return this;
 	}
 	
@@ -661,9 +1448,9 @@ public class RPiCamera {
 	 */
 	public RPiCamera setPreviewFullscreen(boolean fullscreen) {
 		if (fullscreen)
-			options.put("fullscreen", new String[] { "-f" });
+			setOption("fullscreen", new String[] { "-f" });
 		else
-			options.put("fullscreen", null);
+			setOption("fullscreen", null);
 		return this;
 	}
 	
@@ -678,7 +1465,7 @@ public class RPiCamera {
 			opacity = 255;
 		else if (opacity < 0)
 			opacity = 0;
-		options.put("opacity", new String[] { "-op", "" + opacity });
+		setOption("opacity", new String[] { "-op", "" + opacity });
 		return this;
 	}
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -701,7 +1488,7 @@ public class RPiCamera {
 			sharpness = 100;
 		else if (sharpness < -100)
 			sharpness = -100;
-		options.put("sharpness", new String[] { "-sh", "" + sharpness });
+		setOption("sharpness", new String[] { "-sh", "" + sharpness });
 		return this;
 	}
 	
@@ -717,7 +1504,7 @@ public class RPiCamera {
 			contrast = 100;
 		else if (contrast < -100)
 			contrast = -100;
-		options.put("constast", new String[] { "-co", "" + contrast });
+		setOption("constast", new String[] { "-co", "" + contrast });
 		return this;
 	}
 	
@@ -733,7 +1520,7 @@ public class RPiCamera {
 			brightness = 100;
 		else if (brightness < 0)
 			brightness = 0;
-		options.put("brightness", new String[] { "-br", "" + brightness });
+		setOption("brightness", new String[] { "-br", "" + brightness });
 		return this;
 	}
 	
@@ -749,7 +1536,7 @@ public class RPiCamera {
 			saturation = 100;
 		else if (saturation < -100)
 			saturation = -100;
-		options.put("saturation", new String[] { "-sa", "" + saturation });
+		setOption("saturation", new String[] { "-sa", "" + saturation });
 		return this;
 	}
 	
@@ -762,18 +1549,18 @@ public class RPiCamera {
 	 * @param iso An int specifying the ISO.
 	 */
 	public RPiCamera setISO(int iso) {
-		options.put("ISO", new String[] { "-ISO", "" + iso });
+		setOption("ISO", new String[] { "-ISO", "" + iso });
 		return this;
 	}
 	
 // 	// THIS IS ONLY USED FOR VIDEOS, NOT PICTURES
 // 	private void turnOnVStab() {
-// 		options.put("vstab", new String[] { "-vs" });
+// 		setOption("vstab", new String[] { "-vs" });
 // 	}
 
 // 	// THIS IS ONLY USED FOR VIDEOS, NOT PICTURES
 // 	public void turnOffVStab() {
-// 		options.put("vstab", null);
+// 		setOption("vstab", null);
 // 	}
 
 // 	TODO: MAKE METHOD FOR EVCOMPENSATION (-25 - 25?), ONLY FOR VIDEO
@@ -785,7 +1572,7 @@ public class RPiCamera {
 	 * @param exposure An Exposure enum specifying the desired mode.
 	 */
 	public RPiCamera setExposure(Exposure exposure) {
-		options.put("exposure", new String[] { "-ex", exposure.toString() });
+		setOption("exposure", new String[] { "-ex", exposure.toString() });
 		return this;
 	}
 	
@@ -796,7 +1583,7 @@ public class RPiCamera {
 	 * @param awb An AWB enum specifying the desired AWB setting.
 	 */
 	public RPiCamera setAWB(AWB awb) {
-		options.put("awb", new String[] { "-awb", awb.toString() });
+		setOption("awb", new String[] { "-awb", awb.toString() });
 		return this;
 	}
 	
@@ -807,7 +1594,7 @@ public class RPiCamera {
 	 * @param imageEffect An ImageEffect enum specifying the desired effect.
 	 */
 	public RPiCamera setImageEffect(ImageEffect imageEffect) {
-		options.put("imxfx", new String[] { "-ifx", imageEffect.toString() });
+		setOption("imxfx", new String[] { "-ifx", imageEffect.toString() });
 		return this;
 	}
 	
@@ -828,7 +1615,8 @@ public class RPiCamera {
 			V = 255;
 		else if (V < 0)
 			V = 0;
-		options.put("colfx", new String[] { "-cfx", "" + U, ":", "" + V });
+		// raspistill expects the values as a single "U:V" argument
+		setOption("colfx", new String[] { "-cfx", U + ":" + V });
 		return this;
 	}
 	
@@ -838,7 +1626,7 @@ public class RPiCamera {
 	 * @param meteringMode a MeteringMode enum specifying the desired mode.
 	 */
 	public RPiCamera setMeteringMode(MeteringMode meteringMode) {
-		options.put("metering", new String[] { "-mm", meteringMode.toString() });
+		setOption("metering", new String[] { "-mm", meteringMode.toString() });
 		return this;
 	}
 	
@@ -856,7 +1644,7 @@ public class RPiCamera {
 		else if (rotation < 0)
 			while (rotation < 0)
 				rotation = rotation + 360;
-		options.put("rotation", new String[] { "-rot", "" + rotation });
+		setOption("rotation", new String[] { "-rot", "" + rotation });
 		return this;
 	}
 	
@@ -864,7 +1652,7 @@ public class RPiCamera {
 	 * Flips the preview and saved image horizontally.
 	 */
 	public RPiCamera setHorizontalFlipOn() {
-		options.put("hflip", new String[] { "-hf" });
+		setOption("hflip", new String[] { "-hf" });
 		return this;
 	}
 	
@@ -872,7 +1660,7 @@ public class RPiCamera {
 	 * Turns off horizontal flip.
 	 */
 	public RPiCamera setHorizontalFlipOff() {
-		options.put("hflip", null);
+		setOption("hflip", null);
 		return this;
 	}
 	
@@ -880,7 +1668,7 @@ public class RPiCamera {
 	 * Flips the preview and saved image vertically.
 	 */
 	public RPiCamera setVerticalFlipOn() {
-		options.put("vflip", new String[] { "-vf" });
+		setOption("vflip", new String[] { "-vf" });
 		return this;
 	}
 	
@@ -888,7 +1676,7 @@ public class RPiCamera {
 	 * Turns off vertical flip.
 	 */
 	public RPiCamera setVerticalFlipOff() {
-		options.put("vflip", null);
+		setOption("vflip", null);
 		return this;
 	}
 	
@@ -922,7 +1710,8 @@ public class RPiCamera {
 			d = 1.0;
 		else if (d < 0.0)
 			d = 0.0;
-		options.put("roi", new String[] { "-roi", "" + x, ",", "" + y, ",", "" + w, ",", "" + d });
+		// raspistill expects the region as a single "x,y,w,d" argument
+		setOption("roi", new String[] { "-roi", x + "," + y + "," + w + "," + d });
 		return this;
 	}
 	
@@ -939,7 +1728,7 @@ public class RPiCamera {
 			speed = 6000000;
 		if (speed < 0)
 			speed = 0;
-		options.put("shutter", new String[] { "-ss", "" + speed });
+		setOption("shutter", new String[] { "-ss", "" + speed });
 		return this;
 	}
 	
@@ -953,7 +1742,7 @@ public class RPiCamera {
 	 * @param drc A DRC enum specifying the desired DRC level.
 	 */
 	public RPiCamera setDRC(DRC drc) {
-		options.put("drc", new String[] { "-drc", drc.toString() });
+		setOption("drc", new String[] { "-drc", drc.toString() });
 		return this;
 	}
 	
@@ -980,10 +1769,28 @@ public class RPiCamera {
 	 * @param width An int specifying the width.
 	 */
 	public RPiCamera setWidth(int width) {
-		options.put("width", new String[] { "-w", "" + width });
+		setOption("width", new String[] { "-w", "" + width });
 		return this;
 	}
 	
+	/**
+	 * Gets the width of images taken by RPiCamera.
+	 * 
+	 * @return An int specifying the width.
+	 */
+	public int getWidth() {
+		return Integer.parseInt(options.get("width")[1]);
+	}
+	
+	/**
+	 * Gets the height of images taken by RPiCamera.
+	 * 
+	 * @return An int specifying the height.
+	 */
+	public int getHeight() {
+		return Integer.parseInt(options.get("height")[1]);
+	}
+	
 	/**
 	 * Sets height of images taken by the RPiCamera. Note that this settings
      * can be overriden by the {@link #takeStill(String, int, int)}  and {@link #takeBufferedStill(int, int)} methods.
@@ -991,7 +1798,7 @@ public class RPiCamera {
 	 * @param height An int specifying the height.
 	 */
 	public RPiCamera setHeight(int height) {
-		options.put("height", new String[] { "-h", "" + height });
+		setOption("height", new String[] { "-h", "" + height });
 		return this;
 	}
 	
@@ -1007,20 +1814,21 @@ public class RPiCamera {
 			quality = 100;
 		else if (quality < 0)
 			quality = 0;
-		options.put("quality", new String[] { "-q", "" + quality });
+		setOption("quality", new String[] { "-q", "" + quality });
 		return this;
 	}
 	
 	/**
-	 * Appends raw Bayer data from the RPiCamera to the image's JPEG metadata.
+	 * Appends raw Bayer data from the RPiCamera to the image's JPEG metadata. The data can be
+	 * read back with {@link RawBayerReader}.
 	 * 
 	 * @param add turn on/off bayer data.
 	 */
 	public RPiCamera setAddRawBayer(boolean add) {
 		if (add)
-			options.put("raw", new String[] { "-r" });
+			setOption("raw", new String[] { "-r" });
 		else
-            options.put("raw", null);
+            setOption("raw", null);
 		return this;
 	}
 	
@@ -1035,9 +1843,9 @@ public class RPiCamera {
 	 */
 	public RPiCamera setLinkLatestImage(boolean link, String fileName) {
 		if (link)
-			options.put("latest", new String[] { "-l", "" + fileName });
+			setOption("latest", new String[] { "-l", "" + fileName });
 		else
-			options.put("latest", null);
+			setOption("latest", null);
 		return this;
 	}
 	
@@ -1050,20 +1858,22 @@ public class RPiCamera {
 	 * @param time An int specifying the timeout in milliseconds.
 	 */
 	public RPiCamera setTimeout(int time) {
-		options.put("timeout", new String[] { "-t", "" + time });
+		setOption("timeout", new String[] { "-t", "" + time });
 		return this;
 	}
 	
 	/**
 	 * Allows specification of the thumbnail image inserted in to the image file. 
-	 * If not specified, defaults are a size of 64x48 at quality 35.
+	 * If not specified, defaults are a size of 64x48 at quality 35. The thumbnail can be
+	 * read without decoding the image with {@link com.hopding.jrpicam.io.ExifThumbnail}.
 	 * 
 	 * @param x
 	 * @param y
 	 * @param quality
 	 */
 	public RPiCamera setThumbnailParams(int x, int y, int quality) {
-		options.put("thumb", new String[] { "-th", "" + x, ":", "" + y, ":", "" + quality });
+		// raspistill expects the parameters as a single "x:y:quality" argument
+		setOption("thumb", new String[] { "-th", x + ":" + y + ":" + quality });
 		return this;
 	}
 	
@@ -1071,7 +1881,7 @@ public class RPiCamera {
 	 * Turns off image thumbnails. Reduces image's file size slightly.
 	 */
 	public RPiCamera turnOffThumbnail() {
-		options.put("thumb", new String[] { "-th", "none" });
+		setOption("thumb", new String[] { "-th", "none" });
 		return this;
 	}
 	
@@ -1086,14 +1896,12 @@ public class RPiCamera {
 	 * @param encoding an Encoding enum specifying the desired image encoding.
 	 */
 	public RPiCamera setEncoding(Encoding encoding) {
-		options.put("encoding", new String[] { "-e", encoding.toString() });
+		setOption("encoding", new String[] { "-e", encoding.toString() });
 		return this;
 	}
 	
 	// TODO: ADD EXIF DATA OPTION HERE, NEED TO TEST ON RPI TERMINAL TO KNOW HOW TO IMPLEMENT
 	
-	// TODO: LOOK INTO THE SIGUSR1 (-s) OPTION - DON'T KNOW WHAT DOES OR IS FOR?
-	
 	// TODO: ADD METHOD FOR -gl OPTION
 	
 	// TODO: ADD METHOD FOR -gc CAPTURE OPTION
@@ -1110,7 +1918,7 @@ public class RPiCamera {
 			camNumber = 0;
 		else if (camNumber > 1)
 			camNumber = 1;
-		options.put("camselect", new String[] { "-cs", "" + camNumber });
+		setOption("camselect", new String[] { "-cs", "" + camNumber });
 		return this;
 	}
 	
@@ -1120,7 +1928,7 @@ public class RPiCamera {
 	 * capture.
 	 */
 	public RPiCamera enableBurst() {
-		options.put("burst", new String[] { "-bm" });
+		setOption("burst", new String[] { "-bm" });
 		return this;
 	}
 	
@@ -1128,7 +1936,7 @@ public class RPiCamera {
 	 * Turns off burst mode for RPiCamera.
 	 */
 	public RPiCamera disableBurst() {
-		options.put("burst", null);
+		setOption("burst", null);
 		return this;
 	}
 	
@@ -1145,7 +1953,7 @@ public class RPiCamera {
      * Would produce a file named "APicture1223140756" if executed on Dec 23rd, at 14:07:56.
      */
 	public RPiCamera setDateTimeOn() {
-		options.put("datetime", new String[] { "-dt" });
+		setOption("datetime", new String[] { "-dt" });
 		return this;
 	}
 
@@ -1153,7 +1961,7 @@ public class RPiCamera {
      * Disables effects of {@link #setDateTimeOn()}. This is default state of {@link RPiCamera}.
      */
 	public RPiCamera setDateTimeOff() {
-		options.put("datetime", null);
+		setOption("datetime", null);
 		return this;
 	}
 
@@ -1168,7 +1976,7 @@ public class RPiCamera {
      * Would produce a file named "APictureXXX", where XXX is the number of seconds since 1970.
      */
 	public RPiCamera setTimestampOn() {
-		options.put("timestamp", new String[] { "-ts" });
+		setOption("timestamp", new String[] { "-ts" });
 		return this;
 	}
 
@@ -1176,7 +1984,7 @@ public class RPiCamera {
      * Disables effects of {@link #setTimestampOn()}. This is default state of {@link RPiCamera}.
      */
 	public RPiCamera setTimestampOff() {
-		options.put("timestamp", null);
+		setOption("timestamp", null);
 		return this;
 	}
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,300 @@
+package com.hopding.jrpicam;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageIO;
+
+import com.hopding.jrpicam.io.JPEGFrameReader;
+
+/**
+ * RPiCameraSession keeps a single raspistill process running in signal mode ("-s") and
+ * triggers each capture by sending it a SIGUSR1. Because the camera is only initialised
+ * once, and AE/AWB have already settled by the time the first capture is requested, the
+ * time between shots drops from the several seconds it takes to start raspistill down to
+ * roughly one frame interval.
+ * <p>
+ * Sessions are created with {@link RPiCamera#openSession()}, and use the options of the
+ * RPiCamera that created them. If any of those options are changed while the session is
+ * open, the raspistill process is transparently restarted with the new options before the
+ * next capture. The raspistill timeout option is ignored, since the process runs until the
+ * session is closed. Images are always captured as JPEGs, regardless of the RPiCamera's
+ * encoding setting, since the other encodings are not hardware accelerated.
+ * <p>
+ * Each capture must complete within the RPiCamera's capture deadline (see
+ * {@link RPiCamera#setCaptureDeadline(long)}). If it doesn't, raspistill is killed, the
+ * capture fails with an IOException, and the next capture starts a new process.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * RPiCamera piCamera = new RPiCamera("/home/pi/Pictures")
+ *     .turnOffPreview();
+ *
+ * try (RPiCameraSession session = piCamera.openSession()) {
+ *     for (int i = 0; i < 10; i++) {
+ *         session.takeStill("Frame" + i + ".jpg");
+ *         System.out.println("Captured in " + session.getLastLatency() + "ms");
+ *     }
+ * }
+ *}
+ * </pre>
+ */
+public class RPiCameraSession implements Closeable {
+
+	// Maximum time to wait for raspistill to become ready for a signal
+	private static final long STARTUP_TIMEOUT_MS = 10000;
+	// Maximum time to wait for kill to deliver a signal
+	private static final long SIGNAL_TIMEOUT_MS = 5000;
+	// Maximum time to wait for an image, unless the RPiCamera has a capture deadline
+	private static final long CAPTURE_TIMEOUT_MS = 10000;
+
+	private final RPiCamera camera;
+	// Volatile so the deadline can be read while a capture holds the lock
+	private volatile CameraSettings settings;
+	private List<String> command;
+	private ProcessSupervisor.Child child;
+	private String pid;
+	private JPEGFrameReader reader;
+	private boolean closed;
+
+	private long captureCount;
+	private long lastLatencyNanos;
+	private long totalLatencyNanos;
+
+	RPiCameraSession(RPiCamera camera) throws IOException {
+		this.camera = camera;
+		start(camera.getSettings());
+	}
+
+	/**
+	 * Captures an image and saves it under the specified name to the RPiCamera's save directory.
+	 *
+	 * @param pictureName A String containing the name to save picture under.
+	 * @return A File object representing the full path the picture was saved to.
+	 * @throws IOException
+	 */
+	public synchronized File takeStill(String pictureName) throws IOException {
+		capture();
+		File file = new File(settings.getSaveDir() + File.separator + pictureName);
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(reader.getBuffer(), reader.getFrameOffset(), reader.getFrameLength());
+		}
+		return file;
+	}
+
+	/**
+	 * Captures an image and stores it in a BufferedImage object. The resulting image is NOT
+	 * saved anywhere in the Pi's memory.
+	 *
+	 * @return A BufferedImage containing the image.
+	 * @throws IOException
+	 */
+	public synchronized BufferedImage takeBufferedStill() throws IOException {
+		capture();
+		return ImageIO.read(new ByteArrayInputStream(
+				reader.getBuffer(), reader.getFrameOffset(), reader.getFrameLength()));
+	}
+
+	/**
+	 * Captures an image and returns its encoded JPEG bytes, without decoding them.
+	 *
+	 * @return A byte array containing the JPEG image.
+	 * @throws IOException
+	 */
+	public synchronized byte[] takeStillAsBytes() throws IOException {
+		capture();
+		byte[] jpeg = new byte[reader.getFrameLength()];
+		System.arraycopy(reader.getBuffer(), reader.getFrameOffset(), jpeg, 0, jpeg.length);
+		return jpeg;
+	}
+
+	/**
+	 * Gets the time taken by the most recent capture, measured from signalling raspistill to
+	 * having received the complete image.
+	 *
+	 * @return The latency of the last capture in milliseconds.
+	 */
+	public synchronized long getLastLatency() {
+		return TimeUnit.NANOSECONDS.toMillis(lastLatencyNanos);
+	}
+
+	/**
+	 * Gets the average latency of all captures taken by this session.
+	 *
+	 * @return The average capture latency in milliseconds, or 0 if no captures have been taken.
+	 */
+	public synchronized double getAverageLatency() {
+		if (captureCount == 0)
+			return 0;
+		return totalLatencyNanos / (double) captureCount / 1000000d;
+	}
+
+	/**
+	 * Gets the number of images captured by this session.
+	 *
+	 * @return The capture count.
+	 */
+	public synchronized long getCaptureCount() {
+		return captureCount;
+	}
+
+	/**
+	 * Stops the session's raspistill process. The session may not be used after it is closed.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		stop();
+	}
+
+	/**
+	 * Signals raspistill to capture an image and blocks until the whole image has been read
+	 * into the reader's buffer. raspistill is (re)started first if the RPiCamera's options
+	 * have changed or the process has died.
+	 */
+	private void capture() throws IOException {
+		if (closed)
+			throw new IOException("RPiCameraSession has been closed");
+		CameraSettings current = camera.getSettings();
+		if (current != settings) {
+			// Only a change to the command requires a restart (not, e.g., a new save directory)
+			if (!current.sessionCommand().equals(command)) {
+				stop();
+				start(current);
+			}
+			settings = current;
+		}
+		if (!isAlive()) {
+			stop();
+			start(current);
+		}
+		// raspistill runs with no timeout, so each capture is given a deadline of its own, after
+		// which the process is killed and restarted by the next capture
+		long deadline = getCaptureDeadline();
+		ProcessSupervisor.Child capturing = child;
+		ScheduledFuture<?> watchdog = capturing.killAfter(deadline);
+		long start = System.nanoTime();
+		boolean delivered;
+		try {
+			signal();
+			delivered = reader.next();
+		} catch (IOException e) {
+			stop();
+			if (capturing.isTimedOut())
+				throw timedOut(capturing, deadline);
+			throw e;
+		} finally {
+			watchdog.cancel(false);
+		}
+		if (!delivered) {
+			stop();
+			if (capturing.isTimedOut())
+				throw timedOut(capturing, deadline);
+			throw new IOException("raspistill exited before delivering an image. Last output:\n"
+					+ capturing.getErrorOutput());
+		}
+		lastLatencyNanos = System.nanoTime() - start;
+		totalLatencyNanos += lastLatencyNanos;
+		captureCount++;
+	}
+
+	/**
+	 * Gets the longest a capture may take before raspistill is killed.
+	 */
+	long getCaptureDeadline() {
+		long deadline = camera.getCaptureDeadline(settings);
+		return deadline == 0 ? CAPTURE_TIMEOUT_MS : deadline;
+	}
+
+	private static IOException timedOut(ProcessSupervisor.Child child, long deadline) {
+		return new IOException("raspistill did not deliver an image within " + deadline
+				+ "ms and was killed. Last output:\n" + child.getErrorOutput());
+	}
+
+	private void start(CameraSettings settings) throws IOException {
+		this.settings = settings;
+		this.command = settings.sessionCommand();
+		camera.setPrevCommand(command);
+		// Run raspistill through a shell that prints its own PID before exec'ing raspistill,
+		// since Java 8 offers no way to get the PID of a child process.
+		List<String> shellCommand = new ArrayList<>();
+		shellCommand.add("sh");
+		shellCommand.add("-c");
+		shellCommand.add("echo $$; exec \"$@\"");
+		shellCommand.add("sh");
+		shellCommand.addAll(command);
+		// raspistill ignores SIGUSR1 until it has initialised the camera, so wait for it to
+		// report that it is ready on stderr
+		final CountDownLatch ready = new CountDownLatch(1);
+		child = ProcessSupervisor.getDefault().start(shellCommand, 0, new Consumer<String>() {
+			public void accept(String line) {
+				if (line.contains("SIGUSR1"))
+					ready.countDown();
+			}
+		});
+
+		InputStream stdout = child.getInputStream();
+		pid = readLine(stdout);
+		reader = new JPEGFrameReader(stdout);
+
+		try {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STARTUP_TIMEOUT_MS);
+			while (!ready.await(50, TimeUnit.MILLISECONDS)) {
+				if (!isAlive() || System.nanoTime() > deadline) {
+					String output = child.getErrorOutput();
+					stop();
+					throw new IOException("raspistill failed to start in signal mode. Last output:\n" + output);
+				}
+			}
+		} catch (InterruptedException e) {
+			stop();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while starting raspistill", e);
+		}
+	}
+
+	private void signal() throws IOException {
+		try (ProcessSupervisor.Child kill = ProcessSupervisor.getDefault()
+				.start(Arrays.asList("kill", "-USR1", pid), SIGNAL_TIMEOUT_MS)) {
+			if (kill.waitFor() != 0)
+				throw new IOException("Failed to signal raspistill (pid " + pid + ")");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while signalling raspistill", e);
+		}
+	}
+
+	private boolean isAlive() {
+		return child != null && child.isAlive();
+	}
+
+	private void stop() {
+		if (child != null) {
+			child.destroy();
+			child.close();
+			child = null;
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1 && c != '\n')
+			sb.append((char) c);
+		return sb.toString().trim();
+	}
+}
@@ -0,0 +1,139 @@
+package com.hopding.jrpicam;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+import com.hopding.jrpicam.io.JPEGFrameReader;
+
+/**
+ * RPiCameraStream runs a single raspistill process in timelapse mode, writing a continuous
+ * sequence of JPEGs to stdout, and delivers each JPEG to a {@link FrameListener} as soon as
+ * it has been read. Frames are separated by a {@link JPEGFrameReader}, so no new process is
+ * started per frame and no memory is allocated per frame once the stream is running.
+ * <p>
+ * Streams are started with {@link RPiCamera#startStream(int, FrameListener)}. The listener is
+ * called on the stream's own thread, and should hand frames off quickly (or copy them) since
+ * raspistill is blocked while the listener runs.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * RPiCamera piCamera = new RPiCamera()
+ *     .setWidth(640)
+ *     .setHeight(480)
+ *     .turnOffPreview();
+ *
+ * // Capture a frame every 100ms until the stream is closed
+ * RPiCameraStream stream = piCamera.startStream(100, new FrameListener() {
+ *     public void onFrame(byte[] buffer, int offset, int length) {
+ *         try {
+ *             socket.getOutputStream().write(buffer, offset, length);
+ *         } catch (IOException e) {
+ *             // Client has gone away
+ *         }
+ *     }
+ * });
+ * ...
+ * stream.close();
+ *}
+ * </pre>
+ */
+public class RPiCameraStream implements Closeable {
+
+	private final ProcessSupervisor.Child child;
+	private final JPEGFrameReader reader;
+	private final FrameListener listener;
+	private final Thread thread;
+	private volatile long frameCount;
+	private volatile boolean closed;
+	private volatile Throwable failure;
+
+	RPiCameraStream(List<String> command, int expectedFrameSize, FrameListener listener) throws IOException {
+		this.listener = listener;
+		child = ProcessSupervisor.getDefault().start(command, 0);
+		reader = new JPEGFrameReader(child.getInputStream(), expectedFrameSize);
+		thread = new Thread(new Runnable() {
+			public void run() {
+				readFrames();
+			}
+		}, "raspistill-stream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Gets the number of frames delivered to the listener so far.
+	 *
+	 * @return The frame count.
+	 */
+	public long getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Indicates whether the stream is still delivering frames.
+	 *
+	 * @return true if raspistill is running and the stream has not been closed.
+	 */
+	public boolean isRunning() {
+		return thread.isAlive();
+	}
+
+	/**
+	 * Gets the exception that stopped the stream, if it stopped because raspistill's output
+	 * could not be read or because the listener threw an exception.
+	 *
+	 * @return The Throwable that stopped the stream, or null.
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Blocks until the stream stops, either because it was closed or because raspistill exited.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void await() throws InterruptedException {
+		thread.join();
+	}
+
+	/**
+	 * Stops raspistill and waits for the stream's thread to finish. No frames are delivered to
+	 * the listener after this method returns.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		child.destroy();
+		try {
+			if (thread != Thread.currentThread())
+				thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void readFrames() {
+		try {
+			while (!closed && reader.next()) {
+				listener.onFrame(reader.getBuffer(), reader.getFrameOffset(), reader.getFrameLength());
+				frameCount++;
+			}
+		} catch (IOException e) {
+			// Reading fails when the process is destroyed by close(), which isn't a failure
+			if (!closed)
+				failure = e;
+		} catch (RuntimeException e) {
+			failure = e;
+		} finally {
+			child.destroy();
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// Ignore, stream is finished either way
+			}
+		}
+	}
+}
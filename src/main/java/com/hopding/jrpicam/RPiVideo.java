@@ -0,0 +1,289 @@
+package com.hopding.jrpicam;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.hopding.jrpicam.io.H264FrameReader;
+
+/**
+ * RPiVideo records H.264 video with raspivid and delivers it, frame by frame, to any number of
+ * subscribers. Encoding is done by the Pi's hardware encoder, so continuously monitoring the
+ * camera this way is far cheaper than repeatedly taking stills.
+ * <p>
+ * An RPiVideo takes its camera settings from an RPiCamera, so the RPiCamera's setters are used
+ * to configure the video as well: width, height, rotation, flips, AWB, exposure, and any other
+ * options raspivid shares with raspistill. Options that only apply to stills (e.g. quality,
+ * encoding and timeout) are ignored. The settings are read when the video is started.
+ * Video-only settings such as bitrate and framerate are set on the RPiVideo itself.
+ * <p>
+ * raspivid's output is split into frames by an {@link H264FrameReader}. Frames are delivered on
+ * the video's own thread, from a buffer that is reused for every frame, so subscribers should
+ * hand frames off quickly (or copy them). A subscriber added while the video is running
+ * receives frames starting from the next keyframe, so the first frame it sees can always be
+ * decoded.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * RPiCamera piCamera = new RPiCamera()
+ *     .setWidth(1280)
+ *     .setHeight(720)
+ *     .setVerticalFlipOn()
+ *     .turnOffPreview();
+ *
+ * final RPiVideo video = new RPiVideo(piCamera)
+ *     .setFramerate(30)
+ *     .setBitrate(4000000);
+ * video.subscribe(new VideoFrameListener() {
+ *     public void onFrame(byte[] buffer, int offset, int length, boolean keyFrame) {
+ *         try {
+ *             out.write(buffer, offset, length);
+ *         } catch (IOException e) {
+ *             video.close();
+ *         }
+ *     }
+ * });
+ * video.start();
+ * ...
+ * video.close();
+ *}
+ * </pre>
+ */
+public class RPiVideo implements Closeable {
+
+	/**
+	 * A subscriber, and whether it has received a keyframe yet.
+	 */
+	private static class Subscriber {
+		final VideoFrameListener listener;
+		boolean synced;
+
+		Subscriber(VideoFrameListener listener) {
+			this.listener = listener;
+		}
+	}
+
+	private final RPiCamera camera;
+	private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+	private int bitrate;
+	private int framerate;
+	private int intraPeriod;
+
+	private ProcessSupervisor.Child child;
+	private H264FrameReader reader;
+	private Thread thread;
+	private volatile long frameCount;
+	private volatile long keyFrameCount;
+	private volatile boolean closed;
+	private volatile Throwable failure;
+
+	/**
+	 * Creates a new RPiVideo that records with the specified RPiCamera's settings.
+	 *
+	 * @param camera The RPiCamera whose settings to use.
+	 */
+	public RPiVideo(RPiCamera camera) {
+		this.camera = camera;
+	}
+
+	/**
+	 * Sets the bitrate of the video.
+	 *
+	 * @param bitrate An int specifying the bitrate in bits per second, e.g. 10000000 for 10Mbit/s,
+	 *                or 0 for raspivid's default.
+	 */
+	public RPiVideo setBitrate(int bitrate) {
+		this.bitrate = bitrate;
+		return this;
+	}
+
+	/**
+	 * Sets the framerate of the video.
+	 *
+	 * @param framerate An int specifying the number of frames per second, or 0 for raspivid's
+	 *                  default.
+	 */
+	public RPiVideo setFramerate(int framerate) {
+		this.framerate = framerate;
+		return this;
+	}
+
+	/**
+	 * Sets the number of frames between keyframes. Shorter intra periods let new subscribers
+	 * start sooner at the cost of a higher bitrate.
+	 *
+	 * @param intraPeriod An int specifying the keyframe interval in frames, or 0 for raspivid's
+	 *                    default.
+	 */
+	public RPiVideo setIntraPeriod(int intraPeriod) {
+		this.intraPeriod = intraPeriod;
+		return this;
+	}
+
+	/**
+	 * Adds a subscriber. If the video is running, the subscriber receives frames starting from
+	 * the next keyframe.
+	 *
+	 * @param listener The VideoFrameListener to deliver frames to.
+	 */
+	public void subscribe(VideoFrameListener listener) {
+		subscribers.add(new Subscriber(listener));
+	}
+
+	/**
+	 * Removes a subscriber. No frames are delivered to it after this method returns, unless it is
+	 * currently receiving one.
+	 *
+	 * @param listener The VideoFrameListener to remove.
+	 */
+	public void unsubscribe(VideoFrameListener listener) {
+		for (Subscriber subscriber : subscribers) {
+			if (subscriber.listener == listener)
+				subscribers.remove(subscriber);
+		}
+	}
+
+	/**
+	 * Starts raspivid with the RPiCamera's current settings. An RPiVideo can only be started once.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		if (thread != null || closed)
+			throw new IllegalStateException("RPiVideo has already been started");
+		CameraSettings settings = camera.getSettings();
+		List<String> videoArgs = new ArrayList<>();
+		if (bitrate > 0)
+			add(videoArgs, "-b", bitrate);
+		if (framerate > 0)
+			add(videoArgs, "-fps", framerate);
+		if (intraPeriod > 0)
+			add(videoArgs, "-g", intraPeriod);
+		List<String> command = settings.videoCommand(videoArgs.toArray(new String[videoArgs.size()]));
+		camera.setPrevCommand(command);
+		child = ProcessSupervisor.getDefault().start(command, 0);
+		// Size the frame buffer for a large keyframe, so it rarely needs to grow
+		reader = new H264FrameReader(child.getInputStream(), settings.getWidth() * settings.getHeight());
+		thread = new Thread(new Runnable() {
+			public void run() {
+				readFrames();
+			}
+		}, "raspivid-stream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Gets the number of frames delivered so far.
+	 *
+	 * @return The frame count.
+	 */
+	public long getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Gets the number of keyframes delivered so far.
+	 *
+	 * @return The keyframe count.
+	 */
+	public long getKeyFrameCount() {
+		return keyFrameCount;
+	}
+
+	/**
+	 * Indicates whether the video is still running.
+	 *
+	 * @return true if raspivid is running and the video has not been closed.
+	 */
+	public synchronized boolean isRunning() {
+		return thread != null && thread.isAlive();
+	}
+
+	/**
+	 * Gets the exception that stopped the video, if it stopped because raspivid's output could
+	 * not be read or because a subscriber threw an exception.
+	 *
+	 * @return The Throwable that stopped the video, or null.
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Blocks until the video stops, either because it was closed or because raspivid exited.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void await() throws InterruptedException {
+		Thread thread;
+		synchronized (this) {
+			thread = this.thread;
+		}
+		if (thread != null)
+			thread.join();
+	}
+
+	/**
+	 * Stops raspivid and waits for the video's thread to finish. No frames are delivered to
+	 * subscribers after this method returns.
+	 */
+	@Override
+	public void close() {
+		Thread thread;
+		synchronized (this) {
+			closed = true;
+			thread = this.thread;
+			if (child != null)
+				child.destroy();
+		}
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void readFrames() {
+		try {
+			while (!closed && reader.next()) {
+				boolean keyFrame = reader.isKeyFrame();
+				for (Subscriber subscriber : subscribers) {
+					if (!subscriber.synced) {
+						if (!keyFrame)
+							continue;
+						subscriber.synced = true;
+					}
+					subscriber.listener.onFrame(reader.getBuffer(), reader.getFrameOffset(),
+							reader.getFrameLength(), keyFrame);
+				}
+				frameCount++;
+				if (keyFrame)
+					keyFrameCount++;
+			}
+		} catch (IOException e) {
+			// Reading fails when the process is destroyed by close(), which isn't a failure
+			if (!closed)
+				failure = e;
+		} catch (RuntimeException e) {
+			failure = e;
+		} finally {
+			child.destroy();
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// Ignore, video is finished either way
+			}
+		}
+	}
+
+	private static void add(List<String> args, String flag, int value) {
+		args.add(flag);
+		args.add("" + value);
+	}
+}
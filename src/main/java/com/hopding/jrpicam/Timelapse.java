@@ -0,0 +1,400 @@
+package com.hopding.jrpicam;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.hopding.jrpicam.store.FrameStore;
+
+/**
+ * Timelapse takes a series of images at a fixed interval, like {@link RPiCamera#timelapse(boolean,
+ * String, int)}, but schedules the captures itself rather than leaving them to raspistill, so
+ * every frame, its timing and any failure can be observed as the timelapse runs.
+ * <p>
+ * Captures are taken with an {@link RPiCameraSession}, so the camera is only initialised once.
+ * Each capture is scheduled against a monotonic clock at start + n * interval, so a capture
+ * that runs late doesn't delay the ones after it. If capturing falls so far behind that a
+ * scheduled time has already passed, the frame is skipped rather than taken late, and counted
+ * as dropped. Images are written to disk on a separate thread while the next one is captured.
+ * <p>
+ * As with {@link RPiCamera#timelapse(boolean, String, int)}, images are saved to the RPiCamera's
+ * save directory, and their names should contain "%04d", which is replaced by the frame number.
+ * Alternatively, images can be appended to a {@link FrameStore}, which avoids creating a file
+ * for every image.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * RPiCamera piCamera = new RPiCamera("/home/pi/Pictures").turnOffPreview();
+ *
+ * // An image every 2 seconds for an hour
+ * Timelapse timelapse = new Timelapse(piCamera, "Frame%04d.jpg", 2000)
+ *     .setDuration(60 * 60 * 1000);
+ * timelapse.start();
+ * timelapse.await();
+ * System.out.println(timelapse.getCapturedCount() + " frames, "
+ *     + timelapse.getDroppedCount() + " dropped, "
+ *     + timelapse.getJitter() + "ms jitter");
+ *}
+ * </pre>
+ */
+public class Timelapse implements Closeable {
+
+	/**
+	 * A Listener is told about each frame of a Timelapse once it has been saved, and about each
+	 * capture that failed. Listeners are called on the timelapse's writer thread.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called once a frame has been saved.
+		 *
+		 * @param frame The frame number.
+		 * @param file The File the frame was saved to, or null if it was appended to a FrameStore.
+		 * @param lateness The time between when the frame was scheduled and when it was taken,
+		 *                 in milliseconds.
+		 */
+		void onFrame(int frame, File file, double lateness);
+
+		/**
+		 * Called when a frame couldn't be captured or saved.
+		 *
+		 * @param frame The frame number.
+		 * @param e The exception that caused the failure.
+		 */
+		void onFailure(int frame, Exception e);
+	}
+
+	// Number of frames that may wait to be written before capturing waits for the disk
+	private static final int MAX_PENDING_WRITES = 4;
+
+	// How long close() waits beyond a capture's deadline for frames to be saved
+	private static final long CLOSE_SLACK_MS = 5000;
+
+	private final RPiCamera camera;
+	private final String pictureName;
+	private final FrameStore store;
+	private final long intervalNanos;
+	private long durationNanos;
+	private int frameLimit;
+	private Listener listener;
+
+	private String saveDir;
+	private RPiCameraSession session;
+	private ExecutorService writer;
+	private Thread thread;
+	private final Semaphore pendingWrites = new Semaphore(MAX_PENDING_WRITES);
+	private volatile boolean closed;
+
+	// Statistics, guarded by this
+	private int captured;
+	private long dropped;
+	private long failed;
+	private long firstCapture;
+	private long lastCapture;
+	private double latenessSum;
+	private double latenessSquares;
+	private double maxLateness;
+
+	/**
+	 * Creates a new Timelapse. The RPiCamera's settings are read when the timelapse is started.
+	 *
+	 * @param camera The RPiCamera to capture images with.
+	 * @param pictureName A String containing the name for each image, including "%04d".
+	 * @param interval A long specifying the time between captures in milliseconds.
+	 */
+	public Timelapse(RPiCamera camera, String pictureName, long interval) {
+		this.camera = camera;
+		this.pictureName = pictureName.contains("%04d") ? pictureName : "%04d" + pictureName;
+		this.store = null;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+	}
+
+	/**
+	 * Creates a new Timelapse that appends its images to a FrameStore instead of saving each one
+	 * to a file. The RPiCamera's settings are read when the timelapse is started.
+	 *
+	 * @param camera The RPiCamera to capture images with.
+	 * @param store The FrameStore to append images to.
+	 * @param interval A long specifying the time between captures in milliseconds.
+	 */
+	public Timelapse(RPiCamera camera, FrameStore store, long interval) {
+		this.camera = camera;
+		this.pictureName = null;
+		this.store = store;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+	}
+
+	/**
+	 * Sets how long the timelapse runs for. By default, it runs until it is closed.
+	 *
+	 * @param duration A long specifying the duration in milliseconds, or 0 for no limit.
+	 */
+	public Timelapse setDuration(long duration) {
+		this.durationNanos = TimeUnit.MILLISECONDS.toNanos(duration);
+		return this;
+	}
+
+	/**
+	 * Sets the number of frames to capture. By default, the timelapse runs until it is closed.
+	 *
+	 * @param frames An int specifying the number of frames, or 0 for no limit.
+	 */
+	public Timelapse setFrameLimit(int frames) {
+		this.frameLimit = frames;
+		return this;
+	}
+
+	/**
+	 * Sets the Listener told about each frame and failure.
+	 *
+	 * @param listener The Listener, or null.
+	 */
+	public Timelapse setListener(Listener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * Opens a capture session and starts the timelapse. A Timelapse can only be started once.
+	 *
+	 * @throws IOException if the capture session couldn't be opened.
+	 */
+	public synchronized void start() throws IOException {
+		if (thread != null || closed)
+			throw new IllegalStateException("Timelapse has already been started");
+		saveDir = camera.getSaveDir();
+		session = camera.openSession();
+		writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "jrpicam-timelapse-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		thread = new Thread(new Runnable() {
+			public void run() {
+				runCaptures();
+			}
+		}, "jrpicam-timelapse");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Blocks until the timelapse finishes and every frame has been saved.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void await() throws InterruptedException {
+		Thread thread;
+		synchronized (this) {
+			thread = this.thread;
+		}
+		if (thread != null)
+			thread.join();
+	}
+
+	/**
+	 * Stops the timelapse. Frames already captured are still saved.
+	 * <p>
+	 * A capture in progress is allowed to finish, so this can block for up to the camera's
+	 * capture deadline (see {@link RPiCamera#setCaptureDeadline(long)}), plus a few seconds for
+	 * saving frames. If the capture thread is still running after that, it is left to finish
+	 * in the background.
+	 */
+	@Override
+	public void close() {
+		Thread thread;
+		RPiCameraSession session;
+		synchronized (this) {
+			closed = true;
+			thread = this.thread;
+			session = this.session;
+		}
+		if (thread != null && thread != Thread.currentThread()) {
+			LockSupport.unpark(thread);
+			try {
+				// The session kills raspistill once a capture overruns its deadline
+				thread.join(session.getCaptureDeadline() + CLOSE_SLACK_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Indicates whether the timelapse is still running.
+	 *
+	 * @return true if frames are still being captured or saved.
+	 */
+	public synchronized boolean isRunning() {
+		return thread != null && thread.isAlive();
+	}
+
+	/**
+	 * Gets the number of frames captured.
+	 *
+	 * @return The captured frame count.
+	 */
+	public synchronized int getCapturedCount() {
+		return captured;
+	}
+
+	/**
+	 * Gets the number of frames skipped because capturing fell behind schedule.
+	 *
+	 * @return The dropped frame count.
+	 */
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Gets the number of frames that couldn't be captured or saved.
+	 *
+	 * @return The failed frame count.
+	 */
+	public synchronized long getFailedCount() {
+		return failed;
+	}
+
+	/**
+	 * Gets the average time between captures actually achieved. Ideally, this is the interval
+	 * the timelapse was created with.
+	 *
+	 * @return The average interval in milliseconds, or 0 if fewer than 2 frames were captured.
+	 */
+	public synchronized double getAverageInterval() {
+		if (captured < 2)
+			return 0;
+		return (lastCapture - firstCapture) / 1000000d / (captured - 1);
+	}
+
+	/**
+	 * Gets the jitter of the captures, measured as the standard deviation of how late each
+	 * capture started relative to its scheduled time.
+	 *
+	 * @return The jitter in milliseconds.
+	 */
+	public synchronized double getJitter() {
+		if (captured == 0)
+			return 0;
+		double mean = latenessSum / captured;
+		return Math.sqrt(Math.max(0, latenessSquares / captured - mean * mean));
+	}
+
+	/**
+	 * Gets the latest any capture started relative to its scheduled time.
+	 *
+	 * @return The maximum lateness in milliseconds.
+	 */
+	public synchronized double getMaxLateness() {
+		return maxLateness;
+	}
+
+	private void runCaptures() {
+		try {
+			long start = System.nanoTime();
+			long slot = 0;
+			int frame = 0;
+			while (!closed && (frameLimit == 0 || frame < frameLimit)) {
+				long target = start + slot * intervalNanos;
+				if (durationNanos > 0 && target - start > durationNanos)
+					break;
+				long wait;
+				while (!closed && (wait = target - System.nanoTime()) > 0)
+					LockSupport.parkNanos(this, wait);
+				if (closed)
+					break;
+
+				// Don't capture faster than frames can be written
+				pendingWrites.acquireUninterruptibly();
+				long taken = System.nanoTime();
+				long time = System.currentTimeMillis();
+				final int number = frame++;
+				try {
+					byte[] jpeg = session.takeStillAsBytes();
+					recordCapture(taken, (taken - target) / 1000000d);
+					save(number, jpeg, time, (taken - target) / 1000000d);
+				} catch (final IOException | RuntimeException e) {
+					pendingWrites.release();
+					// Report on the writer thread, so the listener sees frames in order
+					writer.execute(new Runnable() {
+						public void run() {
+							recordFailure(number, e);
+						}
+					});
+				}
+
+				// Skip any slots whose time has already passed
+				long next = (System.nanoTime() - start) / intervalNanos + 1;
+				synchronized (this) {
+					dropped += next - slot - 1;
+				}
+				slot = next;
+			}
+		} finally {
+			session.close();
+			writer.shutdown();
+			try {
+				writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void save(final int number, final byte[] jpeg, final long time, final double lateness) {
+		writer.execute(new Runnable() {
+			public void run() {
+				File file = null;
+				try {
+					if (store != null) {
+						store.append(jpeg, 0, jpeg.length, time);
+					} else {
+						file = new File(saveDir, String.format(pictureName, number));
+						try (OutputStream out = new FileOutputStream(file)) {
+							out.write(jpeg);
+						}
+					}
+				} catch (IOException e) {
+					recordFailure(number, e);
+					return;
+				} finally {
+					pendingWrites.release();
+				}
+				Listener listener = Timelapse.this.listener;
+				if (listener != null)
+					listener.onFrame(number, file, lateness);
+			}
+		});
+	}
+
+	private synchronized void recordCapture(long taken, double lateness) {
+		if (captured == 0)
+			firstCapture = taken;
+		lastCapture = taken;
+		captured++;
+		latenessSum += lateness;
+		latenessSquares += lateness * lateness;
+		maxLateness = Math.max(maxLateness, lateness);
+	}
+
+	private void recordFailure(int number, Exception e) {
+		synchronized (this) {
+			failed++;
+		}
+		Listener listener = this.listener;
+		if (listener != null)
+			listener.onFailure(number, e);
+	}
+}
@@ -0,0 +1,377 @@
+package com.hopding.jrpicam;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * TimelapseWatcher reports the images of a timelapse started with
+ * {@link RPiCamera#timelapse(boolean, String, int)} as raspistill saves them, without scanning
+ * the save directory, which becomes slow once it holds thousands of images.
+ * <p>
+ * The save directory is watched with a {@link WatchService}, which is told about new files by
+ * the operating system. Files whose names match the timelapse's picture name are queued, in
+ * frame number order, once raspistill has finished writing them. An image is complete when:
+ * <ul>
+ * <li>raspistill renames it into place from the temporary "name~" file it writes to;</li>
+ * <li>the next frame appears, as raspistill writes one image at a time; or</li>
+ * <li>it has not been written to for the settle time.</li>
+ * </ul>
+ * <p>
+ * Files already in the save directory when the watcher starts are ignored, so the watcher
+ * should be started before the timelapse. A TimelapseWatcher follows a single timelapse.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * RPiCamera piCamera = new RPiCamera("/home/pi/Pictures").setTimeout(60000);
+ *
+ * TimelapseWatcher watcher = new TimelapseWatcher(piCamera, "Frame%04d.jpg");
+ * watcher.start();
+ * piCamera.timelapse(false, "Frame%04d.jpg", 1000);
+ *
+ * File frame;
+ * while ((frame = watcher.take()) != null)
+ *     upload(frame); // Each frame as soon as it has been saved
+ *}
+ * </pre>
+ * Another thread (or a shutdown hook) closes the watcher when the timelapse is over, which
+ * makes {@link #take()} return null once every queued frame has been taken.
+ */
+public class TimelapseWatcher implements Closeable {
+
+	private static final long DEFAULT_SETTLE_TIME = 1000;
+
+	// Queued after the last frame, to tell consumers the watcher has closed
+	private static final File END = new File("");
+
+	/**
+	 * A frame that has been seen but not queued yet.
+	 */
+	private static class Pending {
+		private final Path path;
+		private boolean temporary; // Written as "name~", to be renamed into place
+		private boolean renamed;   // Renamed into place, so complete
+		private boolean exists;    // The final name has been seen
+		private long lastChange;   // System.nanoTime() of the last event
+
+		Pending(Path path) {
+			this.path = path;
+		}
+	}
+
+	private final Path dir;
+	private final Pattern pattern;
+	private long settleNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SETTLE_TIME);
+
+	private final BlockingQueue<File> queue = new LinkedBlockingQueue<>();
+	private final TreeMap<Integer, Pending> pending = new TreeMap<>();
+	private int lastQueued = -1;
+
+	private WatchService watcher;
+	private Thread thread;
+	private volatile boolean closed;
+	private volatile IOException failure;
+
+	/**
+	 * Creates a new TimelapseWatcher for a timelapse saved to the specified RPiCamera's save
+	 * directory.
+	 *
+	 * @param camera The RPiCamera taking the timelapse.
+	 * @param pictureName The name passed to {@link RPiCamera#timelapse(boolean, String, int)}.
+	 */
+	public TimelapseWatcher(RPiCamera camera, String pictureName) {
+		this(camera.getSaveDir(), pictureName);
+	}
+
+	/**
+	 * Creates a new TimelapseWatcher for a timelapse saved to the specified directory.
+	 *
+	 * @param saveDir A String specifying the directory the timelapse is saved to.
+	 * @param pictureName The name passed to {@link RPiCamera#timelapse(boolean, String, int)}.
+	 */
+	public TimelapseWatcher(String saveDir, String pictureName) {
+		this.dir = Paths.get(saveDir);
+		if (!pictureName.contains("%04d"))
+			pictureName = "%04d" + pictureName;
+		// raspistill formats frame numbers with "%04d", so frame 10000 onwards has 5 digits
+		int i = pictureName.indexOf("%04d");
+		this.pattern = Pattern.compile(Pattern.quote(pictureName.substring(0, i)) + "(\\d{4,})"
+				+ Pattern.quote(pictureName.substring(i + 4)) + "(~?)");
+	}
+
+	/**
+	 * Sets how long a file must go without being written to before it is considered complete,
+	 * if raspistill doesn't rename it into place and no later frame has appeared. This only
+	 * delays the last frame of a timelapse, and should be longer than an image takes to save.
+	 *
+	 * @param settleTime A long specifying the settle time in milliseconds. The default is 1000.
+	 */
+	public synchronized TimelapseWatcher setSettleTime(long settleTime) {
+		this.settleNanos = TimeUnit.MILLISECONDS.toNanos(settleTime);
+		return this;
+	}
+
+	/**
+	 * Starts watching the save directory.
+	 *
+	 * @throws IOException if the directory couldn't be watched.
+	 */
+	public synchronized void start() throws IOException {
+		if (thread != null || closed)
+			throw new IllegalStateException("TimelapseWatcher has already been started");
+		watcher = dir.getFileSystem().newWatchService();
+		try {
+			dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+		} catch (IOException | RuntimeException e) {
+			watcher.close();
+			throw e;
+		}
+		thread = new Thread(new Runnable() {
+			public void run() {
+				watch();
+			}
+		}, "jrpicam-timelapse-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Gets the next frame, waiting for one to be saved if necessary.
+	 *
+	 * @return The next frame's File, or null if the watcher has been closed and every frame
+	 *         has been taken.
+	 * @throws InterruptedException
+	 */
+	public File take() throws InterruptedException {
+		File file = queue.take();
+		if (file == END) {
+			queue.add(END); // For any other consumers
+			return null;
+		}
+		return file;
+	}
+
+	/**
+	 * Gets the next frame, waiting up to the specified time for one to be saved.
+	 *
+	 * @param timeout A long specifying how long to wait, in units of unit.
+	 * @param unit The TimeUnit of timeout.
+	 * @return The next frame's File, or null if none was saved in time, or the watcher has
+	 *         been closed and every frame has been taken.
+	 * @throws InterruptedException
+	 */
+	public File poll(long timeout, TimeUnit unit) throws InterruptedException {
+		File file = queue.poll(timeout, unit);
+		if (file == END) {
+			queue.add(END);
+			return null;
+		}
+		return file;
+	}
+
+	/**
+	 * Indicates whether the save directory is still being watched.
+	 *
+	 * @return true if the watcher is running.
+	 */
+	public synchronized boolean isRunning() {
+		return thread != null && thread.isAlive();
+	}
+
+	/**
+	 * Gets the exception that stopped the watcher, if watching the directory failed.
+	 *
+	 * @return The IOException, or null.
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Stops watching the save directory, which should be done once the timelapse has finished.
+	 * Frames that have been seen but not yet queued, such as the last frame while it settles,
+	 * are queued, and {@link #take()} returns null once every frame has been taken.
+	 */
+	@Override
+	public void close() {
+		Thread thread;
+		synchronized (this) {
+			closed = true;
+			thread = this.thread;
+		}
+		if (thread == null) {
+			queue.add(END);
+			return;
+		}
+		try {
+			watcher.close(); // Wakes the watching thread
+		} catch (IOException e) {
+			// Ignore, the watcher is closed anyway
+		}
+		if (thread != Thread.currentThread()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void watch() {
+		try {
+			while (!closed) {
+				WatchKey key = pending.isEmpty() ? watcher.take()
+						: watcher.poll(nextSettle() - System.nanoTime(), TimeUnit.NANOSECONDS);
+				if (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == OVERFLOW)
+							rescan();
+						else
+							onEvent((Path) event.context(), event.kind() == ENTRY_CREATE);
+					}
+					if (!key.reset()) {
+						failure = new IOException("Save directory " + dir + " is no longer accessible");
+						break;
+					}
+				}
+				queueComplete();
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Closed
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			// The timelapse is over, so frames still settling are complete
+			for (Pending frame : pending.values()) {
+				if (frame.exists)
+					queue.add(frame.path.toFile());
+			}
+			pending.clear();
+			queue.add(END);
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	private void onEvent(Path name, boolean created) {
+		Matcher matcher = pattern.matcher(name.toString());
+		if (!matcher.matches())
+			return;
+		int number;
+		try {
+			number = Integer.parseInt(matcher.group(1));
+		} catch (NumberFormatException e) {
+			return;
+		}
+		if (number <= lastQueued)
+			return; // Already queued, e.g. a late modification event
+		boolean temporary = !matcher.group(2).isEmpty();
+		Pending frame = pending.get(number);
+		if (frame == null) {
+			String fileName = name.toString();
+			if (temporary)
+				fileName = fileName.substring(0, fileName.length() - 1);
+			frame = new Pending(dir.resolve(fileName));
+			pending.put(number, frame);
+		}
+		frame.lastChange = System.nanoTime();
+		if (temporary) {
+			frame.temporary = true;
+		} else {
+			// Renaming the temporary file creates the final one
+			if (created && frame.temporary)
+				frame.renamed = true;
+			frame.exists = true;
+		}
+	}
+
+	/**
+	 * Moves complete frames from pending to the queue, in frame number order.
+	 */
+	private void queueComplete() {
+		long now = System.nanoTime();
+		long settle;
+		synchronized (this) {
+			settle = settleNanos;
+		}
+		Iterator<Map.Entry<Integer, Pending>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, Pending> entry = it.next();
+			Pending frame = entry.getValue();
+			boolean settled = now - frame.lastChange >= settle;
+			if (!frame.exists) {
+				// Only "name~" has been seen. raspistill renames it before starting the next
+				// image, so once a later image is saved, or it has settled, it never will be
+				if (!settled && !laterFrameExists(entry.getKey()))
+					break; // Keep capture order
+				lastQueued = entry.getKey();
+				it.remove();
+				continue;
+			}
+			// raspistill finishes each image before starting the next
+			boolean laterFrame = pending.higherKey(entry.getKey()) != null;
+			if (!frame.renamed && !laterFrame && !settled)
+				break; // Keep capture order
+			queue.add(frame.path.toFile());
+			lastQueued = entry.getKey();
+			it.remove();
+		}
+	}
+
+	private boolean laterFrameExists(int number) {
+		for (Pending frame : pending.tailMap(number, false).values()) {
+			if (frame.exists)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets when the first pending frame settles. After {@link #queueComplete()} this is always
+	 * in the future, as a frame that has settled is queued or dropped.
+	 */
+	private long nextSettle() {
+		long settle;
+		synchronized (this) {
+			settle = settleNanos;
+		}
+		return pending.firstEntry().getValue().lastChange + settle;
+	}
+
+	/**
+	 * Finds frames whose events were lost because too many arrived at once. This is the only
+	 * time the directory is listed.
+	 */
+	private void rescan() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path path : files)
+				onEvent(path.getFileName(), false);
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package com.hopding.jrpicam;
+
+/**
+ * A VideoFrameListener receives H.264 frames from an {@link RPiVideo}.
+ * <p>
+ * Each frame is one access unit in Annex-B format, start codes included. Keyframes are preceded
+ * by the stream's SPS and PPS, so a listener can start decoding at any keyframe. As with
+ * {@link FrameListener}, frames are delivered as a region of a buffer that is reused for
+ * subsequent frames, and are only valid for the duration of the call to
+ * {@link #onFrame(byte[], int, int, boolean)}; listeners that need to keep a frame must copy it.
+ */
+public interface VideoFrameListener {
+
+	/**
+	 * Called once for each frame of video.
+	 *
+	 * @param buffer The buffer containing the frame.
+	 * @param offset The offset of the frame's first byte within the buffer.
+	 * @param length The length of the frame in bytes.
+	 * @param keyFrame true if the frame is a keyframe, which can be decoded on its own.
+	 */
+	void onFrame(byte[] buffer, int offset, int length, boolean keyFrame);
+}
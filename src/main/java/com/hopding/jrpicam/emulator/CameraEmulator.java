@@ -0,0 +1,800 @@
+package com.hopding.jrpicam.emulator;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSource;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * CameraEmulator stands in for raspistill, raspiyuv, raspivid and vcgencmd, so that code using
+ * JRPiCam can be run, and load tested, on machines without a camera, such as x86 CI servers.
+ * {@link #install(File)} writes a launcher script for each tool to a directory; an RPiCamera
+ * created with that directory as its tool directory (see
+ * {@link com.hopding.jrpicam.RPiCamera#RPiCamera(String, String)}), or any RPiCamera when the
+ * {@value com.hopding.jrpicam.CameraProbe#TOOL_DIR_PROPERTY} system property names it, then
+ * runs the emulated tools as child processes exactly as it would the real ones.
+ * <p>
+ * The emulated tools accept the same options as the real ones, and honor the ones that
+ * change what they output or when: the image size, encoding, quality and thumbnail, the
+ * output file or stdout, the timeout, timelapse interval, signal mode ("-s"), raw Bayer data
+ * ("-r"), raspiyuv's RGB, YUV420 and luma-only layouts, and raspivid's frame rate, keyframe
+ * interval and inline headers. Every other option is accepted and ignored. Frames show a
+ * deterministic test pattern of colour bars, with a box that moves across the image from one
+ * frame to the next. raspivid writes valid H.264 that any decoder can play, but doesn't
+ * compress it: keyframes are stored uncompressed, and every other frame repeats the last
+ * keyframe.
+ * <p>
+ * Each run of a tool first waits for the startup delay, standing in for the camera's own
+ * initialisation, and produces frames no faster than the frame rate. Faults can be injected
+ * into captures at a configurable rate: a hang writes part of a frame and then doesn't exit
+ * until it is killed, and a crash writes part of a frame, prints an error like the real
+ * tools' and exits with a status of {@value #CRASH_STATUS}. RPiCamera's single image captures
+ * report a crash as an IOException holding that error, and kill a hang at the capture's
+ * deadline. Which captures fail is decided by the seed and the number of captures made since
+ * the emulator was installed, so a test run in the same order fails in the same places every
+ * time.
+ * <p>
+ * The launcher scripts are POSIX shell scripts that start a JVM for every run of a tool, using
+ * the JVM and classpath this class was loaded from, which adds around 100ms to every capture.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * File tools = new CameraEmulator()
+ *     .setStartupDelay(200)
+ *     .setHangRate(0.01)
+ *     .install(new File("/tmp/emulator"));
+ * RPiCamera piCamera = new RPiCamera("/tmp/pictures", tools.getPath());
+ * BufferedImage image = piCamera.takeBufferedStill();
+ *}
+ * </pre>
+ */
+public final class CameraEmulator {
+
+	/**
+	 * The exit status of an emulated tool that crashes.
+	 */
+	public static final int CRASH_STATUS = 70;
+
+	// The exit status of a hung tool that exits on its own, as if it had been killed by SIGKILL
+	private static final int KILLED_STATUS = 137;
+
+	private static final String VERSION = "v1.3.11";
+
+	private static final String PROPERTY_PREFIX = "jrpicam.emulator.";
+	private static final String SEQUENCE_FILE = ".sequence";
+
+	// Options of the real tools that take a value, among those the emulator honors
+	private static final Set<String> VALUE_OPTIONS = new HashSet<>();
+
+	static {
+		String[] options = { "-w", "-h", "-q", "-o", "-t", "-tl", "-e", "-th", "-l", "-fps", "-g" };
+		for (String option : options)
+			VALUE_OPTIONS.add(option);
+	}
+
+	// The V2 camera's raw block, which "-r" appends to stills
+	private static final int RAW_WIDTH = 3280;
+	private static final int RAW_HEIGHT = 2464;
+	private static final int RAW_STRIDE = 4128;
+	private static final int RAW_ROWS = 2480;
+	private static final int RAW_HEADER_SIZE = 32768;
+	private static final int RAW_BLACK_LEVEL = 64;
+
+	private enum Fault {
+		HANG, CRASH
+	}
+
+	private long startupDelay;
+	private double frameRate = 30;
+	private double hangRate;
+	private double crashRate;
+	private long seed;
+
+	// Set only in the emulated tools' processes
+	private File dir;
+	private final Map<Integer, byte[]> stills = new HashMap<>();
+	// Set once the raspistill script's signal pipe closes, in signal mode
+	private AtomicBoolean signalsClosed;
+
+	/**
+	 * Sets the time each run of an emulated tool waits before starting, standing in for the
+	 * camera's initialisation. The default is 0.
+	 *
+	 * @param startupDelay A long specifying the delay in milliseconds.
+	 * @return This CameraEmulator.
+	 */
+	public CameraEmulator setStartupDelay(long startupDelay) {
+		if (startupDelay < 0)
+			throw new IllegalArgumentException("startupDelay must not be negative");
+		this.startupDelay = startupDelay;
+		return this;
+	}
+
+	/**
+	 * Sets the highest rate at which the emulated tools produce frames. raspivid uses it
+	 * unless given "-fps", and raspistill never produces timelapse frames faster. The default
+	 * is 30.
+	 *
+	 * @param frameRate A double specifying the frames per second.
+	 * @return This CameraEmulator.
+	 */
+	public CameraEmulator setFrameRate(double frameRate) {
+		if (!(frameRate > 0))
+			throw new IllegalArgumentException("frameRate must be positive");
+		this.frameRate = frameRate;
+		return this;
+	}
+
+	/**
+	 * Sets the fraction of captures that hang, writing part of a frame and never exiting.
+	 * The default is 0.
+	 *
+	 * @param hangRate A double from 0 to 1.
+	 * @return This CameraEmulator.
+	 */
+	public CameraEmulator setHangRate(double hangRate) {
+		checkRate(hangRate);
+		this.hangRate = hangRate;
+		return this;
+	}
+
+	/**
+	 * Sets the fraction of captures that crash, writing part of a frame and exiting with a
+	 * status of {@value #CRASH_STATUS}. The default is 0.
+	 *
+	 * @param crashRate A double from 0 to 1.
+	 * @return This CameraEmulator.
+	 */
+	public CameraEmulator setCrashRate(double crashRate) {
+		checkRate(crashRate);
+		this.crashRate = crashRate;
+		return this;
+	}
+
+	/**
+	 * Sets the seed that decides which captures hang or crash. The default is 0.
+	 *
+	 * @param seed A long specifying the seed.
+	 * @return This CameraEmulator.
+	 */
+	public CameraEmulator setSeed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * Gets the time each run of an emulated tool waits before starting.
+	 *
+	 * @return The delay in milliseconds.
+	 */
+	public long getStartupDelay() {
+		return startupDelay;
+	}
+
+	/**
+	 * Gets the highest rate at which the emulated tools produce frames.
+	 *
+	 * @return The frames per second.
+	 */
+	public double getFrameRate() {
+		return frameRate;
+	}
+
+	/**
+	 * Gets the fraction of captures that hang.
+	 *
+	 * @return A double from 0 to 1.
+	 */
+	public double getHangRate() {
+		return hangRate;
+	}
+
+	/**
+	 * Gets the fraction of captures that crash.
+	 *
+	 * @return A double from 0 to 1.
+	 */
+	public double getCrashRate() {
+		return crashRate;
+	}
+
+	/**
+	 * Gets the seed that decides which captures hang or crash.
+	 *
+	 * @return The seed.
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Writes launcher scripts for raspistill, raspiyuv, raspivid and vcgencmd to a directory,
+	 * with this emulator's current settings. The directory is created if necessary, and
+	 * scripts already in it are replaced, restarting the count of captures that decides which
+	 * ones fail.
+	 *
+	 * @param dir The directory to install the scripts in.
+	 * @return The directory, to use as an RPiCamera's tool directory.
+	 * @throws IOException if the scripts couldn't be written.
+	 */
+	public File install(File dir) throws IOException {
+		Files.createDirectories(dir.toPath());
+		dir = dir.getAbsoluteFile();
+		StringBuilder java = new StringBuilder()
+				.append(quote(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java"))
+				// Each run is short lived, so favour startup time over peak performance
+				.append(" -Xshare:auto -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xmx256m")
+				.append(" -Djava.awt.headless=true")
+				.append(" -cp ").append(quote(classpath()))
+				.append(" -D").append(PROPERTY_PREFIX).append("dir=").append(quote(dir.getPath()))
+				.append(" -D").append(PROPERTY_PREFIX).append("startupDelay=").append(startupDelay)
+				.append(" -D").append(PROPERTY_PREFIX).append("frameRate=").append(frameRate)
+				.append(" -D").append(PROPERTY_PREFIX).append("hangRate=").append(hangRate)
+				.append(" -D").append(PROPERTY_PREFIX).append("crashRate=").append(crashRate)
+				.append(" -D").append(PROPERTY_PREFIX).append("seed=").append(seed)
+				.append(' ').append(CameraEmulator.class.getName());
+		// Java 8 doesn't let applications handle SIGUSR1, so in signal mode the script traps it
+		// instead, and passes each one on as a line written to the emulator's stdin. If the
+		// script is killed, the pipe closes and the emulator exits.
+		writeScript(new File(dir, "raspistill"), "case \" $* \" in\n"
+				+ "*\" -s \"*)\n"
+				+ "\tfifo=" + quote(dir.getPath()) + "/.signal.$$\n"
+				+ "\tmkfifo \"$fifo\" || exit 1\n"
+				+ "\ttrap 'echo >&3' USR1\n"
+				+ "\ttrap 'kill $child 2>/dev/null' TERM INT\n"
+				+ "\t" + java + " raspistill \"$@\" < \"$fifo\" &\n"
+				+ "\tchild=$!\n"
+				+ "\texec 3> \"$fifo\"\n"
+				+ "\trm -f \"$fifo\"\n"
+				+ "\twhile :; do\n"
+				+ "\t\twait $child\n"
+				+ "\t\tstatus=$?\n"
+				+ "\t\tkill -0 $child 2>/dev/null || exit $status\n"
+				+ "\tdone\n"
+				+ "\t;;\n"
+				+ "esac\n"
+				+ "exec " + java + " raspistill \"$@\"");
+		for (String tool : new String[] { "raspiyuv", "raspivid" })
+			writeScript(new File(dir, tool), "exec " + java + " " + tool + " \"$@\"");
+		// vcgencmd is only asked whether a camera is connected, so doesn't need a JVM
+		writeScript(new File(dir, "vcgencmd"), "if [ \"$1\" = get_camera ]; then\n"
+				+ "\techo \"supported=1 detected=1\"\n"
+				+ "else\n"
+				+ "\techo \"error=1 error_msg=\\\"Command not registered\\\"\"\n"
+				+ "\texit 255\n"
+				+ "fi");
+		Files.deleteIfExists(new File(dir, SEQUENCE_FILE).toPath());
+		return dir;
+	}
+
+	/**
+	 * Runs an emulated tool. This is what the installed scripts run, with the emulator's
+	 * settings passed as system properties.
+	 *
+	 * @param args The tool's name, followed by its arguments.
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println("Usage: CameraEmulator raspistill|raspiyuv|raspivid [options]");
+			System.exit(64);
+		}
+		CameraEmulator emulator = new CameraEmulator();
+		emulator.startupDelay = Long.getLong(PROPERTY_PREFIX + "startupDelay", 0);
+		emulator.frameRate = Double.parseDouble(System.getProperty(PROPERTY_PREFIX + "frameRate", "30"));
+		emulator.hangRate = Double.parseDouble(System.getProperty(PROPERTY_PREFIX + "hangRate", "0"));
+		emulator.crashRate = Double.parseDouble(System.getProperty(PROPERTY_PREFIX + "crashRate", "0"));
+		emulator.seed = Long.getLong(PROPERTY_PREFIX + "seed", 0);
+		String dir = System.getProperty(PROPERTY_PREFIX + "dir");
+		if (dir != null)
+			emulator.dir = new File(dir);
+
+		Arguments arguments = new Arguments(args);
+		int status;
+		try {
+			status = emulator.run(args[0], arguments);
+		} catch (IOException e) {
+			// Most often the reader closing stdout, which would kill the real tools with SIGPIPE
+			status = 0;
+		} catch (InterruptedException e) {
+			status = 1;
+		}
+		System.exit(status);
+	}
+
+	private int run(String tool, Arguments args) throws IOException, InterruptedException {
+		if (!tool.equals("raspistill") && !tool.equals("raspiyuv") && !tool.equals("raspivid")) {
+			System.err.println(tool + " isn't emulated");
+			return 64;
+		}
+		if (args.has("--help") || args.has("-?")) {
+			System.err.println();
+			System.err.println(tool + " Camera App " + VERSION + " (JRPiCam emulator)");
+			System.err.println();
+			return 0;
+		}
+		long process = nextSequence();
+		long start = System.nanoTime();
+		TimeUnit.MILLISECONDS.sleep(startupDelay);
+		if (tool.equals("raspistill"))
+			return raspistill(args, process, start);
+		else if (tool.equals("raspiyuv"))
+			return raspiyuv(args, process);
+		else
+			return raspivid(args, process);
+	}
+
+	private int raspistill(Arguments args, long process, long start) throws IOException, InterruptedException {
+		int width = args.getInt("-w", 2592);
+		int height = args.getInt("-h", 1944);
+		long timeout = TimeUnit.MILLISECONDS.toNanos(args.getInt("-t", 5000));
+		long framePeriod = (long) (1e9 / frameRate);
+		long end = timeout > 0 ? start + timeout : Long.MAX_VALUE;
+		Output output = output(args, false);
+		if (args.has("-s")) {
+			AtomicBoolean closed = new AtomicBoolean();
+			signalsClosed = closed;
+			Semaphore signals = readSignals(closed);
+			int frame = 0;
+			while (true) {
+				System.err.println("Waiting for SIGUSR1 to initiate capture");
+				boolean signalled = false;
+				while (!signalled) {
+					long remaining = end - System.nanoTime();
+					if (remaining <= 0)
+						return 0;
+					signalled = signals.tryAcquire(Math.min(remaining, TimeUnit.SECONDS.toNanos(1)),
+							TimeUnit.NANOSECONDS);
+				}
+				if (closed.get())
+					return 0;
+				TimeUnit.NANOSECONDS.sleep(framePeriod);
+				frame++;
+				output.write(frame, still(args, width, height, process + frame), fault(process, frame));
+			}
+		} else if (args.has("-tl")) {
+			long interval = Math.max(TimeUnit.MILLISECONDS.toNanos(args.getInt("-tl", 0)), framePeriod);
+			long next = System.nanoTime();
+			for (int frame = 1; next <= end; frame++) {
+				sleepUntil(next);
+				output.write(frame, still(args, width, height, process + frame), fault(process, frame));
+				next += interval;
+			}
+		} else {
+			sleepUntil(Math.max(end, System.nanoTime() + framePeriod));
+			output.write(1, still(args, width, height, process), fault(process, 0));
+		}
+		return 0;
+	}
+
+	private int raspiyuv(Arguments args, long process) throws IOException, InterruptedException {
+		int width = args.getInt("-w", 2592);
+		int height = args.getInt("-h", 1944);
+		TimeUnit.NANOSECONDS.sleep(Math.max(TimeUnit.MILLISECONDS.toNanos(args.getInt("-t", 5000)),
+				(long) (1e9 / frameRate)));
+		int[] rgb = TestPattern.render(width, height, (int) (process % TestPattern.PERIOD));
+		byte[] data;
+		if (args.has("-rgb"))
+			data = TestPattern.toRGB(rgb, width, height);
+		else
+			data = TestPattern.toYUV420(rgb, width, height, TestPattern.align(width, 32),
+					TestPattern.align(height, 16), args.has("-y"));
+		output(args, false).write(1, data, fault(process, 0));
+		return 0;
+	}
+
+	private int raspivid(Arguments args, long process) throws IOException, InterruptedException {
+		int width = args.getInt("-w", 1920) & ~1;
+		int height = args.getInt("-h", 1080) & ~1;
+		long timeout = TimeUnit.MILLISECONDS.toNanos(args.getInt("-t", 5000));
+		double fps = args.has("-fps") ? Double.parseDouble(args.get("-fps", null)) : frameRate;
+		int intraPeriod = Math.max(1, args.getInt("-g", 60));
+		boolean inlineHeaders = args.has("-ih");
+		Output output = output(args, true);
+
+		H264Encoder encoder = new H264Encoder(width, height);
+		byte[] sps = encoder.sps();
+		byte[] pps = encoder.pps();
+		long framePeriod = (long) (1e9 / fps);
+		long start = System.nanoTime();
+		long end = timeout > 0 ? start + timeout : Long.MAX_VALUE;
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		for (int n = 0; start + n * framePeriod < end; n++) {
+			frame.reset();
+			int sinceKeyFrame = n % intraPeriod;
+			if (sinceKeyFrame == 0) {
+				int keyFrame = n / intraPeriod;
+				if (n == 0 || inlineHeaders) {
+					frame.write(sps);
+					frame.write(pps);
+				}
+				int[] rgb = TestPattern.render(width, height, (int) ((process + keyFrame) % TestPattern.PERIOD));
+				frame.write(encoder.keyFrame(TestPattern.toYUV420(rgb, width, height, encoder.getPaddedWidth(),
+						encoder.getPaddedHeight(), false), keyFrame));
+			} else {
+				frame.write(encoder.repeatFrame(sinceKeyFrame));
+			}
+			sleepUntil(start + n * framePeriod);
+			output.write(n, frame.toByteArray(), fault(process, n));
+		}
+		return 0;
+	}
+
+	/**
+	 * Gets a still, encoded as the arguments ask. Stills are cached, since the test pattern
+	 * repeats, and encoding is most of the work of a timelapse.
+	 */
+	private byte[] still(Arguments args, int width, int height, long frame) throws IOException {
+		int pattern = (int) (frame % TestPattern.PERIOD);
+		byte[] still = stills.get(pattern);
+		if (still == null) {
+			String encoding = args.get("-e", "jpg");
+			BufferedImage image = image(width, height, pattern);
+			if (encoding.equals("jpg")) {
+				still = encodeJPEG(image, args.getInt("-q", 85) / 100f);
+				String thumbnail = args.get("-th", "64:48:35");
+				if (!thumbnail.equals("none")) {
+					String[] parts = thumbnail.split(":");
+					still = withExifThumbnail(still, encodeJPEG(image(Integer.parseInt(parts[0]),
+							Integer.parseInt(parts[1]), pattern), Integer.parseInt(parts[2]) / 100f));
+				}
+			} else {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				if (!ImageIO.write(image, encoding, out))
+					throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+				still = out.toByteArray();
+			}
+			stills.put(pattern, still);
+		}
+		if (args.has("-r")) {
+			byte[] raw = rawBlock(pattern);
+			byte[] withRaw = new byte[still.length + raw.length];
+			System.arraycopy(still, 0, withRaw, 0, still.length);
+			System.arraycopy(raw, 0, withRaw, still.length, raw.length);
+			return withRaw;
+		}
+		return still;
+	}
+
+	private static BufferedImage image(int width, int height, int pattern) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		System.arraycopy(TestPattern.render(width, height, pattern), 0, pixels, 0, pixels.length);
+		return image;
+	}
+
+	private static byte[] encodeJPEG(BufferedImage image, float quality) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(Math.max(0, Math.min(1, quality)));
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Inserts an EXIF segment holding a thumbnail after the JPEG's SOI marker, as raspistill
+	 * does.
+	 */
+	private static byte[] withExifThumbnail(byte[] image, byte[] thumbnail) {
+		int ifd1 = 8 + 2 + 12 + 4;
+		int thumbnailOffset = ifd1 + 2 + 3 * 12 + 4;
+		ByteBuffer tiff = ByteBuffer.allocate(thumbnailOffset + thumbnail.length).order(ByteOrder.LITTLE_ENDIAN);
+		tiff.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+		tiff.putShort((short) 1);
+		tiff.putShort((short) 0x0112).putShort((short) 3).putInt(1).putInt(1); // Orientation
+		tiff.putInt(ifd1);
+		tiff.putShort((short) 3);
+		tiff.putShort((short) 0x0103).putShort((short) 3).putInt(1).putInt(6); // JPEG compression
+		tiff.putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(thumbnailOffset);
+		tiff.putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(thumbnail.length);
+		tiff.putInt(0);
+		tiff.put(thumbnail);
+
+		int segmentLength = 2 + 6 + tiff.capacity();
+		ByteBuffer out = ByteBuffer.allocate(image.length + 2 + segmentLength);
+		out.put(image, 0, 2);
+		out.put((byte) 0xFF).put((byte) 0xE1).putShort((short) segmentLength);
+		out.put(new byte[] { 'E', 'x', 'i', 'f', 0, 0 });
+		out.put(tiff.array());
+		out.put(image, 2, image.length - 2);
+		return out.array();
+	}
+
+	/**
+	 * Builds the raw block the V2 camera appends to stills: a header, followed by the test
+	 * pattern sampled through a BGGR Bayer filter, as 10-bit values packed 4 into 5 bytes.
+	 */
+	private static byte[] rawBlock(int pattern) {
+		byte[] block = new byte[RAW_HEADER_SIZE + RAW_STRIDE * RAW_ROWS];
+		ByteBuffer header = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(new byte[] { 'B', 'R', 'C', 'M' });
+		header.position(176);
+		header.put("imx219".getBytes(StandardCharsets.US_ASCII));
+		header.putShort(176 + 32, (short) RAW_WIDTH);
+		header.putShort(176 + 34, (short) RAW_HEIGHT);
+		header.put(176 + 68, (byte) 2); // BGGR
+
+		int[] rgb = TestPattern.render(RAW_WIDTH, RAW_HEIGHT, pattern);
+		int[] values = new int[4];
+		for (int y = 0; y < RAW_HEIGHT; y++) {
+			int out = RAW_HEADER_SIZE + y * RAW_STRIDE;
+			for (int x = 0; x < RAW_WIDTH; x += 4) {
+				int low = 0;
+				for (int i = 0; i < 4; i++) {
+					int c = rgb[y * RAW_WIDTH + x + i];
+					int shift = (y & 1) == 0
+							? ((x + i & 1) == 0 ? 0 : 8) // blue, green
+							: ((x + i & 1) == 0 ? 8 : 16); // green, red
+					int value = RAW_BLACK_LEVEL + (c >> shift & 0xFF) * (1023 - RAW_BLACK_LEVEL) / 255;
+					values[i] = value;
+					low |= (value & 0x3) << 2 * i;
+				}
+				for (int i = 0; i < 4; i++)
+					block[out++] = (byte) (values[i] >> 2);
+				block[out++] = (byte) low;
+			}
+		}
+		return block;
+	}
+
+	/**
+	 * Decides whether a capture fails, from the seed, the number of the run of the tool, and
+	 * the number of the frame within the run.
+	 */
+	private Fault fault(long process, int frame) {
+		if (hangRate <= 0 && crashRate <= 0)
+			return null;
+		// SplitMix64, since java.util.Random's first values are alike for similar seeds
+		long z = seed + 0x9E3779B97F4A7C15L * (process * 1000003L + frame + 1);
+		z = (z ^ z >>> 30) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ z >>> 27) * 0x94D049BB133111EBL;
+		z ^= z >>> 31;
+		double value = (z >>> 11) * 0x1.0p-53;
+		if (value < crashRate)
+			return Fault.CRASH;
+		if (value < crashRate + hangRate)
+			return Fault.HANG;
+		return null;
+	}
+
+	/**
+	 * Counts the runs of the emulated tools since the emulator was installed, in a file shared
+	 * between them.
+	 */
+	private long nextSequence() throws IOException {
+		if (dir == null)
+			return 0;
+		try (FileChannel channel = FileChannel.open(new File(dir, SEQUENCE_FILE).toPath(),
+				StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+			FileLock lock = channel.lock();
+			try {
+				ByteBuffer buffer = ByteBuffer.allocate(8);
+				long sequence = channel.read(buffer, 0) == 8 ? buffer.getLong(0) : 0;
+				buffer.putLong(0, sequence + 1);
+				buffer.clear();
+				channel.write(buffer, 0);
+				return sequence;
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	private static void sleepUntil(long nanoTime) throws InterruptedException {
+		long remaining = nanoTime - System.nanoTime();
+		if (remaining > 0)
+			TimeUnit.NANOSECONDS.sleep(remaining);
+	}
+
+	/**
+	 * Starts a thread that reads the signals passed on by the raspistill script from stdin,
+	 * and returns a Semaphore released for each one. The Semaphore is also released once stdin
+	 * is closed, after setting closed.
+	 */
+	private static Semaphore readSignals(final AtomicBoolean closed) {
+		final Semaphore signals = new Semaphore(0);
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					int b;
+					while ((b = System.in.read()) >= 0) {
+						if (b == '\n')
+							signals.release();
+					}
+				} catch (IOException e) {
+					// Treated as closed
+				}
+				closed.set(true);
+				signals.release();
+			}
+		}, "jrpicam-emulator-signals");
+		reader.setDaemon(true);
+		reader.start();
+		return signals;
+	}
+
+	private Output output(Arguments args, boolean video) {
+		return new Output(args.get("-o", null), video, args.get("-l", null), args.has("-dt"), args.has("-ts"));
+	}
+
+	/**
+	 * Where an emulated tool writes its frames: stdout, a single video file, or a file per
+	 * still, numbered from a pattern, which is written under a temporary name and renamed once
+	 * complete, as raspistill does. Faulty frames are cut short, after which the process
+	 * crashes or hangs.
+	 */
+	private final class Output {
+		private final String pattern;
+		private final boolean video;
+		private final String latest;
+		private final boolean dateTime;
+		private final boolean timestamp;
+		private OutputStream stream;
+
+		Output(String pattern, boolean video, String latest, boolean dateTime, boolean timestamp) {
+			this.pattern = pattern;
+			this.video = video;
+			this.latest = latest;
+			this.dateTime = dateTime;
+			this.timestamp = timestamp;
+		}
+
+		void write(int frame, byte[] data, Fault fault) throws IOException {
+			int length = fault == null ? data.length : data.length / 2;
+			if (pattern == null) {
+				// Captures to nowhere still fail
+			} else if (video || pattern.startsWith("-")) {
+				if (stream == null) {
+					// Like the real tools, which is why "-o -v" writes to stdout
+					stream = new BufferedOutputStream(pattern.startsWith("-") ? new FileOutputStream(FileDescriptor.out)
+							: new FileOutputStream(pattern), 65536);
+				}
+				stream.write(data, 0, length);
+				stream.flush();
+			} else {
+				Path file = new File(String.format(pattern, fileNumber(frame))).toPath();
+				Path partial = file.resolveSibling(file.getFileName() + "~");
+				Files.write(partial, fault == null ? data : Arrays.copyOf(data, length));
+				if (fault == null) {
+					Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					if (latest != null) {
+						Path link = new File(latest).toPath();
+						Files.deleteIfExists(link);
+						Files.createSymbolicLink(link, file.toAbsolutePath());
+					}
+				}
+			}
+			if (fault != null)
+				fail(fault);
+		}
+
+		private long fileNumber(int frame) {
+			if (dateTime)
+				return Long.parseLong(new SimpleDateFormat("MMddHHmmss").format(new Date()));
+			if (timestamp)
+				return System.currentTimeMillis() / 1000;
+			return frame;
+		}
+	}
+
+	private void fail(Fault fault) {
+		if (fault == Fault.CRASH) {
+			System.err.println("mmal: mmal_vc_port_enable: failed to enable port vc.ril.camera:out:1(OPQV): ENOSPC");
+			System.err.println("mmal: Failed to capture frame");
+			System.exit(CRASH_STATUS);
+		}
+		// Hangs don't end until the process is killed. In signal mode, the script that would be
+		// killed runs the emulator as a child, so exit once its pipe closes instead.
+		while (signalsClosed == null || !signalsClosed.get()) {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				// Keep hanging
+			}
+		}
+		System.exit(KILLED_STATUS);
+	}
+
+	private static void writeScript(File file, String body) throws IOException {
+		try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+			writer.write("#!/bin/sh\n");
+			writer.write("# Written by " + CameraEmulator.class.getName() + "\n");
+			writer.write(body);
+			writer.write("\n");
+		}
+		if (!file.setExecutable(true))
+			throw new IOException("Failed to make " + file + " executable");
+	}
+
+	private static String classpath() throws IOException {
+		CodeSource source = CameraEmulator.class.getProtectionDomain().getCodeSource();
+		if (source == null || source.getLocation() == null)
+			return System.getProperty("java.class.path");
+		try {
+			return new File(source.getLocation().toURI()).getPath();
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			throw new IOException("Failed to locate the JRPiCam classes", e);
+		}
+	}
+
+	private static String quote(String s) {
+		return "'" + s.replace("'", "'\\''") + "'";
+	}
+
+	private static void checkRate(double rate) {
+		if (!(rate >= 0 && rate <= 1))
+			throw new IllegalArgumentException("rate must be from 0 to 1");
+	}
+
+	/**
+	 * The arguments of an emulated tool, the first being the tool's name. Options whose values
+	 * the emulator doesn't use are treated as flags, with their values skipped over.
+	 */
+	private static final class Arguments {
+		private final Map<String, String> options = new HashMap<>();
+
+		Arguments(String[] args) {
+			for (int i = 1; i < args.length; i++) {
+				String arg = args[i];
+				if (VALUE_OPTIONS.contains(arg) && i + 1 < args.length)
+					options.put(arg, args[++i]);
+				else if (arg.startsWith("-"))
+					options.put(arg, null);
+			}
+		}
+
+		boolean has(String option) {
+			return options.containsKey(option);
+		}
+
+		String get(String option, String defaultValue) {
+			String value = options.get(option);
+			return value == null ? defaultValue : value;
+		}
+
+		int getInt(String option, int defaultValue) {
+			String value = options.get(option);
+			return value == null ? defaultValue : Integer.parseInt(value);
+		}
+	}
+}
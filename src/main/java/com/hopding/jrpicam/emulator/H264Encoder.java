@@ -0,0 +1,251 @@
+package com.hopding.jrpicam.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes a minimal, but valid, constrained baseline H.264 stream, as Annex-B NAL units with
+ * 4 byte start codes. Keyframes store every macroblock uncompressed (I_PCM), and every other
+ * frame skips every macroblock, repeating the keyframe. This needs no real encoder, yet any
+ * decoder can play the result. Keyframes are much larger than raspivid's, at 384 bytes per
+ * macroblock, or about 3MB at 1080p.
+ */
+final class H264Encoder {
+
+	private static final int NAL_SLICE = 1;
+	private static final int NAL_IDR = 5;
+	private static final int NAL_SPS = 7;
+	private static final int NAL_PPS = 8;
+
+	private static final int SLICE_P = 5;
+	private static final int SLICE_I = 7;
+	private static final int MB_I_PCM = 25;
+
+	// frame_num is written with 4 bits
+	private static final int MAX_FRAME_NUM = 16;
+
+	private final int width;
+	private final int height;
+	private final int mbWidth;
+	private final int mbHeight;
+
+	/**
+	 * Creates an encoder for frames of the specified size, which should be even.
+	 */
+	H264Encoder(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.mbWidth = (width + 15) / 16;
+		this.mbHeight = (height + 15) / 16;
+	}
+
+	/**
+	 * Gets the stride and number of rows of the I420 frames {@link #keyFrame(byte[], int)}
+	 * takes, which are padded to whole macroblocks.
+	 */
+	int getPaddedWidth() {
+		return mbWidth * 16;
+	}
+
+	int getPaddedHeight() {
+		return mbHeight * 16;
+	}
+
+	byte[] sps() {
+		BitWriter bits = new BitWriter(32);
+		bits.write(66, 8); // profile_idc: baseline
+		bits.write(0xC0, 8); // constraint_set0 and constraint_set1: constrained baseline
+		bits.write(40, 8); // level_idc: 4.0
+		bits.ue(0); // seq_parameter_set_id
+		bits.ue(0); // log2_max_frame_num_minus4
+		bits.ue(2); // pic_order_cnt_type: output order is decoding order
+		bits.ue(1); // max_num_ref_frames
+		bits.write(0, 1); // gaps_in_frame_num_value_allowed_flag
+		bits.ue(mbWidth - 1);
+		bits.ue(mbHeight - 1);
+		bits.write(1, 1); // frame_mbs_only_flag
+		bits.write(1, 1); // direct_8x8_inference_flag
+		int cropRight = (mbWidth * 16 - width) / 2;
+		int cropBottom = (mbHeight * 16 - height) / 2;
+		if (cropRight > 0 || cropBottom > 0) {
+			bits.write(1, 1);
+			bits.ue(0);
+			bits.ue(cropRight);
+			bits.ue(0);
+			bits.ue(cropBottom);
+		} else {
+			bits.write(0, 1);
+		}
+		bits.write(0, 1); // vui_parameters_present_flag
+		bits.trailingBits();
+		return nalUnit(3, NAL_SPS, bits);
+	}
+
+	byte[] pps() {
+		BitWriter bits = new BitWriter(16);
+		bits.ue(0); // pic_parameter_set_id
+		bits.ue(0); // seq_parameter_set_id
+		bits.write(0, 1); // entropy_coding_mode_flag: CAVLC
+		bits.write(0, 1); // bottom_field_pic_order_in_frame_present_flag
+		bits.ue(0); // num_slice_groups_minus1
+		bits.ue(0); // num_ref_idx_l0_default_active_minus1
+		bits.ue(0); // num_ref_idx_l1_default_active_minus1
+		bits.write(0, 1); // weighted_pred_flag
+		bits.write(0, 2); // weighted_bipred_idc
+		bits.se(0); // pic_init_qp_minus26
+		bits.se(0); // pic_init_qs_minus26
+		bits.se(0); // chroma_qp_index_offset
+		bits.write(1, 1); // deblocking_filter_control_present_flag
+		bits.write(0, 1); // constrained_intra_pred_flag
+		bits.write(0, 1); // redundant_pic_cnt_present_flag
+		bits.trailingBits();
+		return nalUnit(3, NAL_PPS, bits);
+	}
+
+	/**
+	 * Encodes a keyframe from an I420 frame padded to whole macroblocks.
+	 *
+	 * @param i420 The frame, with a stride of {@link #getPaddedWidth()}.
+	 * @param idrId A number that differs between consecutive keyframes.
+	 */
+	byte[] keyFrame(byte[] i420, int idrId) {
+		int stride = mbWidth * 16;
+		int lumaSize = stride * mbHeight * 16;
+		int chromaStride = stride / 2;
+		int chromaSize = chromaStride * mbHeight * 8;
+		BitWriter bits = new BitWriter(mbWidth * mbHeight * 390 + 16);
+		sliceHeader(bits, SLICE_I, 0);
+		bits.ue(idrId & 0xFFFF);
+		bits.write(0, 1); // no_output_of_prior_pics_flag
+		bits.write(0, 1); // long_term_reference_flag
+		bits.se(0); // slice_qp_delta
+		bits.ue(1); // disable_deblocking_filter_idc
+		for (int mbY = 0; mbY < mbHeight; mbY++) {
+			for (int mbX = 0; mbX < mbWidth; mbX++) {
+				bits.ue(MB_I_PCM);
+				bits.align();
+				for (int row = 0; row < 16; row++)
+					bits.writeBytes(i420, (mbY * 16 + row) * stride + mbX * 16, 16);
+				for (int plane = 0; plane < 2; plane++) {
+					int offset = lumaSize + plane * chromaSize;
+					for (int row = 0; row < 8; row++)
+						bits.writeBytes(i420, offset + (mbY * 8 + row) * chromaStride + mbX * 8, 8);
+				}
+			}
+		}
+		bits.trailingBits();
+		return nalUnit(3, NAL_IDR, bits);
+	}
+
+	/**
+	 * Encodes a frame that repeats the previous one.
+	 *
+	 * @param frameNum The number of frames since the last keyframe.
+	 */
+	byte[] repeatFrame(int frameNum) {
+		BitWriter bits = new BitWriter(16);
+		sliceHeader(bits, SLICE_P, frameNum % MAX_FRAME_NUM);
+		bits.write(0, 1); // num_ref_idx_active_override_flag
+		bits.write(0, 1); // ref_pic_list_modification_flag_l0
+		bits.write(0, 1); // adaptive_ref_pic_marking_mode_flag
+		bits.se(0); // slice_qp_delta
+		bits.ue(1); // disable_deblocking_filter_idc
+		bits.ue(mbWidth * mbHeight); // mb_skip_run: every macroblock
+		bits.trailingBits();
+		return nalUnit(2, NAL_SLICE, bits);
+	}
+
+	private static void sliceHeader(BitWriter bits, int sliceType, int frameNum) {
+		bits.ue(0); // first_mb_in_slice
+		bits.ue(sliceType);
+		bits.ue(0); // pic_parameter_set_id
+		bits.write(frameNum, 4);
+	}
+
+	/**
+	 * Wraps a NAL unit's payload with a start code and header, inserting emulation prevention
+	 * bytes wherever the payload would otherwise contain a start code.
+	 */
+	private static byte[] nalUnit(int refIdc, int type, BitWriter payload) {
+		byte[] rbsp = payload.buffer;
+		int length = payload.length;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length + length / 64 + 8);
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		out.write(1);
+		out.write(refIdc << 5 | type);
+		int zeros = 0;
+		for (int i = 0; i < length; i++) {
+			int b = rbsp[i] & 0xFF;
+			if (zeros >= 2 && b <= 3) {
+				out.write(3);
+				zeros = 0;
+			}
+			out.write(b);
+			zeros = b == 0 ? zeros + 1 : 0;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes bits most significant first, including H.264's Exp-Golomb codes.
+	 */
+	private static final class BitWriter {
+		private byte[] buffer;
+		private int length;
+		private int current;
+		private int count;
+
+		BitWriter(int capacity) {
+			buffer = new byte[capacity];
+		}
+
+		void write(int value, int bits) {
+			for (int i = bits - 1; i >= 0; i--) {
+				current = current << 1 | (value >>> i & 1);
+				if (++count == 8)
+					flush();
+			}
+		}
+
+		void ue(int value) {
+			int code = value + 1;
+			int bits = 32 - Integer.numberOfLeadingZeros(code);
+			write(0, bits - 1);
+			write(code, bits);
+		}
+
+		void se(int value) {
+			ue(value <= 0 ? -2 * value : 2 * value - 1);
+		}
+
+		void align() {
+			while (count != 0)
+				write(0, 1);
+		}
+
+		void writeBytes(byte[] bytes, int offset, int n) {
+			ensure(n);
+			System.arraycopy(bytes, offset, buffer, length, n);
+			length += n;
+		}
+
+		void trailingBits() {
+			write(1, 1);
+			align();
+		}
+
+		private void flush() {
+			ensure(1);
+			buffer[length++] = (byte) current;
+			current = 0;
+			count = 0;
+		}
+
+		private void ensure(int n) {
+			if (length + n > buffer.length)
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + n));
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.hopding.jrpicam.emulator;
+
+/**
+ * Draws the emulator's frames: eight colour bars over a grey ramp, with a grey box that moves
+ * across the boundary between them, returning to the left edge every {@link #PERIOD} frames.
+ * Frames depend only on their size and number, so every run produces identical output.
+ */
+final class TestPattern {
+
+	/** The number of distinct frames before the pattern repeats. */
+	static final int PERIOD = 32;
+
+	private static final int[] BARS = { 0xFFFFFF, 0xFFFF00, 0x00FFFF, 0x00FF00, 0xFF00FF, 0xFF0000,
+			0x0000FF, 0x000000 };
+
+	private TestPattern() {
+	}
+
+	/**
+	 * Draws a frame as 0xRRGGBB pixels, row by row.
+	 */
+	static int[] render(int width, int height, int frame) {
+		int[] rgb = new int[width * height];
+		int barsBottom = height * 2 / 3;
+		int box = Math.max(2, height / 8);
+		int boxLeft = (frame % PERIOD) * Math.max(0, width - box) / (PERIOD - 1);
+		int boxTop = barsBottom - box / 2;
+		for (int y = 0; y < height; y++) {
+			int row = y * width;
+			boolean boxRow = y >= boxTop && y < boxTop + box;
+			for (int x = 0; x < width; x++) {
+				int c;
+				if (boxRow && x >= boxLeft && x < boxLeft + box) {
+					c = 0x808080;
+				} else if (y < barsBottom) {
+					c = BARS[x * BARS.length / width];
+				} else {
+					int grey = width > 1 ? x * 255 / (width - 1) : 0;
+					c = grey << 16 | grey << 8 | grey;
+				}
+				rgb[row + x] = c;
+			}
+		}
+		return rgb;
+	}
+
+	/**
+	 * Lays out a frame as raspiyuv's "-rgb" output: 3 bytes per pixel, with the width and
+	 * height padded to multiples of 16.
+	 */
+	static byte[] toRGB(int[] rgb, int width, int height) {
+		int stride = align(width, 16) * 3;
+		byte[] out = new byte[stride * align(height, 16)];
+		for (int y = 0; y < height; y++) {
+			int pos = y * stride;
+			for (int x = 0; x < width; x++) {
+				int c = rgb[y * width + x];
+				out[pos++] = (byte) (c >> 16);
+				out[pos++] = (byte) (c >> 8);
+				out[pos++] = (byte) c;
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Converts a frame to planar YUV420 (I420), with the Y plane padded to the specified stride
+	 * and number of rows, and the U and V planes to half of those. Each chroma sample is the
+	 * average of a 2x2 block.
+	 */
+	static byte[] toYUV420(int[] rgb, int width, int height, int stride, int rows, boolean lumaOnly) {
+		int lumaSize = stride * rows;
+		int chromaStride = stride / 2;
+		int chromaSize = chromaStride * (rows / 2);
+		byte[] out = new byte[lumaOnly ? lumaSize : lumaSize + 2 * chromaSize];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int c = rgb[y * width + x];
+				int r = c >> 16 & 0xFF, g = c >> 8 & 0xFF, b = c & 0xFF;
+				out[y * stride + x] = (byte) ((77 * r + 150 * g + 29 * b + 128) >> 8);
+			}
+		}
+		if (lumaOnly)
+			return out;
+		for (int y = 0; y < (height + 1) / 2; y++) {
+			for (int x = 0; x < (width + 1) / 2; x++) {
+				int r = 0, g = 0, b = 0, n = 0;
+				for (int dy = 0; dy < 2 && 2 * y + dy < height; dy++) {
+					for (int dx = 0; dx < 2 && 2 * x + dx < width; dx++) {
+						int c = rgb[(2 * y + dy) * width + 2 * x + dx];
+						r += c >> 16 & 0xFF;
+						g += c >> 8 & 0xFF;
+						b += c & 0xFF;
+						n++;
+					}
+				}
+				r /= n;
+				g /= n;
+				b /= n;
+				int pos = y * chromaStride + x;
+				out[lumaSize + pos] = (byte) clamp((-43 * r - 85 * g + 128 * b + 128 * 256 + 128) >> 8);
+				out[lumaSize + chromaSize + pos] = (byte) clamp((128 * r - 107 * g - 21 * b + 128 * 256 + 128) >> 8);
+			}
+		}
+		return out;
+	}
+
+	static int align(int value, int alignment) {
+		return (value + alignment - 1) / alignment * alignment;
+	}
+
+	private static int clamp(int value) {
+		return value < 0 ? 0 : value > 255 ? 255 : value;
+	}
+}
@@ -0,0 +1,330 @@
+package com.hopding.jrpicam.image;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BufferPool is a bounded pool of reusable capture buffers (such as {@link PixelBuffer}s,
+ * BufferedImages or {@link EncodedFrame}s). Capturing into pooled buffers means a steady
+ * stream of captures allocates no new buffers once the pool has warmed up, which avoids the
+ * regular GC pauses caused by allocating a new multi-megabyte buffer for every frame on a Pi's
+ * small heap.
+ * <p>
+ * Buffers are handed out wrapped in a {@link Lease}, which must be released (or closed) once
+ * the buffer is no longer needed. Each buffer is created for a particular width and height;
+ * if a buffer of different dimensions is requested, a free buffer is replaced with a new one
+ * of the requested dimensions. At most {@link #getCapacity()} buffers exist at once, so
+ * {@link #acquire(int, int)} blocks while all of them are leased out.
+ * <p>
+ * Buffers that are never released are leaks, and eventually leave the pool exhausted. To
+ * help find them, {@link #findLeaks(long)} reports leases that have been held for too long,
+ * and acquiring from an exhausted pool fails with an IllegalStateException describing the
+ * oldest leases once the acquire timeout expires. If leak tracking is enabled, the stack trace
+ * of the code that acquired each lease is recorded as well.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * RPiCamera piCamera = new RPiCamera().setWidth(640).setHeight(480);
+ * BufferPool<BytePixelBuffer> pool = new BufferPool<>(3, BytePixelBuffer::new);
+ *
+ * while (running) {
+ *     try (BufferPool.Lease<BytePixelBuffer> frame = piCamera.takeStillAsRGB(pool)) {
+ *         process(frame.get());
+ *     } // Buffer goes back to the pool here
+ * }
+ *}
+ * </pre>
+ *
+ * @param <T> The type of buffer held by the pool.
+ */
+public class BufferPool<T> {
+
+	private static final long DEFAULT_ACQUIRE_TIMEOUT_MS = 30000;
+
+	/**
+	 * Creates buffers for a BufferPool.
+	 *
+	 * @param <T> The type of buffer created.
+	 */
+	public interface Factory<T> {
+
+		/**
+		 * Creates a new buffer for images of the specified dimensions.
+		 *
+		 * @param width The width of the image in pixels.
+		 * @param height The height of the image in pixels.
+		 * @return A new buffer.
+		 */
+		T create(int width, int height);
+	}
+
+	/**
+	 * A buffer leased from a BufferPool. Leases are themselves reused by the pool, so a Lease
+	 * must not be used once it has been released.
+	 *
+	 * @param <T> The type of buffer held by the lease.
+	 */
+	public static final class Lease<T> implements AutoCloseable {
+
+		private final BufferPool<T> pool;
+		private T buffer;
+		private int width;
+		private int height;
+		private boolean leased;
+		private long acquiredAt;
+		private Throwable acquiredBy;
+
+		private Lease(BufferPool<T> pool) {
+			this.pool = pool;
+		}
+
+		/**
+		 * Gets the leased buffer.
+		 *
+		 * @return The buffer.
+		 * @throws IllegalStateException if the lease has been released.
+		 */
+		public T get() {
+			synchronized (pool) {
+				if (!leased)
+					throw new IllegalStateException("Lease has already been released");
+				return buffer;
+			}
+		}
+
+		/**
+		 * Gets the width of the images the leased buffer was created for.
+		 *
+		 * @return The width in pixels.
+		 */
+		public int getWidth() {
+			return width;
+		}
+
+		/**
+		 * Gets the height of the images the leased buffer was created for.
+		 *
+		 * @return The height in pixels.
+		 */
+		public int getHeight() {
+			return height;
+		}
+
+		/**
+		 * Gets the time since the buffer was acquired.
+		 *
+		 * @return The time the buffer has been held for, in milliseconds.
+		 */
+		public long getHeldMillis() {
+			synchronized (pool) {
+				return leased ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - acquiredAt) : 0;
+			}
+		}
+
+		/**
+		 * Gets the stack trace of the code that acquired the buffer, if leak tracking is enabled.
+		 *
+		 * @return A Throwable whose stack trace shows where the buffer was acquired, or null.
+		 */
+		public Throwable getAcquiredBy() {
+			return acquiredBy;
+		}
+
+		/**
+		 * Returns the buffer to the pool.
+		 *
+		 * @throws IllegalStateException if the lease has already been released.
+		 */
+		public void release() {
+			pool.release(this);
+		}
+
+		/**
+		 * Returns the buffer to the pool. Equivalent to {@link #release()}.
+		 */
+		@Override
+		public void close() {
+			release();
+		}
+	}
+
+	private final int capacity;
+	private final Factory<T> factory;
+	private final List<Lease<T>> leases;
+	private final ArrayDeque<Lease<T>> free;
+	private long acquireTimeoutMillis = DEFAULT_ACQUIRE_TIMEOUT_MS;
+	private boolean leakTracking;
+	private long allocations;
+
+	/**
+	 * Creates a new BufferPool. Buffers are created lazily, as they are first needed.
+	 *
+	 * @param capacity An int specifying the maximum number of buffers in the pool.
+	 * @param factory The Factory used to create buffers.
+	 */
+	public BufferPool(int capacity, Factory<T> factory) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		this.capacity = capacity;
+		this.factory = factory;
+		this.leases = new ArrayList<>(capacity);
+		this.free = new ArrayDeque<>(capacity);
+	}
+
+	/**
+	 * Sets how long {@link #acquire(int, int)} waits for a buffer to be released when all of
+	 * the pool's buffers are leased. Default is 30 seconds.
+	 *
+	 * @param timeout A long specifying the timeout in milliseconds.
+	 */
+	public synchronized BufferPool<T> setAcquireTimeout(long timeout) {
+		this.acquireTimeoutMillis = timeout;
+		return this;
+	}
+
+	/**
+	 * Turns recording of the stack trace of the code acquiring each buffer on or off. This makes
+	 * leaks easy to track down, but allocates a Throwable for every acquire, so should only be
+	 * turned on while debugging.
+	 *
+	 * @param track turn on/off leak tracking.
+	 */
+	public synchronized BufferPool<T> setLeakTracking(boolean track) {
+		this.leakTracking = track;
+		return this;
+	}
+
+	/**
+	 * Leases a buffer for images of the specified dimensions, waiting for one to be released if
+	 * all of the pool's buffers are already leased.
+	 *
+	 * @param width The width of the image in pixels.
+	 * @param height The height of the image in pixels.
+	 * @return A Lease holding the buffer.
+	 * @throws InterruptedException
+	 * @throws IllegalStateException if no buffer was released before the acquire timeout expired.
+	 */
+	public synchronized Lease<T> acquire(int width, int height) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+		Lease<T> lease;
+		while ((lease = tryAcquire(width, height)) == null) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				throw new IllegalStateException(exhaustedMessage());
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return lease;
+	}
+
+	/**
+	 * Leases a buffer for images of the specified dimensions if one is available.
+	 *
+	 * @param width The width of the image in pixels.
+	 * @param height The height of the image in pixels.
+	 * @return A Lease holding the buffer, or null if all of the pool's buffers are leased.
+	 */
+	public synchronized Lease<T> tryAcquire(int width, int height) {
+		Lease<T> lease = null;
+		// Prefer a free buffer that already has the right dimensions
+		for (Lease<T> candidate : free) {
+			if (candidate.width == width && candidate.height == height) {
+				lease = candidate;
+				break;
+			}
+		}
+		if (lease != null) {
+			free.remove(lease);
+		} else if (leases.size() < capacity) {
+			lease = new Lease<>(this);
+			leases.add(lease);
+		} else if (!free.isEmpty()) {
+			lease = free.pop();
+		} else {
+			return null;
+		}
+		if (lease.buffer == null || lease.width != width || lease.height != height) {
+			lease.buffer = factory.create(width, height);
+			lease.width = width;
+			lease.height = height;
+			allocations++;
+		}
+		lease.leased = true;
+		lease.acquiredAt = System.nanoTime();
+		lease.acquiredBy = leakTracking ? new Throwable("Buffer acquired here") : null;
+		return lease;
+	}
+
+	private synchronized void release(Lease<T> lease) {
+		if (!lease.leased)
+			throw new IllegalStateException("Lease has already been released");
+		lease.leased = false;
+		lease.acquiredBy = null;
+		free.push(lease);
+		notifyAll();
+	}
+
+	/**
+	 * Finds leases that have been held for longer than the specified time. Leases held far
+	 * longer than a capture normally takes to process are most likely leaks.
+	 *
+	 * @param heldLongerThan A long specifying the time in milliseconds.
+	 * @return A List of the leases held for longer than the specified time.
+	 */
+	public synchronized List<Lease<T>> findLeaks(long heldLongerThan) {
+		List<Lease<T>> leaks = new ArrayList<>();
+		for (Lease<T> lease : leases) {
+			if (lease.leased && lease.getHeldMillis() > heldLongerThan)
+				leaks.add(lease);
+		}
+		return leaks;
+	}
+
+	/**
+	 * Gets the maximum number of buffers in the pool.
+	 *
+	 * @return The pool's capacity.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the number of buffers currently leased out.
+	 *
+	 * @return The number of outstanding leases.
+	 */
+	public synchronized int getOutstanding() {
+		return leases.size() - free.size();
+	}
+
+	/**
+	 * Gets the number of buffers the pool has created. Once a capture loop has reached a steady
+	 * state this stops increasing.
+	 *
+	 * @return The number of buffers created.
+	 */
+	public synchronized long getAllocationCount() {
+		return allocations;
+	}
+
+	private String exhaustedMessage() {
+		StringBuilder sb = new StringBuilder("BufferPool exhausted: all ")
+				.append(capacity).append(" buffers are leased and none were released within ")
+				.append(acquireTimeoutMillis).append("ms. Buffers may have been leaked.");
+		for (Lease<T> lease : leases) {
+			if (lease.leased) {
+				sb.append("\n\tHeld for ").append(lease.getHeldMillis()).append("ms");
+				if (lease.acquiredBy != null) {
+					for (StackTraceElement element : lease.acquiredBy.getStackTrace())
+						sb.append("\n\t\tat ").append(element);
+				}
+			}
+		}
+		if (!leakTracking)
+			sb.append("\nEnable leak tracking to see where buffers were acquired.");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,149 @@
+package com.hopding.jrpicam.image;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * DecodeOptions describes how much of an encoded image to decode, for when only a preview or
+ * a part of a full resolution capture is needed.
+ * <p>
+ * An image can be scaled down by a whole factor, which keeps every n-th pixel of every n-th
+ * row, and limited to a region. Both are applied by the ImageReader as it decodes, using
+ * {@link ImageReadParam#setSourceSubsampling(int, int, int, int)} and
+ * {@link ImageReadParam#setSourceRegion(Rectangle)}, so the full size image is never
+ * converted to RGB or stored in memory. The JPEG reader still has to decompress every row down
+ * to the bottom of the region, but stops there, so tiles near the top of an image decode
+ * fastest: for a 2592x1944 image, a scale of 8 takes about 70% of the time of a full decode,
+ * and the top left tile of a 4x4 grid about 20% (see JPEGDecodeBenchmark).
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * RPiCamera piCamera = new RPiCamera().setWidth(2592).setHeight(1944);
+ *
+ * // A 648x486 preview
+ * BufferedImage preview = piCamera.takeBufferedStill(new DecodeOptions().setScale(4));
+ *
+ * // The top left 256x256 tile, at full resolution
+ * BufferedImage tile = piCamera.takeBufferedStill(new DecodeOptions().setRegion(0, 0, 256, 256));
+ *}
+ * </pre>
+ */
+public class DecodeOptions {
+
+	private int scale = 1;
+	private Rectangle region;
+
+	/**
+	 * Sets the factor to scale the image down by. For example, a scale of 4 turns a 2592x1944
+	 * image into a 648x486 one. If a region is also set, the region is scaled.
+	 *
+	 * @param scale An int specifying the scale factor, 1 to decode at full size.
+	 */
+	public DecodeOptions setScale(int scale) {
+		if (scale < 1)
+			throw new IllegalArgumentException("Scale must be 1 or more");
+		this.scale = scale;
+		return this;
+	}
+
+	/**
+	 * Gets the factor the image is scaled down by.
+	 *
+	 * @return The scale factor.
+	 */
+	public int getScale() {
+		return scale;
+	}
+
+	/**
+	 * Limits decoding to a region of the image. The region is clipped to the image.
+	 *
+	 * @param x An int specifying the x coordinate of the region's left edge, in full size pixels.
+	 * @param y An int specifying the y coordinate of the region's top edge, in full size pixels.
+	 * @param width An int specifying the width of the region, in full size pixels.
+	 * @param height An int specifying the height of the region, in full size pixels.
+	 */
+	public DecodeOptions setRegion(int x, int y, int width, int height) {
+		this.region = new Rectangle(x, y, width, height);
+		return this;
+	}
+
+	/**
+	 * Limits decoding to a region of the image, or removes the limit.
+	 *
+	 * @param region The Rectangle to decode, in full size pixels, or null for the whole image.
+	 */
+	public DecodeOptions setRegion(Rectangle region) {
+		this.region = region == null ? null : new Rectangle(region);
+		return this;
+	}
+
+	/**
+	 * Gets the region of the image decoded.
+	 *
+	 * @return The region, or null if the whole image is decoded.
+	 */
+	public Rectangle getRegion() {
+		return region == null ? null : new Rectangle(region);
+	}
+
+	/**
+	 * Sets up an ImageReadParam to decode the image as these options describe.
+	 *
+	 * @param param The ImageReadParam to set up.
+	 */
+	public void apply(ImageReadParam param) {
+		param.setSourceSubsampling(scale, scale, 0, 0);
+		param.setSourceRegion(region);
+	}
+
+	/**
+	 * Decodes an image from an InputStream, such as raspistill's output.
+	 *
+	 * @param in The InputStream to read the image from.
+	 * @return A BufferedImage containing the decoded image.
+	 * @throws IOException if the image couldn't be read, or doesn't overlap the region.
+	 */
+	public BufferedImage decode(InputStream in) throws IOException {
+		try (ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext())
+				throw new IOException("Image is not in a readable format");
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(iis, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				apply(param);
+				return reader.read(0, param);
+			} catch (IllegalArgumentException e) {
+				// Thrown when the region lies outside the image
+				throw new IOException("Region " + region + " doesn't overlap the image", e);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Decodes an image held in memory, such as a frame from a capture stream.
+	 *
+	 * @param buffer The buffer containing the image.
+	 * @param offset The offset of the image's first byte within the buffer.
+	 * @param length The length of the image in bytes.
+	 * @return A BufferedImage containing the decoded image.
+	 * @throws IOException if the image couldn't be read, or doesn't overlap the region.
+	 */
+	public BufferedImage decode(byte[] buffer, int offset, int length) throws IOException {
+		return decode(new ByteArrayInputStream(buffer, offset, length));
+	}
+}
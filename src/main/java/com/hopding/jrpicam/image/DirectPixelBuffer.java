@@ -0,0 +1,78 @@
+package com.hopding.jrpicam.image;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link PixelBuffer} that stores three bytes per pixel, in RGB order, in a direct
+ * ByteBuffer. Direct buffers live outside the Java heap, so large frames don't count against
+ * a Pi's small heap, and can be handed to native code (e.g. through JNI) without copying.
+ * <p>
+ * BufferedImage cannot be backed by off-heap memory, so {@link #toBufferedImage()} copies the
+ * pixels into a new {@link BufferedImage#TYPE_3BYTE_BGR} image.
+ */
+public class DirectPixelBuffer implements PixelBuffer {
+
+	private final int width;
+	private final int height;
+	private final ByteBuffer data;
+
+	/**
+	 * Creates a new DirectPixelBuffer.
+	 *
+	 * @param width An int specifying the width of the image in pixels.
+	 * @param height An int specifying the height of the image in pixels.
+	 */
+	public DirectPixelBuffer(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.data = ByteBuffer.allocateDirect(width * height * 3);
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Gets the direct ByteBuffer backing this buffer. The returned buffer is a duplicate, so
+	 * its position and limit may be changed freely, but changes to its contents are reflected
+	 * in this buffer.
+	 *
+	 * @return The backing buffer, three bytes per pixel.
+	 */
+	public ByteBuffer getData() {
+		return data.duplicate();
+	}
+
+	@Override
+	public int getRGB(int x, int y) {
+		int i = (y * width + x) * 3;
+		return (data.get(i) & 0xFF) << 16 | (data.get(i + 1) & 0xFF) << 8 | (data.get(i + 2) & 0xFF);
+	}
+
+	@Override
+	public void setRow(int y, byte[] rgb, int offset) {
+		ByteBuffer row = data.duplicate();
+		row.position(y * width * 3);
+		row.put(rgb, offset, width * 3);
+	}
+
+	@Override
+	public BufferedImage toBufferedImage() {
+		BytePixelBuffer copy = new BytePixelBuffer(width, height, BytePixelBuffer.ChannelOrder.BGR);
+		byte[] row = new byte[width * 3];
+		ByteBuffer src = data.duplicate();
+		src.clear();
+		for (int y = 0; y < height; y++) {
+			src.get(row);
+			copy.setRow(y, row, 0);
+		}
+		return copy.toBufferedImage();
+	}
+}
@@ -0,0 +1,89 @@
+package com.hopding.jrpicam.image;
+
+import java.util.Arrays;
+
+/**
+ * An EncodedFrame holds a single encoded image (e.g. a JPEG) in a reusable byte array. The
+ * array is larger than the image it holds, and only grows when an image larger than any held
+ * before is stored, so EncodedFrames can be pooled with a {@link BufferPool} and reused for
+ * every frame of a capture stream.
+ */
+public class EncodedFrame {
+
+	private byte[] data;
+	private int length;
+
+	/**
+	 * Creates a new EncodedFrame with the specified initial capacity.
+	 *
+	 * @param capacity An int specifying the initial capacity in bytes.
+	 */
+	public EncodedFrame(int capacity) {
+		this.data = new byte[capacity];
+	}
+
+	/**
+	 * Creates a new EncodedFrame with enough capacity for a typical JPEG of the specified
+	 * dimensions. This constructor may be used as a {@link BufferPool.Factory}.
+	 *
+	 * @param width The width of the image in pixels.
+	 * @param height The height of the image in pixels.
+	 */
+	public EncodedFrame(int width, int height) {
+		this(width * height);
+	}
+
+	/**
+	 * Stores a copy of the specified bytes in this EncodedFrame, replacing its previous contents.
+	 *
+	 * @param src The array holding the encoded image.
+	 * @param offset The offset of the image's first byte within src.
+	 * @param length The length of the image in bytes.
+	 */
+	public void set(byte[] src, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(src, offset, data, 0, length);
+		this.length = length;
+	}
+
+	/**
+	 * Makes sure the EncodedFrame can hold an image of the specified length without growing.
+	 *
+	 * @param capacity The required capacity in bytes.
+	 */
+	public void ensureCapacity(int capacity) {
+		if (data.length < capacity)
+			data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+	}
+
+	/**
+	 * Gets the array holding the encoded image. Only the first {@link #getLength()} bytes are
+	 * part of the image.
+	 *
+	 * @return The backing array.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * Gets the length of the encoded image.
+	 *
+	 * @return The length in bytes.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Sets the length of the encoded image, after it has been written directly into
+	 * {@link #getData()}.
+	 *
+	 * @param length The length in bytes.
+	 */
+	public void setLength(int length) {
+		if (length < 0 || length > data.length)
+			throw new IllegalArgumentException("Length " + length + " out of range");
+		this.length = length;
+	}
+}
@@ -0,0 +1,83 @@
+package com.hopding.jrpicam.image;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * A {@link PixelBuffer} that stores each pixel as a single int packed as 0xAARRGGBB, from left
+ * to right and top to bottom. Every pixel is fully opaque. This is the layout used by
+ * {@link BufferedImage#TYPE_INT_ARGB} and by {@link BufferedImage#getRGB(int, int)}, so
+ * {@link #toBufferedImage()} wraps the buffer without copying any pixels, and code written
+ * against BufferedImage's packed ints can process it directly.
+ */
+public class IntPixelBuffer implements PixelBuffer {
+
+	private final int width;
+	private final int height;
+	private final int[] data;
+	private BufferedImage image;
+
+	/**
+	 * Creates a new IntPixelBuffer.
+	 *
+	 * @param width An int specifying the width of the image in pixels.
+	 * @param height An int specifying the height of the image in pixels.
+	 */
+	public IntPixelBuffer(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.data = new int[width * height];
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Gets the int array backing this buffer. Changes to the array are reflected in the buffer.
+	 *
+	 * @return The backing array, one ARGB int per pixel.
+	 */
+	public int[] getData() {
+		return data;
+	}
+
+	@Override
+	public int getRGB(int x, int y) {
+		return data[y * width + x] & 0xFFFFFF;
+	}
+
+	@Override
+	public void setRow(int y, byte[] rgb, int offset) {
+		int dst = y * width;
+		for (int x = 0; x < width; x++, offset += 3) {
+			data[dst + x] = 0xFF000000
+					| (rgb[offset] & 0xFF) << 16
+					| (rgb[offset + 1] & 0xFF) << 8
+					| (rgb[offset + 2] & 0xFF);
+		}
+	}
+
+	@Override
+	public BufferedImage toBufferedImage() {
+		if (image == null) {
+			DirectColorModel colorModel = (DirectColorModel) ColorModel.getRGBdefault();
+			WritableRaster raster = Raster.createPackedRaster(
+					new DataBufferInt(data, data.length), width, height, width,
+					colorModel.getMasks(), new Point());
+			image = new BufferedImage(colorModel, raster, false, null);
+		}
+		return image;
+	}
+}
@@ -0,0 +1,60 @@
+package com.hopding.jrpicam.image;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A PixelBuffer holds the uncompressed pixels of a captured image in a compact form. Unlike
+ * the int array returned by {@link com.hopding.jrpicam.RPiCamera#takeStillAsRGB(boolean)},
+ * which spends a whole int on each colour channel, PixelBuffer implementations pack each
+ * pixel into three or four bytes.
+ * <ul>
+ * <li>{@link BytePixelBuffer} - three bytes per pixel in a byte array (RGB or BGR order)</li>
+ * <li>{@link IntPixelBuffer} - one packed ARGB int per pixel</li>
+ * <li>{@link DirectPixelBuffer} - three bytes per pixel (RGB order) in a direct ByteBuffer</li>
+ * </ul>
+ * PixelBuffers are filled a row at a time by {@link com.hopding.jrpicam.io.RGBReader}, and
+ * may be reused for any number of captures of the same dimensions.
+ */
+public interface PixelBuffer {
+
+	/**
+	 * Gets the width of the image held by this PixelBuffer.
+	 *
+	 * @return The width in pixels.
+	 */
+	int getWidth();
+
+	/**
+	 * Gets the height of the image held by this PixelBuffer.
+	 *
+	 * @return The height in pixels.
+	 */
+	int getHeight();
+
+	/**
+	 * Gets the colour of a single pixel.
+	 *
+	 * @param x The pixel's column.
+	 * @param y The pixel's row.
+	 * @return The pixel's colour packed as 0xRRGGBB.
+	 */
+	int getRGB(int x, int y);
+
+	/**
+	 * Stores a row of pixels, given as three bytes per pixel in RGB order.
+	 *
+	 * @param y The row to store.
+	 * @param rgb A byte array holding the row's pixels.
+	 * @param offset The offset of the row's first byte within rgb.
+	 */
+	void setRow(int y, byte[] rgb, int offset);
+
+	/**
+	 * Gets a BufferedImage containing this PixelBuffer's image. Where the underlying storage
+	 * allows it the BufferedImage shares that storage, so no pixels are copied and any later
+	 * changes to the PixelBuffer are visible in the BufferedImage.
+	 *
+	 * @return A BufferedImage of the image.
+	 */
+	BufferedImage toBufferedImage();
+}
@@ -0,0 +1,282 @@
+package com.hopding.jrpicam.image;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * YUV420Image holds an image in the planar YUV420 (I420) format produced by raspiyuv. The
+ * image is stored exactly as raspiyuv outputs it, in a single byte array containing the full
+ * resolution Y (luma) plane followed by the quarter resolution U and V (chroma) planes, and
+ * each plane is exposed as a {@link Plane} view of that array, so no pixels are ever copied.
+ * <p>
+ * raspiyuv pads the Y plane's width to a multiple of 32 and its height to a multiple of 16,
+ * and the U and V planes to half of those. Each Plane reports the image's real dimensions
+ * along with the stride (padded width) and padded height of its rows, so consumers can
+ * index pixels as {@code data[offset + y * stride + x]}.
+ * <p>
+ * Analytics that only need brightness can create a luma only image, which makes raspiyuv
+ * output only the Y plane. That is half the data of an RGB capture, and the GPU skips the
+ * RGB conversion entirely.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * RPiCamera piCamera = new RPiCamera().turnOffPreview();
+ * YUV420Image image = new YUV420Image(640, 480, true); // Luma only
+ * piCamera.takeStillAsYUV(image);
+ *
+ * // Average brightness of the image
+ * YUV420Image.Plane y = image.getY();
+ * long sum = 0;
+ * for (int row = 0; row < y.getHeight(); row++)
+ *     for (int col = 0; col < y.getWidth(); col++)
+ *         sum += y.get(col, row);
+ * System.out.println(sum / (y.getWidth() * y.getHeight()));
+ *}
+ * </pre>
+ */
+public class YUV420Image {
+
+	/**
+	 * A single plane of a YUV420Image, backed by the image's byte array.
+	 */
+	public class Plane {
+
+		private final int width;
+		private final int height;
+		private final int stride;
+		private final int paddedHeight;
+		private final int offset;
+
+		private Plane(int width, int height, int stride, int paddedHeight, int offset) {
+			this.width = width;
+			this.height = height;
+			this.stride = stride;
+			this.paddedHeight = paddedHeight;
+			this.offset = offset;
+		}
+
+		/**
+		 * Gets the width of the plane, not including padding.
+		 *
+		 * @return The plane's width in samples.
+		 */
+		public int getWidth() {
+			return width;
+		}
+
+		/**
+		 * Gets the height of the plane, not including padding.
+		 *
+		 * @return The plane's height in rows.
+		 */
+		public int getHeight() {
+			return height;
+		}
+
+		/**
+		 * Gets the distance in bytes between the start of one row and the start of the next.
+		 *
+		 * @return The plane's stride.
+		 */
+		public int getStride() {
+			return stride;
+		}
+
+		/**
+		 * Gets the number of rows in the plane, including padding.
+		 *
+		 * @return The plane's padded height.
+		 */
+		public int getPaddedHeight() {
+			return paddedHeight;
+		}
+
+		/**
+		 * Gets the offset of the plane's first sample within {@link #getData()}.
+		 *
+		 * @return The plane's offset.
+		 */
+		public int getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Gets the array backing the whole image, which this plane is a part of.
+		 *
+		 * @return The image's byte array.
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * Gets a single sample of the plane.
+		 *
+		 * @param x The sample's column.
+		 * @param y The sample's row.
+		 * @return The sample's value (0 - 255).
+		 */
+		public int get(int x, int y) {
+			return data[offset + y * stride + x] & 0xFF;
+		}
+
+		/**
+		 * Gets a read only ByteBuffer view of the plane, including padding. The view's position
+		 * is 0 and its limit is {@code getStride() * getPaddedHeight()}.
+		 *
+		 * @return A ByteBuffer sharing the plane's memory.
+		 */
+		public ByteBuffer asByteBuffer() {
+			return ByteBuffer.wrap(data, offset, stride * paddedHeight).slice().asReadOnlyBuffer();
+		}
+	}
+
+	private final int width;
+	private final int height;
+	private final boolean lumaOnly;
+	private final byte[] data;
+	private final Plane y;
+	private final Plane u;
+	private final Plane v;
+
+	/**
+	 * Creates a new YUV420Image holding all three planes.
+	 *
+	 * @param width An int specifying the width of the image in pixels.
+	 * @param height An int specifying the height of the image in pixels.
+	 */
+	public YUV420Image(int width, int height) {
+		this(width, height, false);
+	}
+
+	/**
+	 * Creates a new YUV420Image, which may hold only the Y plane.
+	 *
+	 * @param width An int specifying the width of the image in pixels.
+	 * @param height An int specifying the height of the image in pixels.
+	 * @param lumaOnly A boolean indicating whether to capture only the Y plane.
+	 */
+	public YUV420Image(int width, int height, boolean lumaOnly) {
+		this(width, height, (width + 31) & ~31, (height + 15) & ~15, lumaOnly);
+	}
+
+	/**
+	 * Creates a new YUV420Image with explicit padded dimensions for the Y plane. The U and V
+	 * planes are padded to half of those dimensions.
+	 *
+	 * @param width An int specifying the width of the image in pixels.
+	 * @param height An int specifying the height of the image in pixels.
+	 * @param stride An int specifying the padded width of the Y plane.
+	 * @param paddedHeight An int specifying the padded height of the Y plane.
+	 * @param lumaOnly A boolean indicating whether to capture only the Y plane.
+	 */
+	public YUV420Image(int width, int height, int stride, int paddedHeight, boolean lumaOnly) {
+		if (stride < width || paddedHeight < height)
+			throw new IllegalArgumentException("Padded dimensions may not be smaller than image dimensions");
+		this.width = width;
+		this.height = height;
+		this.lumaOnly = lumaOnly;
+		int lumaSize = stride * paddedHeight;
+		int chromaStride = stride / 2;
+		int chromaRows = paddedHeight / 2;
+		int chromaSize = chromaStride * chromaRows;
+		this.data = new byte[lumaOnly ? lumaSize : lumaSize + 2 * chromaSize];
+		this.y = new Plane(width, height, stride, paddedHeight, 0);
+		if (lumaOnly) {
+			this.u = null;
+			this.v = null;
+		} else {
+			this.u = new Plane((width + 1) / 2, (height + 1) / 2, chromaStride, chromaRows, lumaSize);
+			this.v = new Plane((width + 1) / 2, (height + 1) / 2, chromaStride, chromaRows, lumaSize + chromaSize);
+		}
+	}
+
+	/**
+	 * Reads an image, exactly as output by raspiyuv, into this YUV420Image.
+	 *
+	 * @param in The InputStream to read raspiyuv's output from.
+	 * @return true if a complete image was read, false if the stream ended first.
+	 * @throws IOException
+	 */
+	public boolean read(InputStream in) throws IOException {
+		int off = 0;
+		while (off < data.length) {
+			int n = in.read(data, off, data.length - off);
+			if (n < 0)
+				return false;
+			off += n;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the width of the image.
+	 *
+	 * @return The width in pixels.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Gets the height of the image.
+	 *
+	 * @return The height in pixels.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Indicates whether this image holds only the Y plane.
+	 *
+	 * @return true if the image is luma only.
+	 */
+	public boolean isLumaOnly() {
+		return lumaOnly;
+	}
+
+	/**
+	 * Gets the array holding all of the image's planes, exactly as output by raspiyuv.
+	 *
+	 * @return The image's byte array.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * Gets the Y (luma) plane.
+	 *
+	 * @return The Y Plane.
+	 */
+	public Plane getY() {
+		return y;
+	}
+
+	/**
+	 * Gets the U (blue difference) plane.
+	 *
+	 * @return The U Plane.
+	 * @throws IllegalStateException if the image is luma only.
+	 */
+	public Plane getU() {
+		if (lumaOnly)
+			throw new IllegalStateException("Luma only YUV420Image has no U plane");
+		return u;
+	}
+
+	/**
+	 * Gets the V (red difference) plane.
+	 *
+	 * @return The V Plane.
+	 * @throws IllegalStateException if the image is luma only.
+	 */
+	public Plane getV() {
+		if (lumaOnly)
+			throw new IllegalStateException("Luma only YUV420Image has no V plane");
+		return v;
+	}
+}
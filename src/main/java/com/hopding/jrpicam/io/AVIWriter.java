@@ -0,0 +1,490 @@
+package com.hopding.jrpicam.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.hopding.jrpicam.FrameListener;
+
+/**
+ * AVIWriter writes JPEG images into an MJPEG AVI file, producing a video that can be played
+ * by most video players, without decoding or re-encoding the images.
+ * <p>
+ * Frames are written to the file as they are added, and only the file's index is written at
+ * the end, so memory use stays the same however many frames are written. Files larger than
+ * the 1GB that plain AVI files are limited to in practice are written as OpenDML (AVI 2.0)
+ * files, which are split into 1GB RIFF segments that each have their own index. The first
+ * segment also has a plain AVI index, so older players can play at least that part.
+ * <p>
+ * Frames can be added from files, such as those saved by
+ * {@link com.hopding.jrpicam.RPiCamera#timelapse(boolean, String, int)}, or from memory. An
+ * AVIWriter is also a {@link FrameListener}, so it can record an
+ * {@link com.hopding.jrpicam.RPiCameraStream} directly. The frame size is read from the first
+ * frame, and every frame should be the same size.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * // Turn a finished timelapse into a 25fps video
+ * int frames = AVIWriter.assemble("/home/pi/Pictures", "Frame%04d.jpg",
+ *     new File("/home/pi/Videos/timelapse.avi"), 25);
+ *
+ * // Or record a stream
+ * AVIWriter avi = new AVIWriter(new File("/home/pi/Videos/stream.avi"), 10);
+ * RPiCameraStream stream = piCamera.startStream(100, avi);
+ * ...
+ * stream.close();
+ * avi.close();
+ *}
+ * </pre>
+ */
+public class AVIWriter implements FrameListener, Closeable {
+
+	// OpenDML writers conventionally start a new RIFF segment every 1GB
+	private static final long SEGMENT_SIZE = 1L << 30;
+	// Maximum frames per segment, which bounds the memory used for the segment's index
+	private static final int SEGMENT_FRAMES = 1 << 16;
+	// Number of segments the header has room for, so files of up to about 256GB
+	private static final int MAX_SEGMENTS = 256;
+
+	private static final int AVIF_HASINDEX = 0x10;
+	private static final int AVIIF_KEYFRAME = 0x10;
+	private static final int AVI_INDEX_OF_INDEXES = 0;
+	private static final int AVI_INDEX_OF_CHUNKS = 1;
+
+	// Offsets of the header fields that are filled in when the file is closed
+	private static final int RIFF_SIZE = 4;
+	private static final int AVIH = 32;
+	private static final int STRH = 108;
+	private static final int SUPER_INDEX = 220;
+	private static final int SUPER_INDEX_ENTRIES = SUPER_INDEX + 24;
+	private static final int DMLH = 4360;
+	private static final int MOVI_SIZE = 4612;
+	private static final int HEADER_SIZE = 4620;
+
+	private final FileChannel channel;
+	private final double fps;
+	private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private final ByteBuffer chunk = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+	private final ByteBuffer pad = ByteBuffer.allocate(1);
+	private final ByteBuffer out = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+	private byte[] fileBuffer = new byte[0];
+	private long position;
+	private boolean started;
+	private boolean closed;
+	private IOException failure;
+
+	private int width;
+	private int height;
+	private int frameCount;
+	private int maxFrameSize;
+
+	// Current segment
+	private long riffStart;
+	private long moviStart;  // Position of the segment's "movi" FOURCC
+	private int[] frameOffsets = new int[1024]; // Relative to riffStart
+	private int[] frameSizes = new int[1024];
+	private int segmentFrames;
+
+	// Finished segments
+	private int segments;
+	private int firstSegmentFrames;
+
+	/**
+	 * Creates a new AVIWriter that writes to the specified file, replacing it if it exists.
+	 *
+	 * @param file The File to write the video to.
+	 * @param fps A double specifying the frame rate the video plays at.
+	 * @throws IOException
+	 */
+	public AVIWriter(File file, double fps) throws IOException {
+		if (fps <= 0)
+			throw new IllegalArgumentException("Frame rate must be greater than 0");
+		this.fps = fps;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * Writes the numbered images of a timelapse to an AVI file, in frame number order. The save
+	 * directory is listed once, and the images are read one at a time.
+	 *
+	 * @param saveDir A String specifying the directory the timelapse was saved to.
+	 * @param pictureName The name passed to
+	 *                    {@link com.hopding.jrpicam.RPiCamera#timelapse(boolean, String, int)}.
+	 * @param output The File to write the video to.
+	 * @param fps A double specifying the frame rate the video plays at.
+	 * @return The number of frames written.
+	 * @throws IOException
+	 */
+	public static int assemble(String saveDir, String pictureName, File output, double fps)
+			throws IOException {
+		if (!pictureName.contains("%04d"))
+			pictureName = "%04d" + pictureName;
+		int i = pictureName.indexOf("%04d");
+		Pattern pattern = Pattern.compile(Pattern.quote(pictureName.substring(0, i)) + "(\\d{4,})"
+				+ Pattern.quote(pictureName.substring(i + 4)));
+
+		// Only the frame numbers are kept, to keep memory use low for long timelapses
+		int[] numbers = new int[1024];
+		int count = 0;
+		Path dir = Paths.get(saveDir);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path path : files) {
+				Matcher matcher = pattern.matcher(path.getFileName().toString());
+				if (!matcher.matches())
+					continue;
+				if (count == numbers.length)
+					numbers = Arrays.copyOf(numbers, count * 2);
+				numbers[count++] = Integer.parseInt(matcher.group(1));
+			}
+		}
+		Arrays.sort(numbers, 0, count);
+
+		try (AVIWriter writer = new AVIWriter(output, fps)) {
+			for (int n = 0; n < count; n++)
+				writer.writeFrame(dir.resolve(String.format(pictureName, numbers[n])).toFile());
+		}
+		return count;
+	}
+
+	/**
+	 * Adds a JPEG image read from a file. The file is read into a buffer that is reused for
+	 * every file.
+	 *
+	 * @param file The File containing the JPEG image.
+	 * @throws IOException
+	 */
+	public synchronized void writeFrame(File file) throws IOException {
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = in.size();
+			if (size > Integer.MAX_VALUE - 8)
+				throw new IOException(file + " is too large to be a frame");
+			if (fileBuffer.length < size)
+				fileBuffer = new byte[(int) size];
+			ByteBuffer buffer = ByteBuffer.wrap(fileBuffer, 0, (int) size);
+			while (buffer.hasRemaining()) {
+				if (in.read(buffer) < 0)
+					throw new IOException(file + " was truncated while it was read");
+			}
+			writeFrame(fileBuffer, 0, (int) size);
+		}
+	}
+
+	/**
+	 * Adds a JPEG image.
+	 *
+	 * @param buffer The buffer containing the image.
+	 * @param offset The offset of the image's first byte within the buffer.
+	 * @param length The length of the image in bytes.
+	 * @throws IOException
+	 */
+	public synchronized void writeFrame(byte[] buffer, int offset, int length) throws IOException {
+		if (closed)
+			throw new IllegalStateException("AVIWriter has been closed");
+		if (length < 4 || (buffer[offset] & 0xFF) != 0xFF || (buffer[offset + 1] & 0xFF) != 0xD8)
+			throw new IOException("Frame is not a JPEG image");
+		if (!started) {
+			readFrameSize(buffer, offset, length);
+			startFile();
+		}
+
+		// Room for this frame, and the segment's indexes
+		long segmentLength = position - riffStart + 8 + length + indexSize(segmentFrames + 1);
+		if (segments == 0)
+			segmentLength += 8 + 16 * (segmentFrames + 1);
+		if (segmentFrames == SEGMENT_FRAMES || segmentFrames > 0 && segmentLength > SEGMENT_SIZE) {
+			finishSegment();
+			startSegment();
+		}
+
+		if (segmentFrames == frameOffsets.length) {
+			frameOffsets = Arrays.copyOf(frameOffsets, segmentFrames * 2);
+			frameSizes = Arrays.copyOf(frameSizes, segmentFrames * 2);
+		}
+		frameOffsets[segmentFrames] = (int) (position + 8 - riffStart);
+		frameSizes[segmentFrames] = length;
+		segmentFrames++;
+		frameCount++;
+		maxFrameSize = Math.max(maxFrameSize, length);
+
+		// Chunks are padded to an even length
+		chunk.clear();
+		chunk.put(fourcc("00dc")).putInt(length).flip();
+		pad.clear();
+		ByteBuffer[] buffers = { chunk, ByteBuffer.wrap(buffer, offset, length), pad };
+		if (length % 2 == 0)
+			buffers[2].limit(0);
+		long written = 0;
+		long total = 8 + length + (length % 2);
+		while (written < total)
+			written += channel.write(buffers);
+		position += total;
+	}
+
+	/**
+	 * Adds a frame received from an {@link com.hopding.jrpicam.RPiCameraStream}. As frames can't
+	 * be rejected, a failure to write one is saved, and stops any more frames being written. It
+	 * can be retrieved with {@link #getFailure()}.
+	 */
+	@Override
+	public synchronized void onFrame(byte[] buffer, int offset, int length) {
+		if (failure != null || closed)
+			return;
+		try {
+			writeFrame(buffer, offset, length);
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	/**
+	 * Gets the number of frames written.
+	 *
+	 * @return The frame count.
+	 */
+	public synchronized int getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Gets the exception that stopped frames from an RPiCameraStream being written, if any.
+	 *
+	 * @return The IOException, or null.
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Writes the index and completes the file's headers, then closes the file. The file is only
+	 * a valid AVI file once it has been closed.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			if (!started)
+				startFile();
+			finishSegment();
+
+			int usPerFrame = (int) Math.round(1000000 / fps);
+			int bufferSize = maxFrameSize + 8;
+			header.putInt(AVIH, usPerFrame);
+			header.putInt(AVIH + 4, (int) Math.min(Integer.MAX_VALUE, Math.round(maxFrameSize * fps)));
+			// The main header counts only the first segment's frames, as the plain index does
+			header.putInt(AVIH + 16, firstSegmentFrames);
+			header.putInt(AVIH + 28, bufferSize);
+			header.putInt(STRH + 32, frameCount);
+			header.putInt(STRH + 36, bufferSize);
+			header.putInt(SUPER_INDEX + 4, segments);
+			header.putInt(DMLH, frameCount);
+			header.clear();
+			writeAt(header, 0);
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Finds the image size in a JPEG's start of frame segment.
+	 */
+	private void readFrameSize(byte[] buffer, int offset, int length) throws IOException {
+		int pos = offset + 2;
+		int end = offset + length;
+		while (pos + 4 <= end) {
+			if ((buffer[pos] & 0xFF) != 0xFF)
+				break;
+			int marker = buffer[pos + 1] & 0xFF;
+			if (marker == 0xFF) {
+				pos++; // Fill byte
+				continue;
+			}
+			if (marker == 0x01 || marker >= 0xD0 && marker <= 0xD7) {
+				pos += 2; // Standalone marker
+				continue;
+			}
+			int segmentLength = (buffer[pos + 2] & 0xFF) << 8 | buffer[pos + 3] & 0xFF;
+			// SOF0 to SOF15, except DHT (C4), JPG (C8) and DAC (CC)
+			if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+				if (pos + 9 > end)
+					break;
+				height = (buffer[pos + 5] & 0xFF) << 8 | buffer[pos + 6] & 0xFF;
+				width = (buffer[pos + 7] & 0xFF) << 8 | buffer[pos + 8] & 0xFF;
+				return;
+			}
+			if (marker == 0xDA)
+				break; // Image data starts without a frame header
+			pos += 2 + segmentLength;
+		}
+		throw new IOException("Couldn't find the size of the first frame");
+	}
+
+	/**
+	 * Fills in the header and writes it, leaving the fields that depend on the frames for
+	 * close() to fill in.
+	 */
+	private void startFile() throws IOException {
+		started = true;
+		header.put(fourcc("RIFF")).putInt(0).put(fourcc("AVI "));
+		int hdrl = header.position();
+		header.put(fourcc("LIST")).putInt(0).put(fourcc("hdrl"));
+
+		header.put(fourcc("avih")).putInt(56);
+		header.putInt(0);  // Microseconds per frame
+		header.putInt(0);  // Maximum bytes per second
+		header.putInt(0);  // Padding granularity
+		header.putInt(AVIF_HASINDEX);
+		header.putInt(0);  // Total frames
+		header.putInt(0);  // Initial frames
+		header.putInt(1);  // Streams
+		header.putInt(0);  // Suggested buffer size
+		header.putInt(width).putInt(height);
+		header.putInt(0).putInt(0).putInt(0).putInt(0);
+
+		int strl = header.position();
+		header.put(fourcc("LIST")).putInt(0).put(fourcc("strl"));
+		header.put(fourcc("strh")).putInt(56);
+		header.put(fourcc("vids")).put(fourcc("MJPG"));
+		header.putInt(0);  // Flags
+		header.putShort((short) 0).putShort((short) 0); // Priority, language
+		header.putInt(0);  // Initial frames
+		// The frame rate is rate / scale
+		header.putInt(1000).putInt((int) Math.round(fps * 1000));
+		header.putInt(0);  // Start
+		header.putInt(0);  // Length in frames
+		header.putInt(0);  // Suggested buffer size
+		header.putInt(-1); // Quality
+		header.putInt(0);  // Sample size
+		header.putShort((short) 0).putShort((short) 0).putShort((short) width).putShort((short) height);
+
+		header.put(fourcc("strf")).putInt(40);
+		header.putInt(40).putInt(width).putInt(height);
+		header.putShort((short) 1).putShort((short) 24); // Planes, bits per pixel
+		header.put(fourcc("MJPG")).putInt(width * height * 3);
+		header.putInt(0).putInt(0).putInt(0).putInt(0);
+
+		// Super index, pointing to each segment's index
+		header.put(fourcc("indx")).putInt(24 + 16 * MAX_SEGMENTS);
+		header.putShort((short) 4).put((byte) 0).put((byte) AVI_INDEX_OF_INDEXES);
+		header.putInt(0);  // Entries in use
+		header.put(fourcc("00dc"));
+		header.putInt(0).putInt(0).putInt(0);
+		header.position(header.position() + 16 * MAX_SEGMENTS);
+		header.putInt(strl + 4, header.position() - strl - 8);
+
+		header.put(fourcc("LIST")).putInt(4 + 8 + 248).put(fourcc("odml"));
+		header.put(fourcc("dmlh")).putInt(248);
+		header.position(header.position() + 248);
+		header.putInt(hdrl + 4, header.position() - hdrl - 8);
+
+		header.put(fourcc("LIST")).putInt(0).put(fourcc("movi"));
+		header.flip();
+		while (header.hasRemaining())
+			position += channel.write(header);
+		riffStart = 0;
+		moviStart = HEADER_SIZE - 4;
+	}
+
+	/**
+	 * Starts an AVIX segment, which holds frames that don't fit in the first segment.
+	 */
+	private void startSegment() throws IOException {
+		if (segments == MAX_SEGMENTS)
+			throw new IOException("AVI file is full");
+		riffStart = position;
+		moviStart = position + 20;
+		out.clear();
+		out.put(fourcc("RIFF")).putInt(0).put(fourcc("AVIX"));
+		out.put(fourcc("LIST")).putInt(0).put(fourcc("movi"));
+		flush();
+	}
+
+	/**
+	 * Writes the current segment's index, and fills in the segment's sizes.
+	 */
+	private void finishSegment() throws IOException {
+		// Standard index, at the end of the movi list
+		long indexStart = position;
+		out.clear();
+		out.put(fourcc("ix00")).putInt(indexSize(segmentFrames) - 8);
+		out.putShort((short) 2).put((byte) 0).put((byte) AVI_INDEX_OF_CHUNKS);
+		out.putInt(segmentFrames);
+		out.put(fourcc("00dc"));
+		out.putLong(riffStart); // Base that entry offsets are relative to
+		out.putInt(0);
+		for (int i = 0; i < segmentFrames; i++) {
+			if (out.remaining() < 8)
+				flush();
+			out.putInt(frameOffsets[i]).putInt(frameSizes[i]); // All frames are keyframes
+		}
+		flush();
+		int superEntry = SUPER_INDEX_ENTRIES + 16 * segments;
+		header.putLong(superEntry, indexStart);
+		header.putInt(superEntry + 8, indexSize(segmentFrames));
+		header.putInt(superEntry + 12, segmentFrames);
+		int moviSize = (int) (position - moviStart);
+
+		if (segments == 0) {
+			// Plain index, for players that don't support OpenDML
+			out.clear();
+			out.put(fourcc("idx1")).putInt(16 * segmentFrames);
+			for (int i = 0; i < segmentFrames; i++) {
+				if (out.remaining() < 16)
+					flush();
+				out.put(fourcc("00dc")).putInt(AVIIF_KEYFRAME);
+				out.putInt((int) (frameOffsets[i] - 8 - moviStart)).putInt(frameSizes[i]);
+			}
+			flush();
+			firstSegmentFrames = segmentFrames;
+			header.putInt(RIFF_SIZE, (int) (position - 8));
+			header.putInt(MOVI_SIZE, moviSize);
+		} else {
+			ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			size.putInt(0, (int) (position - riffStart - 8));
+			writeAt(size, riffStart + 4);
+			size.clear();
+			size.putInt(0, moviSize);
+			writeAt(size, moviStart - 4);
+		}
+		segments++;
+		segmentFrames = 0;
+	}
+
+	private static int indexSize(int frames) {
+		return 32 + 8 * frames;
+	}
+
+	private void flush() throws IOException {
+		out.flip();
+		while (out.hasRemaining())
+			position += channel.write(out);
+		out.clear();
+	}
+
+	private void writeAt(ByteBuffer buffer, long at) throws IOException {
+		while (buffer.hasRemaining())
+			at += channel.write(buffer, at);
+	}
+
+	private static byte[] fourcc(String code) {
+		return code.getBytes(StandardCharsets.US_ASCII);
+	}
+}
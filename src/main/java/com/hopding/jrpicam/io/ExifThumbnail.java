@@ -0,0 +1,258 @@
+package com.hopding.jrpicam.io;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+/**
+ * ExifThumbnail gets the small preview JPEG that raspistill embeds in the EXIF (APP1) segment
+ * of every image it takes, without decoding, or even reading, the main image. The thumbnail is
+ * 64x48 pixels unless changed with
+ * {@link com.hopding.jrpicam.RPiCamera#setThumbnailParams(int, int, int)}.
+ * <p>
+ * Only the segments before the main image are examined: the thumbnail's position is read from
+ * the second IFD of the EXIF data (the JPEGInterchangeFormat and JPEGInterchangeFormatLength
+ * tags), so getting a thumbnail from a file reads a few kilobytes however large the image is.
+ * This makes listing thousands of timelapse images as a gallery practical.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * for (File image : timelapseImages) {
+ *     BufferedImage thumbnail = ExifThumbnail.readImage(image);
+ *     if (thumbnail != null)
+ *         gallery.add(thumbnail);
+ * }
+ *}
+ * </pre>
+ */
+public final class ExifThumbnail {
+
+	private static final int SOI = 0xD8;
+	private static final int APP1 = 0xE1;
+	private static final int SOS = 0xDA;
+
+	private static final int TAG_COMPRESSION = 0x0103;
+	private static final int TAG_JPEG_OFFSET = 0x0201;
+	private static final int TAG_JPEG_LENGTH = 0x0202;
+	private static final int TYPE_SHORT = 3;
+	private static final int COMPRESSION_JPEG = 6;
+
+	private ExifThumbnail() {
+	}
+
+	/**
+	 * Reads the thumbnail from a JPEG file. Only the start of the file is read.
+	 *
+	 * @param file The JPEG File.
+	 * @return The thumbnail JPEG's bytes, or null if the image has no JPEG thumbnail.
+	 * @throws IOException
+	 */
+	public static byte[] read(File file) throws IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), 8192)) {
+			return read(in);
+		}
+	}
+
+	/**
+	 * Reads the thumbnail from a stream containing a JPEG, such as raspistill's output. The
+	 * stream is read up to the end of the EXIF segment, and is not closed.
+	 *
+	 * @param in The InputStream to read the JPEG from.
+	 * @return The thumbnail JPEG's bytes, or null if the image has no JPEG thumbnail.
+	 * @throws IOException
+	 */
+	public static byte[] read(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		try {
+			if (data.readUnsignedByte() != 0xFF || data.readUnsignedByte() != SOI)
+				throw new IOException("Image is not a JPEG");
+			while (true) {
+				int marker = readMarker(data);
+				if (marker == SOS || marker < 0xC0)
+					return null; // The image data starts, so there is no EXIF segment
+				int length = data.readUnsignedShort() - 2;
+				if (length < 0)
+					throw new IOException("Invalid JPEG segment length");
+				if (marker == APP1) {
+					byte[] segment = new byte[length];
+					data.readFully(segment);
+					ByteBuffer thumbnail = findInSegment(ByteBuffer.wrap(segment));
+					if (thumbnail != null)
+						return toArray(thumbnail);
+				} else {
+					skipFully(data, length);
+				}
+			}
+		} catch (EOFException e) {
+			throw new IOException("JPEG ended before its image data", e);
+		}
+	}
+
+	/**
+	 * Reads the thumbnail from a JPEG file and decodes it.
+	 *
+	 * @param file The JPEG File.
+	 * @return A BufferedImage containing the thumbnail, or null if the image has no JPEG
+	 *         thumbnail.
+	 * @throws IOException
+	 */
+	public static BufferedImage readImage(File file) throws IOException {
+		byte[] thumbnail = read(file);
+		return thumbnail == null ? null : ImageIO.read(new ByteArrayInputStream(thumbnail));
+	}
+
+	/**
+	 * Copies the thumbnail out of a JPEG held in memory, such as a frame from a capture stream.
+	 *
+	 * @param buffer The buffer containing the JPEG.
+	 * @param offset The offset of the JPEG's first byte within the buffer.
+	 * @param length The length of the JPEG in bytes.
+	 * @return The thumbnail JPEG's bytes, or null if the image has no JPEG thumbnail.
+	 */
+	public static byte[] extract(byte[] buffer, int offset, int length) {
+		ByteBuffer thumbnail = find(ByteBuffer.wrap(buffer, offset, length).slice());
+		return thumbnail == null ? null : toArray(thumbnail);
+	}
+
+	/**
+	 * Finds the thumbnail in a JPEG held in a ByteBuffer, such as one returned by
+	 * {@link com.hopding.jrpicam.store.FrameStore#getFrame(int)}, without copying it. The
+	 * buffer's position and limit are left unchanged.
+	 *
+	 * @param image A ByteBuffer whose remaining bytes are a JPEG.
+	 * @return A ByteBuffer sharing the image's content whose remaining bytes are the thumbnail,
+	 *         or null if the image has no JPEG thumbnail.
+	 */
+	public static ByteBuffer find(ByteBuffer image) {
+		ByteBuffer jpeg = image.slice();
+		int end = jpeg.limit();
+		if (end < 4 || (jpeg.get(0) & 0xFF) != 0xFF || (jpeg.get(1) & 0xFF) != SOI)
+			return null;
+		int pos = 2;
+		while (pos + 4 <= end) {
+			if ((jpeg.get(pos) & 0xFF) != 0xFF)
+				return null;
+			int marker = jpeg.get(pos + 1) & 0xFF;
+			if (marker == 0xFF) {
+				pos++; // Fill byte
+				continue;
+			}
+			if (marker == SOS || marker < 0xC0)
+				return null;
+			int length = jpeg.getShort(pos + 2) & 0xFFFF;
+			if (length < 2 || pos + 2 + length > end)
+				return null;
+			if (marker == APP1) {
+				jpeg.limit(pos + 2 + length).position(pos + 4);
+				ByteBuffer thumbnail = findInSegment(jpeg.slice());
+				jpeg.limit(end);
+				if (thumbnail != null)
+					return thumbnail;
+			}
+			pos += 2 + length;
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the thumbnail in an APP1 segment's payload, or returns null if the segment isn't
+	 * EXIF data or has no JPEG thumbnail.
+	 */
+	private static ByteBuffer findInSegment(ByteBuffer segment) {
+		// "Exif\0\0", then a TIFF file whose offsets are relative to its start
+		if (segment.limit() < 14 || segment.getInt(0) != 0x45786966 || segment.getShort(4) != 0)
+			return null;
+		segment.position(6);
+		ByteBuffer tiff = segment.slice();
+		int size = tiff.limit();
+		short byteOrder = tiff.getShort(0);
+		if (byteOrder == 0x4949)
+			tiff.order(ByteOrder.LITTLE_ENDIAN);
+		else if (byteOrder != 0x4D4D)
+			return null;
+		if (tiff.getShort(2) != 42)
+			return null;
+
+		// IFD0 describes the main image, and IFD1 the thumbnail
+		long ifd0 = tiff.getInt(4) & 0xFFFFFFFFL;
+		if (ifd0 + 2 > size)
+			return null;
+		int entries = tiff.getShort((int) ifd0) & 0xFFFF;
+		long next = ifd0 + 2 + 12L * entries;
+		if (next + 4 > size)
+			return null;
+		long ifd1 = tiff.getInt((int) next) & 0xFFFFFFFFL;
+		if (ifd1 == 0 || ifd1 + 2 > size)
+			return null;
+
+		entries = tiff.getShort((int) ifd1) & 0xFFFF;
+		long offset = -1;
+		long length = -1;
+		for (int i = 0; i < entries; i++) {
+			int entry = (int) ifd1 + 2 + 12 * i;
+			if (entry + 12 > size)
+				return null;
+			int tag = tiff.getShort(entry) & 0xFFFF;
+			int type = tiff.getShort(entry + 2) & 0xFFFF;
+			// Values of 4 bytes or less are held in the entry itself
+			long value = type == TYPE_SHORT ? tiff.getShort(entry + 8) & 0xFFFF
+					: tiff.getInt(entry + 8) & 0xFFFFFFFFL;
+			if (tag == TAG_COMPRESSION && value != COMPRESSION_JPEG)
+				return null; // An uncompressed thumbnail
+			else if (tag == TAG_JPEG_OFFSET)
+				offset = value;
+			else if (tag == TAG_JPEG_LENGTH)
+				length = value;
+		}
+		if (offset < 0 || length < 4 || offset + length > size)
+			return null;
+		tiff.limit((int) (offset + length)).position((int) offset);
+		ByteBuffer thumbnail = tiff.slice();
+		if ((thumbnail.get(0) & 0xFF) != 0xFF || (thumbnail.get(1) & 0xFF) != SOI)
+			return null;
+		return thumbnail;
+	}
+
+	private static int readMarker(DataInputStream data) throws IOException {
+		if (data.readUnsignedByte() != 0xFF)
+			throw new IOException("Invalid JPEG marker");
+		int marker;
+		while ((marker = data.readUnsignedByte()) == 0xFF)
+			; // Fill bytes
+		return marker;
+	}
+
+	private static void skipFully(InputStream in, int n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				if (in.read() < 0)
+					throw new EOFException();
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	private static byte[] toArray(ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			int start = buffer.arrayOffset() + buffer.position();
+			return Arrays.copyOfRange(buffer.array(), start, start + buffer.remaining());
+		}
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,339 @@
+package com.hopding.jrpicam.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * H264FrameReader reads an H.264 Annex-B byte stream (such as the stdout of raspivid when it is
+ * writing to "-o -") and splits it into NAL units and access units. An access unit holds all
+ * of the NAL units that make up one frame of video, along with any parameter sets (SPS/PPS)
+ * and SEI messages that precede it, and is the unit {@link #next()} returns.
+ * <p>
+ * NAL units are delimited by searching for the 0x000001 start code, and access unit boundaries
+ * are found as described in section 7.4.1.2.3 of the H.264 specification: a new access unit
+ * begins with an access unit delimiter, SEI, SPS or PPS NAL unit, or with the first slice of a
+ * new picture (a slice whose first_mb_in_slice is 0), once the current access unit already
+ * contains a slice. An access unit is therefore only known to be complete once the first NAL
+ * unit of the next one has started to arrive.
+ * <p>
+ * Data is read from the stream in bulk into an internal buffer, which is reused between frames
+ * and only grows when a frame is larger than any frame seen before. The start code search
+ * resumes where it left off each time more data arrives.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * H264FrameReader reader = new H264FrameReader(process.getInputStream());
+ * while (reader.next()) {
+ *     // The frame is valid until the next call to next()
+ *     if (reader.isKeyFrame())
+ *         System.out.println("Keyframe of " + reader.getFrameLength() + " bytes");
+ *     out.write(reader.getBuffer(), reader.getFrameOffset(), reader.getFrameLength());
+ * }
+ *}
+ * </pre>
+ */
+public class H264FrameReader implements Closeable {
+
+	/** NAL unit type of a slice of a non-IDR picture. */
+	public static final int NAL_SLICE = 1;
+	/** NAL unit type of a slice of an IDR picture (a keyframe). */
+	public static final int NAL_IDR   = 5;
+	/** NAL unit type of supplemental enhancement information. */
+	public static final int NAL_SEI   = 6;
+	/** NAL unit type of a sequence parameter set. */
+	public static final int NAL_SPS   = 7;
+	/** NAL unit type of a picture parameter set. */
+	public static final int NAL_PPS   = 8;
+	/** NAL unit type of an access unit delimiter. */
+	public static final int NAL_AUD   = 9;
+
+	private static final int DEFAULT_CAPACITY = 256 * 1024;
+
+	private final InputStream in;
+	private byte[] buf;
+	private int limit;        // Offset one past the last valid byte in buf
+	private int scan;         // Offset to resume the start code search from
+	private int frameStart;   // Offset of the current access unit's first start code, or -1
+	private int nalStart;     // Offset of the open NAL unit's header byte, or -1
+	private int nalStartCode; // Offset of the open NAL unit's start code
+
+	// NAL units of the access unit being assembled, and of the last one returned
+	private int[] nalOffsets = new int[16];
+	private int[] nalLengths = new int[16];
+	private int nalCount;
+	private boolean hasSlice;
+	private boolean keyFrame;
+
+	private int frameOffset;
+	private int frameLength;
+
+	/**
+	 * Creates a new H264FrameReader that reads frames from the specified InputStream.
+	 *
+	 * @param in The InputStream to read the H.264 stream from.
+	 */
+	public H264FrameReader(InputStream in) {
+		this(in, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new H264FrameReader that reads frames from the specified InputStream, using an
+	 * internal buffer with the specified initial capacity. Choosing a capacity larger than the
+	 * expected keyframe size avoids any buffer growth once reading has started.
+	 *
+	 * @param in The InputStream to read the H.264 stream from.
+	 * @param initialCapacity An int specifying the initial size of the internal buffer in bytes.
+	 */
+	public H264FrameReader(InputStream in, int initialCapacity) {
+		this.in = in;
+		this.buf = new byte[Math.max(initialCapacity, 1024)];
+		this.frameStart = -1;
+		this.nalStart = -1;
+	}
+
+	/**
+	 * Reads the next complete access unit from the stream, blocking until it is available. Once
+	 * this method returns true, the frame may be accessed with {@link #getBuffer()},
+	 * {@link #getFrameOffset()} and {@link #getFrameLength()}, and its NAL units with
+	 * {@link #getNalUnitOffset(int)} and friends. The frame's bytes remain valid only until the
+	 * next call to this method.
+	 *
+	 * @return true if a frame was read, false if the end of the stream was reached first.
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		// Discard the previous frame. The NAL unit that ended it becomes the first of this one.
+		frameLength = 0;
+		nalCount = 0;
+		hasSlice = false;
+		keyFrame = false;
+		if (nalStart >= 0)
+			frameStart = nalStartCode;
+		while (true) {
+			int sc = findStartCode();
+			// The NAL header byte and the byte after it are needed to look for a boundary
+			if (sc < 0 || sc + 4 >= limit) {
+				if (!fill()) {
+					// The last NAL unit ends with the stream
+					if (nalStart >= 0) {
+						endNalUnit(limit);
+						nalStart = -1;
+					}
+					if (!hasSlice)
+						return false;
+					frameOffset = frameStart;
+					frameLength = limit - frameStart;
+					frameStart = -1;
+					return true;
+				}
+				continue;
+			}
+
+			// Zero bytes before a start code are either part of a 4 byte start code or trailing
+			// padding, and don't belong to the previous NAL unit
+			int codeStart = sc;
+			int floor = nalStart >= 0 ? nalStart : 0;
+			while (codeStart > floor && buf[codeStart - 1] == 0)
+				codeStart--;
+			if (nalStart >= 0)
+				endNalUnit(codeStart);
+
+			int type = buf[sc + 3] & 0x1F;
+			boolean firstSlice = (type == NAL_SLICE || type == NAL_IDR) && (buf[sc + 4] & 0x80) != 0;
+			boolean startsFrame = type == NAL_AUD || type == NAL_SEI || type == NAL_SPS
+					|| type == NAL_PPS || (type >= 14 && type <= 18) || firstSlice;
+			nalStart = sc + 3;
+			nalStartCode = codeStart;
+			scan = nalStart;
+			if (hasSlice && startsFrame) {
+				frameOffset = frameStart;
+				frameLength = codeStart - frameStart;
+				return true;
+			}
+			if (frameStart < 0)
+				frameStart = codeStart;
+		}
+	}
+
+	/**
+	 * Reads the next complete access unit from the stream and returns a copy of it.
+	 *
+	 * @return A byte array containing the frame, or null if the end of the stream was reached.
+	 * @throws IOException
+	 */
+	public byte[] readFrame() throws IOException {
+		if (!next())
+			return null;
+		return Arrays.copyOfRange(buf, frameOffset, frameOffset + frameLength);
+	}
+
+	/**
+	 * Gets the buffer containing the frame most recently read by {@link #next()}.
+	 *
+	 * @return The internal buffer. Only the range described by {@link #getFrameOffset()} and
+	 *         {@link #getFrameLength()} is part of the frame.
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * Gets the offset of the current frame's first start code within {@link #getBuffer()}.
+	 *
+	 * @return The frame's offset.
+	 */
+	public int getFrameOffset() {
+		return frameOffset;
+	}
+
+	/**
+	 * Gets the length of the current frame in bytes, including its start codes.
+	 *
+	 * @return The frame's length.
+	 */
+	public int getFrameLength() {
+		return frameLength;
+	}
+
+	/**
+	 * Indicates whether the current frame is a keyframe (contains an IDR slice), which can be
+	 * decoded without any of the frames before it.
+	 *
+	 * @return true if the current frame is a keyframe.
+	 */
+	public boolean isKeyFrame() {
+		return keyFrame;
+	}
+
+	/**
+	 * Gets the number of NAL units in the current frame.
+	 *
+	 * @return The NAL unit count.
+	 */
+	public int getNalUnitCount() {
+		return nalCount;
+	}
+
+	/**
+	 * Gets the offset of a NAL unit's header byte within {@link #getBuffer()}. The start code
+	 * preceding it is not included.
+	 *
+	 * @param index The index of the NAL unit within the current frame.
+	 * @return The NAL unit's offset.
+	 */
+	public int getNalUnitOffset(int index) {
+		checkIndex(index);
+		return nalOffsets[index];
+	}
+
+	/**
+	 * Gets the length of a NAL unit in bytes, excluding its start code.
+	 *
+	 * @param index The index of the NAL unit within the current frame.
+	 * @return The NAL unit's length.
+	 */
+	public int getNalUnitLength(int index) {
+		checkIndex(index);
+		return nalLengths[index];
+	}
+
+	/**
+	 * Gets the type of a NAL unit, e.g. {@link #NAL_IDR} or {@link #NAL_SPS}.
+	 *
+	 * @param index The index of the NAL unit within the current frame.
+	 * @return The NAL unit's type.
+	 */
+	public int getNalUnitType(int index) {
+		checkIndex(index);
+		return buf[nalOffsets[index]] & 0x1F;
+	}
+
+	/**
+	 * Closes the underlying InputStream.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= nalCount)
+			throw new IndexOutOfBoundsException("NAL unit " + index + " of " + nalCount);
+	}
+
+	/**
+	 * Adds the open NAL unit, which ends at the specified offset, to the current access unit.
+	 */
+	private void endNalUnit(int end) {
+		if (nalCount == nalOffsets.length) {
+			nalOffsets = Arrays.copyOf(nalOffsets, nalCount * 2);
+			nalLengths = Arrays.copyOf(nalLengths, nalCount * 2);
+		}
+		nalOffsets[nalCount] = nalStart;
+		nalLengths[nalCount] = end - nalStart;
+		nalCount++;
+		int type = buf[nalStart] & 0x1F;
+		if (type == NAL_SLICE || type == NAL_IDR)
+			hasSlice = true;
+		if (type == NAL_IDR)
+			keyFrame = true;
+	}
+
+	/**
+	 * Searches for the next 0x000001 start code, returning its offset or -1 if the buffered data
+	 * doesn't contain one. The search skips ahead 3 bytes whenever the third byte examined
+	 * can't be part of a start code, which is the common case in slice data.
+	 */
+	private int findStartCode() {
+		int i = scan;
+		while (i + 2 < limit) {
+			byte b = buf[i + 2];
+			if (b != 0 && b != 1) {
+				i += 3;
+			} else if (b == 1 && buf[i] == 0 && buf[i + 1] == 0) {
+				return i;
+			} else {
+				i++;
+			}
+		}
+		// The last 2 bytes may be the beginning of a start code
+		scan = Math.max(scan, limit - 2);
+		return -1;
+	}
+
+	/**
+	 * Reads more data from the stream into the buffer, compacting or growing the buffer first
+	 * if necessary. Returns false once the end of the stream has been reached.
+	 */
+	private boolean fill() throws IOException {
+		if (limit == buf.length) {
+			// Bytes before the start of the current frame are no longer needed
+			int keep = frameStart >= 0 ? frameStart : scan;
+			if (keep > 0) {
+				System.arraycopy(buf, keep, buf, 0, limit - keep);
+				limit -= keep;
+				scan -= keep;
+				if (frameStart >= 0)
+					frameStart -= keep;
+				if (nalStart >= 0) {
+					nalStart -= keep;
+					nalStartCode -= keep;
+				}
+				for (int i = 0; i < nalCount; i++)
+					nalOffsets[i] -= keep;
+			}
+			if (limit == buf.length)
+				buf = Arrays.copyOf(buf, buf.length * 2);
+		}
+		int n = in.read(buf, limit, buf.length - limit);
+		if (n < 0)
+			return false;
+		limit += n;
+		return true;
+	}
+}
@@ -0,0 +1,293 @@
+package com.hopding.jrpicam.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * JPEGFrameReader reads complete JPEG images, one after another, from an InputStream that
+ * contains any number of concatenated JPEGs (such as the stdout of raspistill when it is
+ * writing to "-o -").
+ * <p>
+ * Frames are located by walking the JPEG marker structure rather than by searching for the
+ * first EOI (0xFFD9) marker. This matters because raspistill embeds a thumbnail JPEG inside
+ * the EXIF segment of every image, and that thumbnail has its own EOI marker. Marker segments
+ * are skipped over using their length fields, and only the entropy coded data following an
+ * SOS marker is scanned byte by byte.
+ * <p>
+ * Data is read from the stream in bulk into an internal buffer, and scanning resumes where it
+ * left off each time more data arrives, so no byte is ever examined twice. The buffer is
+ * reused between frames and only grows when a frame is larger than any frame seen before.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * JPEGFrameReader reader = new JPEGFrameReader(process.getInputStream());
+ * while (reader.next()) {
+ *     // The frame is valid until the next call to next()
+ *     out.write(reader.getBuffer(), reader.getFrameOffset(), reader.getFrameLength());
+ * }
+ *}
+ * </pre>
+ */
+public class JPEGFrameReader implements Closeable {
+
+	private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	// Scanner states
+	private static final int SEEK_SOI       = 0; // Looking for the SOI marker that starts a frame
+	private static final int SEEK_SOI_FF    = 1; // Saw 0xFF while looking for SOI
+	private static final int MARKER         = 2; // Expecting 0xFF starting a marker
+	private static final int MARKER_CODE    = 3; // Expecting the marker code after 0xFF
+	private static final int LENGTH_HIGH    = 4; // Expecting high byte of segment length
+	private static final int LENGTH_LOW     = 5; // Expecting low byte of segment length
+	private static final int SKIP           = 6; // Skipping over a segment's payload
+	private static final int ENTROPY        = 7; // Scanning entropy coded data for a marker
+	private static final int ENTROPY_FF     = 8; // Saw 0xFF inside entropy coded data
+
+	private final InputStream in;
+	private byte[] buf;
+	private int frameStart;  // Offset of the current frame's SOI in buf
+	private int pos;         // Offset of the next byte to scan in buf
+	private int limit;       // Offset one past the last valid byte in buf
+	private int state = SEEK_SOI;
+	private int marker;
+	private int segmentLength;
+	private int skipRemaining;
+	private boolean inScan;
+
+	private int frameOffset;
+	private int frameLength;
+
+	/**
+	 * Creates a new JPEGFrameReader that reads frames from the specified InputStream.
+	 *
+	 * @param in The InputStream to read JPEG frames from.
+	 */
+	public JPEGFrameReader(InputStream in) {
+		this(in, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new JPEGFrameReader that reads frames from the specified InputStream, using an
+	 * internal buffer with the specified initial capacity. Choosing a capacity slightly larger
+	 * than the expected frame size avoids any buffer growth once reading has started.
+	 *
+	 * @param in The InputStream to read JPEG frames from.
+	 * @param initialCapacity An int specifying the initial size of the internal buffer in bytes.
+	 */
+	public JPEGFrameReader(InputStream in, int initialCapacity) {
+		this.in = in;
+		this.buf = new byte[Math.max(initialCapacity, 1024)];
+	}
+
+	/**
+	 * Reads the next complete frame from the stream, blocking until it is available. Once this
+	 * method returns true, the frame may be accessed with {@link #getBuffer()},
+	 * {@link #getFrameOffset()} and {@link #getFrameLength()}. The frame's bytes remain valid
+	 * only until the next call to this method.
+	 *
+	 * @return true if a frame was read, false if the end of the stream was reached first.
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		// Discard the previous frame
+		frameStart = pos;
+		frameLength = 0;
+		state = SEEK_SOI;
+		while (true) {
+			if (scan())
+				return true;
+			if (!fill())
+				return false;
+		}
+	}
+
+	/**
+	 * Reads the next complete frame from the stream and returns a copy of it.
+	 *
+	 * @return A byte array containing the frame, or null if the end of the stream was reached.
+	 * @throws IOException
+	 */
+	public byte[] readFrame() throws IOException {
+		if (!next())
+			return null;
+		return Arrays.copyOfRange(buf, frameOffset, frameOffset + frameLength);
+	}
+
+	/**
+	 * Gets the buffer containing the frame most recently read by {@link #next()}.
+	 *
+	 * @return The reader's internal buffer.
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * Gets the offset of the most recently read frame within {@link #getBuffer()}.
+	 *
+	 * @return The offset of the frame's first byte.
+	 */
+	public int getFrameOffset() {
+		return frameOffset;
+	}
+
+	/**
+	 * Gets the length of the most recently read frame.
+	 *
+	 * @return The frame's length in bytes.
+	 */
+	public int getFrameLength() {
+		return frameLength;
+	}
+
+	/**
+	 * Closes the underlying InputStream.
+	 */
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Scans the buffered bytes from pos to limit. Returns true, with pos pointing just past the
+	 * EOI marker, if the end of a frame was found.
+	 */
+	private boolean scan() {
+		final byte[] b = buf;
+		int i = pos;
+		final int end = limit;
+		while (i < end) {
+			switch (state) {
+				case SEEK_SOI:
+					// Nothing before SOI belongs to a frame, so drop it as we go
+					while (i < end && b[i] != (byte) 0xFF)
+						i++;
+					if (i < end) {
+						frameStart = i;
+						state = SEEK_SOI_FF;
+						i++;
+					}
+					break;
+				case SEEK_SOI_FF:
+					if (b[i] == (byte) 0xD8) {
+						state = MARKER;
+						inScan = false;
+					} else if (b[i] != (byte) 0xFF) {
+						state = SEEK_SOI;
+					} else {
+						frameStart = i;
+					}
+					i++;
+					break;
+				case MARKER:
+					if (b[i] != (byte) 0xFF) {
+						// Not a well formed frame; resynchronise on the next SOI
+						state = SEEK_SOI;
+						break;
+					}
+					state = MARKER_CODE;
+					i++;
+					break;
+				case MARKER_CODE:
+					marker = b[i++] & 0xFF;
+					if (marker == 0xFF) {
+						// Fill byte, stay in this state
+					} else if (marker == 0xD9) {
+						return endFrame(i);
+					} else if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+						// Standalone markers carry no length
+						state = inScan ? ENTROPY : MARKER;
+					} else {
+						state = LENGTH_HIGH;
+					}
+					break;
+				case LENGTH_HIGH:
+					segmentLength = (b[i++] & 0xFF) << 8;
+					state = LENGTH_LOW;
+					break;
+				case LENGTH_LOW:
+					segmentLength |= b[i++] & 0xFF;
+					skipRemaining = segmentLength - 2;
+					state = SKIP;
+					break;
+				case SKIP:
+					int n = Math.min(skipRemaining, end - i);
+					i += n;
+					skipRemaining -= n;
+					if (skipRemaining == 0) {
+						// Entropy coded data follows the SOS header
+						if (marker == 0xDA) {
+							inScan = true;
+							state = ENTROPY;
+						} else {
+							state = MARKER;
+						}
+					}
+					break;
+				case ENTROPY:
+					while (i < end && b[i] != (byte) 0xFF)
+						i++;
+					if (i < end) {
+						state = ENTROPY_FF;
+						i++;
+					}
+					break;
+				case ENTROPY_FF:
+					int code = b[i] & 0xFF;
+					if (code == 0x00 || (code >= 0xD0 && code <= 0xD7)) {
+						// Stuffed zero or restart marker, still in the scan
+						state = ENTROPY;
+						i++;
+					} else if (code == 0xFF) {
+						i++;
+					} else {
+						// A real marker ends the scan (EOI, or DHT/SOS of a progressive JPEG)
+						inScan = false;
+						state = MARKER_CODE;
+					}
+					break;
+				default:
+					throw new IllegalStateException("Unknown scanner state " + state);
+			}
+		}
+		pos = i;
+		return false;
+	}
+
+	private boolean endFrame(int i) {
+		pos = i;
+		frameOffset = frameStart;
+		frameLength = i - frameStart;
+		state = SEEK_SOI;
+		return true;
+	}
+
+	/**
+	 * Reads more data from the stream into the buffer, compacting or growing the buffer first
+	 * if necessary. Returns false once the end of the stream has been reached.
+	 */
+	private boolean fill() throws IOException {
+		if (limit == buf.length) {
+			// Bytes before the start of the current frame are no longer needed
+			int keep = state == SEEK_SOI ? pos : frameStart;
+			if (keep > 0) {
+				System.arraycopy(buf, keep, buf, 0, limit - keep);
+				limit -= keep;
+				pos -= keep;
+				frameStart -= keep;
+				if (frameStart < 0)
+					frameStart = 0;
+			}
+			if (limit == buf.length)
+				buf = Arrays.copyOf(buf, buf.length * 2);
+		}
+		int n = in.read(buf, limit, buf.length - limit);
+		if (n < 0)
+			return false;
+		limit += n;
+		return true;
+	}
+}
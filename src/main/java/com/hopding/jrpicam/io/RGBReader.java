@@ -0,0 +1,221 @@
+package com.hopding.jrpicam.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.hopding.jrpicam.image.BytePixelBuffer;
+import com.hopding.jrpicam.image.PixelBuffer;
+
+/**
+ * RGBReader reads the raw RGB output of raspiyuv ("-rgb") a whole row at a time.
+ * <p>
+ * raspiyuv pads each image so that its width and height are multiples of 16, so every row
+ * in its output is followed by a few bytes of padding, and the image is followed by a few
+ * rows of padding. RGBReader reads each row with a single bulk read, and skips the padding
+ * without examining it byte by byte. A single RGBReader may be reused for any number of
+ * images of the same dimensions, and only allocates its row buffer once.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * RGBReader reader = new RGBReader(500, 500);
+ * byte[] rgb = new byte[reader.getImageSize(false)];
+ * reader.read(process.getInputStream(), rgb, false);
+ *}
+ * </pre>
+ */
+public class RGBReader {
+
+	private static final int BYTES_PER_PIXEL = 3;
+
+	private final int width;
+	private final int height;
+	private final int paddedWidth;
+	private final int paddedHeight;
+	private final int rowStride;
+	private final byte[] row;
+
+	/**
+	 * Creates an RGBReader for images of the specified dimensions, padded by raspiyuv to
+	 * multiples of 16.
+	 *
+	 * @param width An int specifying the width of the image, in pixels.
+	 * @param height An int specifying the height of the image, in pixels.
+	 */
+	public RGBReader(int width, int height) {
+		this(width, height, align16(width), align16(height));
+	}
+
+	/**
+	 * Creates an RGBReader for images of the specified dimensions, with explicit padded
+	 * dimensions.
+	 *
+	 * @param width An int specifying the width of the image, in pixels.
+	 * @param height An int specifying the height of the image, in pixels.
+	 * @param paddedWidth An int specifying the width of each row including padding, in pixels.
+	 * @param paddedHeight An int specifying the number of rows including padding.
+	 */
+	public RGBReader(int width, int height, int paddedWidth, int paddedHeight) {
+		if (paddedWidth < width || paddedHeight < height)
+			throw new IllegalArgumentException("Padded dimensions may not be smaller than image dimensions");
+		this.width = width;
+		this.height = height;
+		this.paddedWidth = paddedWidth;
+		this.paddedHeight = paddedHeight;
+		this.rowStride = paddedWidth * BYTES_PER_PIXEL;
+		this.row = new byte[rowStride];
+	}
+
+	/**
+	 * Rounds the specified dimension up to the nearest multiple of 16.
+	 *
+	 * @param dimension An int specifying a width or height.
+	 * @return The dimension including raspiyuv's padding.
+	 */
+	public static int align16(int dimension) {
+		return (dimension + 15) & ~15;
+	}
+
+	/**
+	 * Gets the number of bytes (or ints) needed to hold an image read by this RGBReader.
+	 *
+	 * @param keepPadding A boolean indicating whether or not padding will be kept.
+	 * @return The size of the image in bytes.
+	 */
+	public int getImageSize(boolean keepPadding) {
+		if (keepPadding)
+			return rowStride * paddedHeight;
+		return width * height * BYTES_PER_PIXEL;
+	}
+
+	/**
+	 * Reads an image into the specified byte array, three bytes (red, green, blue) per pixel,
+	 * from left to right and top to bottom. If the stream ends early, the remainder of the
+	 * array is left untouched.
+	 *
+	 * @param in The InputStream to read raspiyuv's output from.
+	 * @param dst A byte array of at least {@link #getImageSize(boolean)} bytes.
+	 * @param keepPadding A boolean indicating whether or not to preserve the padding on the image.
+	 * @return The number of complete rows read.
+	 * @throws IOException
+	 */
+	public int read(InputStream in, byte[] dst, boolean keepPadding) throws IOException {
+		int rowBytes = width * BYTES_PER_PIXEL;
+		int rows = keepPadding ? paddedHeight : height;
+		for (int y = 0; y < rows; y++) {
+			if (keepPadding) {
+				if (!readFully(in, dst, y * rowStride, rowStride))
+					return y;
+			} else {
+				// Read the visible part of the row straight into place, and the padding
+				// into the scratch row
+				if (!readFully(in, dst, y * rowBytes, rowBytes)
+						|| !readFully(in, row, 0, rowStride - rowBytes))
+					return y;
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Reads an image into the specified int array, one element per colour channel (0 - 255),
+	 * from left to right and top to bottom. This is the format returned by
+	 * {@link com.hopding.jrpicam.RPiCamera#takeStillAsRGB(int, int, boolean)}. If the stream ends
+	 * early, the remainder of the array is left untouched.
+	 *
+	 * @param in The InputStream to read raspiyuv's output from.
+	 * @param dst An int array of at least {@link #getImageSize(boolean)} elements.
+	 * @param keepPadding A boolean indicating whether or not to preserve the padding on the image.
+	 * @return The number of complete rows read.
+	 * @throws IOException
+	 */
+	public int read(InputStream in, int[] dst, boolean keepPadding) throws IOException {
+		int rowBytes = keepPadding ? rowStride : width * BYTES_PER_PIXEL;
+		int rows = keepPadding ? paddedHeight : height;
+		final byte[] r = row;
+		for (int y = 0; y < rows; y++) {
+			if (!readFully(in, r, 0, rowStride))
+				return y;
+			int base = y * rowBytes;
+			for (int i = 0; i < rowBytes; i++)
+				dst[base + i] = r[i] & 0xFF;
+		}
+		return rows;
+	}
+
+	/**
+	 * Reads an image into the specified PixelBuffer, which must have the same dimensions as this
+	 * RGBReader. Padding is always dropped. If the stream ends early, the remaining rows of the
+	 * PixelBuffer are left untouched.
+	 *
+	 * @param in The InputStream to read raspiyuv's output from.
+	 * @param dst The PixelBuffer to store the image in.
+	 * @return The number of complete rows read.
+	 * @throws IOException
+	 */
+	public int read(InputStream in, PixelBuffer dst) throws IOException {
+		if (dst.getWidth() != width || dst.getHeight() != height)
+			throw new IllegalArgumentException("PixelBuffer is " + dst.getWidth() + "x" + dst.getHeight()
+					+ ", expected " + width + "x" + height);
+		// RGB byte buffers have exactly the layout of the image without padding
+		if (dst instanceof BytePixelBuffer
+				&& ((BytePixelBuffer) dst).getChannelOrder() == BytePixelBuffer.ChannelOrder.RGB)
+			return read(in, ((BytePixelBuffer) dst).getData(), false);
+		for (int y = 0; y < height; y++) {
+			if (!readFully(in, row, 0, rowStride))
+				return y;
+			dst.setRow(y, row, 0);
+		}
+		return height;
+	}
+
+	/**
+	 * Gets the width of images read by this RGBReader.
+	 *
+	 * @return The image width in pixels.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Gets the height of images read by this RGBReader.
+	 *
+	 * @return The image height in pixels.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Gets the width of images read by this RGBReader including padding.
+	 *
+	 * @return The padded image width in pixels.
+	 */
+	public int getPaddedWidth() {
+		return paddedWidth;
+	}
+
+	/**
+	 * Gets the height of images read by this RGBReader including padding.
+	 *
+	 * @return The padded image height in pixels.
+	 */
+	public int getPaddedHeight() {
+		return paddedHeight;
+	}
+
+	/**
+	 * Reads exactly len bytes into b, returning false if the stream ends first.
+	 */
+	static boolean readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = in.read(b, off, len);
+			if (n < 0)
+				return false;
+			off += n;
+			len -= n;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,67 @@
+package com.hopding.jrpicam.motion;
+
+import java.awt.Rectangle;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of running a frame through a {@link MotionDetector}.
+ */
+public class Motion {
+
+	private final double score;
+	private final int changedCells;
+	private final boolean motion;
+	private final List<Rectangle> regions;
+
+	Motion(double score, int changedCells, boolean motion, List<Rectangle> regions) {
+		this.score = score;
+		this.changedCells = changedCells;
+		this.motion = motion;
+		this.regions = Collections.unmodifiableList(regions);
+	}
+
+	/**
+	 * Indicates whether the frame's motion score reached the detector's trigger score.
+	 *
+	 * @return true if motion was detected.
+	 */
+	public boolean isMotion() {
+		return motion;
+	}
+
+	/**
+	 * Gets the motion score, which is the fraction of the frame's grid cells that differ from the
+	 * background.
+	 *
+	 * @return The score, from 0 (no change) to 1 (every cell changed).
+	 */
+	public double getScore() {
+		return score;
+	}
+
+	/**
+	 * Gets the number of grid cells that differ from the background.
+	 *
+	 * @return The changed cell count.
+	 */
+	public int getChangedCells() {
+		return changedCells;
+	}
+
+	/**
+	 * Gets the bounding boxes of the areas of the frame that changed, in pixel coordinates. Each
+	 * region is a group of adjoining changed grid cells; isolated changes smaller than the
+	 * detector's minimum region size are not included.
+	 *
+	 * @return An unmodifiable List of regions, largest first.
+	 */
+	public List<Rectangle> getRegions() {
+		return regions;
+	}
+
+	@Override
+	public String toString() {
+		return "Motion[score=" + score + ", changedCells=" + changedCells + ", regions=" + regions.size() + "]";
+	}
+}
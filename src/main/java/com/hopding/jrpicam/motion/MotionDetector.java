@@ -0,0 +1,430 @@
+package com.hopding.jrpicam.motion;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.hopding.jrpicam.image.PixelBuffer;
+import com.hopding.jrpicam.image.YUV420Image;
+import com.hopding.jrpicam.io.RGBReader;
+
+/**
+ * MotionDetector compares each frame it is given against a running model of the scene's
+ * background, and reports how much of the frame has changed and where.
+ * <p>
+ * Frames are reduced to their luma (brightness), averaged over a grid of square cells (8x8
+ * pixels by default), and only the grid is compared, which makes detection cheap and
+ * insensitive to sensor noise. The background is an exponential moving average of the grid, so
+ * gradual changes such as the light fading are absorbed while sudden ones are reported. A cell
+ * has changed if its average differs from the background by more than the threshold.
+ * <p>
+ * The grid is computed in row bands on a ForkJoinPool, so all of the Pi's cores share the work.
+ * The cheapest input is a luma-only {@link YUV420Image}, whose Y plane is used directly, but the
+ * int arrays returned by {@link com.hopding.jrpicam.RPiCamera#takeStillAsRGB(boolean)} and any
+ * {@link PixelBuffer} may be used as well. The grid and background are allocated once, so
+ * processing a frame allocates little more than the returned {@link Motion}.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * RPiCamera piCamera = new RPiCamera().setTimeout(1).turnOffPreview();
+ * YUV420Image frame = new YUV420Image(640, 480, true); // Luma only
+ * MotionDetector detector = new MotionDetector(640, 480);
+ *
+ * while (true) {
+ *     Motion motion = detector.detect(piCamera.takeStillAsYUV(frame));
+ *     if (motion.isMotion())
+ *         System.out.println("Motion at " + motion.getRegions());
+ * }
+ *}
+ * </pre>
+ */
+public class MotionDetector {
+
+	private static final int DEFAULT_CELL_SIZE = 8;
+
+	// Input formats
+	private static final int LUMA       = 0;
+	private static final int RGB_INTS   = 1;
+	private static final int PIXELS     = 2;
+
+	private final int width;
+	private final int height;
+	private final int cellSize;
+	private final int gridWidth;
+	private final int gridHeight;
+
+	private int threshold = 15;
+	private float learningRate = 0.05f;
+	private double triggerScore = 0.005;
+	private int minRegionCells = 2;
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	// Per cell state, indexed by gridY * gridWidth + gridX
+	private final int[] sums;
+	private final float[] background;
+	private final boolean[] changed;
+	private final int[] stack;
+	private boolean initialised;
+
+	// The frame being processed, read by the band tasks
+	private int format;
+	private byte[] luma;
+	private int lumaOffset;
+	private int lumaStride;
+	private int[] rgb;
+	private int rgbStride;
+	private PixelBuffer pixels;
+
+	/**
+	 * Creates a new MotionDetector for frames of the specified size, with 8x8 pixel cells.
+	 *
+	 * @param width The width of the frames in pixels.
+	 * @param height The height of the frames in pixels.
+	 */
+	public MotionDetector(int width, int height) {
+		this(width, height, DEFAULT_CELL_SIZE);
+	}
+
+	/**
+	 * Creates a new MotionDetector for frames of the specified size. Larger cells make detection
+	 * faster and less sensitive to small movements.
+	 *
+	 * @param width The width of the frames in pixels.
+	 * @param height The height of the frames in pixels.
+	 * @param cellSize The width and height of the grid's cells in pixels.
+	 */
+	public MotionDetector(int width, int height, int cellSize) {
+		this.width = width;
+		this.height = height;
+		this.cellSize = cellSize;
+		this.gridWidth = (width + cellSize - 1) / cellSize;
+		this.gridHeight = (height + cellSize - 1) / cellSize;
+		int cells = gridWidth * gridHeight;
+		this.sums = new int[cells];
+		this.background = new float[cells];
+		this.changed = new boolean[cells];
+		this.stack = new int[cells];
+	}
+
+	/**
+	 * Sets how much a cell's average luma must differ from the background for the cell to count
+	 * as changed. The default is 15.
+	 *
+	 * @param threshold An int from 0 to 255.
+	 */
+	public synchronized MotionDetector setThreshold(int threshold) {
+		this.threshold = threshold;
+		return this;
+	}
+
+	/**
+	 * Sets how quickly the background adapts to changes in the scene. Each frame moves the
+	 * background this fraction of the way towards the frame. The default is 0.05.
+	 *
+	 * @param learningRate A double from 0 (never adapt) to 1 (compare against the last frame).
+	 */
+	public synchronized MotionDetector setLearningRate(double learningRate) {
+		this.learningRate = (float) learningRate;
+		return this;
+	}
+
+	/**
+	 * Sets the motion score at or above which {@link Motion#isMotion()} is true. The default is
+	 * 0.005, i.e. half a percent of the frame.
+	 *
+	 * @param triggerScore A double from 0 to 1.
+	 */
+	public synchronized MotionDetector setTriggerScore(double triggerScore) {
+		this.triggerScore = triggerScore;
+		return this;
+	}
+
+	/**
+	 * Sets the number of adjoining changed cells needed to form a region. Smaller groups of
+	 * changed cells still count towards the score, but aren't reported as regions.
+	 *
+	 * @param minRegionCells An int specifying the minimum region size in cells.
+	 */
+	public synchronized MotionDetector setMinRegionCells(int minRegionCells) {
+		this.minRegionCells = minRegionCells;
+		return this;
+	}
+
+	/**
+	 * Sets the ForkJoinPool the work is split across. By default, the common pool is used.
+	 *
+	 * @param pool The ForkJoinPool to use.
+	 */
+	public synchronized MotionDetector setPool(ForkJoinPool pool) {
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * Gets the width of the grid frames are reduced to.
+	 *
+	 * @return The grid width in cells.
+	 */
+	public int getGridWidth() {
+		return gridWidth;
+	}
+
+	/**
+	 * Gets the height of the grid frames are reduced to.
+	 *
+	 * @return The grid height in cells.
+	 */
+	public int getGridHeight() {
+		return gridHeight;
+	}
+
+	/**
+	 * Forgets the background, so the next frame becomes the new background.
+	 */
+	public synchronized void reset() {
+		initialised = false;
+	}
+
+	/**
+	 * Runs a frame captured with {@link com.hopding.jrpicam.RPiCamera#takeStillAsYUV(YUV420Image)}
+	 * through the detector. Only the Y plane is used, so the image may be luma only.
+	 *
+	 * @param image The YUV420Image holding the frame.
+	 * @return The Motion detected.
+	 */
+	public synchronized Motion detect(YUV420Image image) {
+		checkSize(image.getWidth(), image.getHeight());
+		YUV420Image.Plane y = image.getY();
+		format = LUMA;
+		luma = y.getData();
+		lumaOffset = y.getOffset();
+		lumaStride = y.getStride();
+		return run();
+	}
+
+	/**
+	 * Runs a frame captured with {@link com.hopding.jrpicam.RPiCamera#takeStillAsRGB(boolean)}
+	 * through the detector.
+	 *
+	 * @param rgb The int array holding the frame, with one int per color channel.
+	 * @param keepPadding true if the frame was captured with its padding.
+	 * @return The Motion detected.
+	 */
+	public synchronized Motion detect(int[] rgb, boolean keepPadding) {
+		int stride = (keepPadding ? RGBReader.align16(width) : width) * 3;
+		// Padded frames also have padding rows, which the detector ignores
+		if (rgb.length < stride * height)
+			throw new IllegalArgumentException("Frame has " + rgb.length + " values, but the detector expects "
+					+ stride * height + " for " + width + "x" + height + (keepPadding ? " with padding" : ""));
+		format = RGB_INTS;
+		this.rgb = rgb;
+		rgbStride = stride;
+		return run();
+	}
+
+	/**
+	 * Runs a frame held in a PixelBuffer through the detector.
+	 *
+	 * @param buffer The PixelBuffer holding the frame.
+	 * @return The Motion detected.
+	 */
+	public synchronized Motion detect(PixelBuffer buffer) {
+		checkSize(buffer.getWidth(), buffer.getHeight());
+		format = PIXELS;
+		pixels = buffer;
+		return run();
+	}
+
+	private void checkSize(int width, int height) {
+		if (width != this.width || height != this.height)
+			throw new IllegalArgumentException("Frame is " + width + "x" + height
+					+ ", but the detector expects " + this.width + "x" + this.height);
+	}
+
+	private Motion run() {
+		// Aim for a few bands per thread, so uneven progress still balances out
+		int bandRows = Math.max(1, gridHeight / (pool.getParallelism() * 4));
+		pool.invoke(new Band(0, gridHeight, bandRows));
+		luma = null;
+		rgb = null;
+		pixels = null;
+
+		boolean first = !initialised;
+		initialised = true;
+		int changedCells = 0;
+		if (!first) {
+			for (boolean c : changed) {
+				if (c)
+					changedCells++;
+			}
+		}
+		double score = changedCells / (double) changed.length;
+		List<Rectangle> regions = changedCells == 0 ? Collections.<Rectangle>emptyList() : findRegions();
+		return new Motion(score, changedCells, !first && score >= triggerScore, regions);
+	}
+
+	/**
+	 * Groups changed cells into regions by flood filling adjoining cells.
+	 */
+	private List<Rectangle> findRegions() {
+		List<Rectangle> regions = new ArrayList<>();
+		boolean[] changed = this.changed;
+		for (int start = 0; start < changed.length; start++) {
+			if (!changed[start])
+				continue;
+			int minX = gridWidth, minY = gridHeight, maxX = -1, maxY = -1, size = 0;
+			int top = 0;
+			stack[top++] = start;
+			changed[start] = false;
+			while (top > 0) {
+				int cell = stack[--top];
+				int x = cell % gridWidth;
+				int y = cell / gridWidth;
+				size++;
+				minX = Math.min(minX, x);
+				maxX = Math.max(maxX, x);
+				minY = Math.min(minY, y);
+				maxY = Math.max(maxY, y);
+				if (x > 0 && changed[cell - 1]) {
+					changed[cell - 1] = false;
+					stack[top++] = cell - 1;
+				}
+				if (x < gridWidth - 1 && changed[cell + 1]) {
+					changed[cell + 1] = false;
+					stack[top++] = cell + 1;
+				}
+				if (y > 0 && changed[cell - gridWidth]) {
+					changed[cell - gridWidth] = false;
+					stack[top++] = cell - gridWidth;
+				}
+				if (y < gridHeight - 1 && changed[cell + gridWidth]) {
+					changed[cell + gridWidth] = false;
+					stack[top++] = cell + gridWidth;
+				}
+			}
+			if (size >= minRegionCells) {
+				int px = minX * cellSize;
+				int py = minY * cellSize;
+				regions.add(new Rectangle(px, py,
+						Math.min((maxX + 1) * cellSize, width) - px,
+						Math.min((maxY + 1) * cellSize, height) - py));
+			}
+		}
+		Collections.sort(regions, new Comparator<Rectangle>() {
+			public int compare(Rectangle a, Rectangle b) {
+				return Long.compare((long) b.width * b.height, (long) a.width * a.height);
+			}
+		});
+		return regions;
+	}
+
+	/**
+	 * Computes the grid and updates the background for a band of grid rows, splitting the band
+	 * in two while it's larger than bandRows.
+	 */
+	private final class Band extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+		private final int bandRows;
+
+		Band(int from, int to, int bandRows) {
+			this.from = from;
+			this.to = to;
+			this.bandRows = bandRows;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > bandRows) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Band(from, mid, bandRows), new Band(mid, to, bandRows));
+				return;
+			}
+			for (int gy = from; gy < to; gy++) {
+				int base = gy * gridWidth;
+				for (int gx = 0; gx < gridWidth; gx++)
+					sums[base + gx] = 0;
+				int yEnd = Math.min((gy + 1) * cellSize, height);
+				for (int y = gy * cellSize; y < yEnd; y++) {
+					switch (format) {
+					case LUMA:
+						sumLuma(y, base);
+						break;
+					case RGB_INTS:
+						sumRGB(y, base);
+						break;
+					default:
+						sumPixels(y, base);
+					}
+				}
+				compare(gy, base, yEnd - gy * cellSize);
+			}
+		}
+
+		private void sumLuma(int y, int base) {
+			byte[] data = luma;
+			int row = lumaOffset + y * lumaStride;
+			for (int gx = 0; gx < gridWidth; gx++) {
+				int x = gx * cellSize;
+				int xEnd = Math.min(x + cellSize, width);
+				int sum = 0;
+				for (int i = row + x, end = row + xEnd; i < end; i++)
+					sum += data[i] & 0xFF;
+				sums[base + gx] += sum;
+			}
+		}
+
+		private void sumRGB(int y, int base) {
+			int[] data = rgb;
+			int row = y * rgbStride;
+			for (int gx = 0; gx < gridWidth; gx++) {
+				int x = gx * cellSize;
+				int xEnd = Math.min(x + cellSize, width);
+				int sum = 0;
+				for (int i = row + x * 3, end = row + xEnd * 3; i < end; i += 3)
+					sum += (data[i] * 77 + data[i + 1] * 150 + data[i + 2] * 29) >> 8;
+				sums[base + gx] += sum;
+			}
+		}
+
+		private void sumPixels(int y, int base) {
+			PixelBuffer buffer = pixels;
+			for (int gx = 0; gx < gridWidth; gx++) {
+				int x = gx * cellSize;
+				int xEnd = Math.min(x + cellSize, width);
+				int sum = 0;
+				for (; x < xEnd; x++) {
+					int p = buffer.getRGB(x, y);
+					sum += (((p >> 16) & 0xFF) * 77 + ((p >> 8) & 0xFF) * 150 + (p & 0xFF) * 29) >> 8;
+				}
+				sums[base + gx] += sum;
+			}
+		}
+
+		/**
+		 * Compares a grid row against the background, then moves the background towards it.
+		 */
+		private void compare(int gy, int base, int cellHeight) {
+			boolean first = !initialised;
+			for (int gx = 0; gx < gridWidth; gx++) {
+				int cellWidth = Math.min((gx + 1) * cellSize, width) - gx * cellSize;
+				float mean = sums[base + gx] / (float) (cellWidth * cellHeight);
+				int cell = base + gx;
+				if (first) {
+					background[cell] = mean;
+					changed[cell] = false;
+				} else {
+					changed[cell] = Math.abs(mean - background[cell]) > threshold;
+					background[cell] += learningRate * (mean - background[cell]);
+				}
+			}
+		}
+	}
+}
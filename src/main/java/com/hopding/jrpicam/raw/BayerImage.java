@@ -0,0 +1,142 @@
+package com.hopding.jrpicam.raw;
+
+import java.nio.ShortBuffer;
+
+/**
+ * A BayerImage holds the raw values read from the camera's sensor, before demosaicing, white
+ * balance or any other processing. Each pixel has a single value for the colour of the filter
+ * over it, arranged in a repeating 2x2 pattern described by the image's {@link Order}.
+ * <p>
+ * Values are unsigned, from 0 to 2<sup>bitDepth</sup> - 1, and stored one per short in rows
+ * from top to bottom. They include the sensor's black level.
+ */
+public class BayerImage {
+
+	/**
+	 * The arrangement of the colour filters in each 2x2 block of pixels, named by the colours of
+	 * the top left, top right, bottom left and bottom right pixels.
+	 */
+	public enum Order {
+		RGGB(RED, GREEN, GREEN, BLUE),
+		GBRG(GREEN, BLUE, RED, GREEN),
+		BGGR(BLUE, GREEN, GREEN, RED),
+		GRBG(GREEN, RED, BLUE, GREEN);
+
+		private final int[] colors;
+
+		Order(int... colors) {
+			this.colors = colors;
+		}
+
+		/**
+		 * Gets the colour of the filter over a pixel.
+		 *
+		 * @param x An int specifying the pixel's x coordinate.
+		 * @param y An int specifying the pixel's y coordinate.
+		 * @return {@link BayerImage#RED}, {@link BayerImage#GREEN} or {@link BayerImage#BLUE}.
+		 */
+		public int colorAt(int x, int y) {
+			return colors[(y & 1) << 1 | (x & 1)];
+		}
+	}
+
+	/** The colour of a red filtered pixel. */
+	public static final int RED = 0;
+	/** The colour of a green filtered pixel. */
+	public static final int GREEN = 1;
+	/** The colour of a blue filtered pixel. */
+	public static final int BLUE = 2;
+
+	private final int width;
+	private final int height;
+	private final int bitDepth;
+	private final Order order;
+	private final short[] data;
+
+	/**
+	 * Creates a new BayerImage holding the specified values.
+	 *
+	 * @param width The width of the image in pixels.
+	 * @param height The height of the image in pixels.
+	 * @param bitDepth An int specifying the number of bits in each value, e.g. 10.
+	 * @param order The Order of the colour filters.
+	 * @param data A short array of width * height values.
+	 */
+	public BayerImage(int width, int height, int bitDepth, Order order, short[] data) {
+		if (data.length < width * height)
+			throw new IllegalArgumentException("Data holds " + data.length + " values, but a "
+					+ width + "x" + height + " image needs " + width * height);
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		this.order = order;
+		this.data = data;
+	}
+
+	/**
+	 * Gets the width of the image.
+	 *
+	 * @return The width in pixels.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Gets the height of the image.
+	 *
+	 * @return The height in pixels.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Gets the number of bits in each value: 10 for the V1 and V2 cameras, and 12 for the HQ
+	 * camera.
+	 *
+	 * @return The bit depth.
+	 */
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	/**
+	 * Gets the arrangement of the sensor's colour filters.
+	 *
+	 * @return The Order.
+	 */
+	public Order getOrder() {
+		return order;
+	}
+
+	/**
+	 * Gets a pixel's value.
+	 *
+	 * @param x An int specifying the pixel's x coordinate.
+	 * @param y An int specifying the pixel's y coordinate.
+	 * @return The value, from 0 to 2<sup>bitDepth</sup> - 1.
+	 */
+	public int get(int x, int y) {
+		return data[y * width + x];
+	}
+
+	/**
+	 * Gets the array holding the image's values, one per pixel, row by row. Values are unsigned,
+	 * but always fit in a short's positive range.
+	 *
+	 * @return The backing array.
+	 */
+	public short[] getData() {
+		return data;
+	}
+
+	/**
+	 * Gets the image's values as a ShortBuffer backed by the image's array.
+	 *
+	 * @return A ShortBuffer of width * height values.
+	 */
+	public ShortBuffer asShortBuffer() {
+		return ShortBuffer.wrap(data, 0, width * height);
+	}
+}
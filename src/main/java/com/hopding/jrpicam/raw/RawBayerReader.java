@@ -0,0 +1,188 @@
+package com.hopding.jrpicam.raw;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * RawBayerReader reads the raw sensor data that raspistill appends to a JPEG when it is run
+ * with "-r" (see {@link com.hopding.jrpicam.RPiCamera#setAddRawBayer(boolean)}), and unpacks it
+ * into a {@link BayerImage}.
+ * <p>
+ * The raw data is a block at the end of the file, starting with "BRCM". It has a 32KB header,
+ * holding the sensor's name, the image size and the Bayer order, followed by rows of packed
+ * pixel values. Each row is padded to a multiple of 32 bytes, and the number of rows to a
+ * multiple of 16. The V1 (OV5647) and V2 (IMX219) cameras pack 4 10-bit values into 5 bytes,
+ * and the HQ camera (IMX477) packs 2 12-bit values into 3 bytes; the packing is worked out from
+ * the size of the block.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * RPiCamera piCamera = new RPiCamera().setAddRawBayer(true);
+ * File file = piCamera.takeStill("raw.jpg");
+ * BayerImage raw = RawBayerReader.read(file);
+ * short[] values = raw.getData(); // raw.getWidth() * raw.getHeight() sensor values
+ *}
+ * </pre>
+ */
+public final class RawBayerReader {
+
+	private static final int HEADER_SIZE = 32768;
+	private static final int HEADER_NAME = 176;
+	private static final int HEADER_WIDTH = HEADER_NAME + 32;
+	private static final int HEADER_HEIGHT = HEADER_NAME + 34;
+	private static final int HEADER_BAYER_ORDER = HEADER_NAME + 68;
+
+	// Sizes of the raw blocks written for the V1, V2 and HQ cameras, checked before searching
+	private static final int[] KNOWN_SIZES = { 6404096, 10270208, 18711040 };
+
+	private static final BayerImage.Order[] ORDERS = {
+			BayerImage.Order.RGGB, BayerImage.Order.GBRG, BayerImage.Order.BGGR, BayerImage.Order.GRBG };
+
+	private RawBayerReader() {
+	}
+
+	/**
+	 * Reads the raw data from a file saved by raspistill. The file is memory mapped, so only
+	 * the raw block is read from the disk.
+	 *
+	 * @param file The File to read.
+	 * @return A BayerImage holding the unpacked values.
+	 * @throws IOException if the file couldn't be read or holds no raw data.
+	 */
+	public static BayerImage read(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Reads the raw data from a stream containing raspistill's output, reading the stream to its
+	 * end. The stream is not closed.
+	 *
+	 * @param in The InputStream to read.
+	 * @return A BayerImage holding the unpacked values.
+	 * @throws IOException if the stream couldn't be read or holds no raw data.
+	 */
+	public static BayerImage read(InputStream in) throws IOException {
+		// The raw block is at the end, so the whole stream has to be read
+		byte[] data = new byte[16 * 1024 * 1024];
+		int length = 0;
+		int n;
+		while (true) {
+			if (length == data.length)
+				data = Arrays.copyOf(data, length * 2);
+			if ((n = in.read(data, length, data.length - length)) < 0)
+				break;
+			length += n;
+		}
+		return read(ByteBuffer.wrap(data, 0, length));
+	}
+
+	/**
+	 * Reads the raw data from a buffer holding a file saved by raspistill. The buffer's position
+	 * and limit are left unchanged.
+	 *
+	 * @param buffer A ByteBuffer whose remaining bytes are raspistill's output.
+	 * @return A BayerImage holding the unpacked values.
+	 * @throws IOException if the buffer holds no raw data.
+	 */
+	public static BayerImage read(ByteBuffer buffer) throws IOException {
+		ByteBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		int length = data.limit();
+		for (int size : KNOWN_SIZES) {
+			if (size <= length) {
+				BayerImage image = unpack(data, length - size);
+				if (image != null)
+					return image;
+			}
+		}
+		// Otherwise, search for the start of the block
+		for (int start = 0; start + HEADER_SIZE <= length; start++) {
+			if (data.get(start) == 'B' && data.get(start + 1) == 'R' && data.get(start + 2) == 'C'
+					&& data.get(start + 3) == 'M') {
+				BayerImage image = unpack(data, start);
+				if (image != null)
+					return image;
+			}
+		}
+		throw new IOException("No raw Bayer data found; was the image taken with setAddRawBayer(true)?");
+	}
+
+	/**
+	 * Unpacks the raw block starting at the specified offset, or returns null if there isn't a
+	 * valid raw block there.
+	 */
+	private static BayerImage unpack(ByteBuffer data, int start) {
+		int blockLength = data.limit() - start;
+		if (blockLength <= HEADER_SIZE || data.get(start) != 'B' || data.get(start + 1) != 'R'
+				|| data.get(start + 2) != 'C' || data.get(start + 3) != 'M')
+			return null;
+		int width = data.getShort(start + HEADER_WIDTH) & 0xFFFF;
+		int height = data.getShort(start + HEADER_HEIGHT) & 0xFFFF;
+		int order = data.get(start + HEADER_BAYER_ORDER) & 0xFF;
+		if (width == 0 || height == 0 || width % 4 != 0 || order >= ORDERS.length)
+			return null;
+
+		int pixelBytes = blockLength - HEADER_SIZE;
+		int bitDepth;
+		int stride;
+		if (isLayout(pixelBytes, stride = align(width * 5 / 4, 32), height))
+			bitDepth = 10;
+		else if (isLayout(pixelBytes, stride = align(width * 3 / 2, 32), height))
+			bitDepth = 12;
+		else
+			return null;
+
+		short[] values = new short[width * height];
+		byte[] row = new byte[stride];
+		ByteBuffer rows = data.duplicate();
+		rows.position(start + HEADER_SIZE);
+		for (int y = 0; y < height; y++) {
+			rows.get(row);
+			int out = y * width;
+			if (bitDepth == 10) {
+				// 4 values: their high 8 bits, then a byte holding the low 2 bits of each
+				for (int x = 0; x < width; x += 4) {
+					int in = x * 5 / 4;
+					int low = row[in + 4];
+					values[out++] = (short) ((row[in] & 0xFF) << 2 | low & 0x3);
+					values[out++] = (short) ((row[in + 1] & 0xFF) << 2 | low >> 2 & 0x3);
+					values[out++] = (short) ((row[in + 2] & 0xFF) << 2 | low >> 4 & 0x3);
+					values[out++] = (short) ((row[in + 3] & 0xFF) << 2 | low >> 6 & 0x3);
+				}
+			} else {
+				// 2 values: their high 8 bits, then a byte holding the low 4 bits of each
+				for (int x = 0; x < width; x += 2) {
+					int in = x * 3 / 2;
+					int low = row[in + 2];
+					values[out++] = (short) ((row[in] & 0xFF) << 4 | low & 0xF);
+					values[out++] = (short) ((row[in + 1] & 0xFF) << 4 | low >> 4 & 0xF);
+				}
+			}
+		}
+		return new BayerImage(width, height, bitDepth, ORDERS[order], values);
+	}
+
+	/**
+	 * Checks whether pixel data of the specified size holds rows of the specified stride, with
+	 * the number of rows padded to a multiple of 16.
+	 */
+	private static boolean isLayout(int pixelBytes, int stride, int height) {
+		if (pixelBytes % stride != 0)
+			return false;
+		int rows = pixelBytes / stride;
+		// The HQ camera adds further padding rows
+		return rows >= height && rows < align(height, 16) + 32;
+	}
+
+	private static int align(int value, int alignment) {
+		return (value + alignment - 1) / alignment * alignment;
+	}
+}
@@ -0,0 +1,319 @@
+package com.hopding.jrpicam.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hopding.jrpicam.FrameListener;
+import com.hopding.jrpicam.RPiCamera;
+import com.hopding.jrpicam.RPiCameraStream;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * MJPEGServer serves a live view from an RPiCamera to any number of web browsers, using the
+ * HTTP server built into the JDK.
+ * <p>
+ * The server runs a single {@link RPiCameraStream}, however many clients are connected, and
+ * sends every client the same JPEG bytes raspistill produced, without decoding or re-encoding
+ * them. Each client has its own slot holding only the latest frame: if a client can't keep up,
+ * frames it hasn't sent yet are replaced by newer ones, so a slow client drops frames rather
+ * than delaying the others.
+ * <p>
+ * Two paths are served:
+ * <ul>
+ * <li>"/stream.mjpg" - a multipart/x-mixed-replace (MJPEG) stream, which browsers display as
+ * live video in an {@code <img>} tag;</li>
+ * <li>"/snapshot.jpg" - the latest frame as a single JPEG.</li>
+ * </ul>
+ * <p>
+ * The frame rate can be capped with {@link #setMaxFrameRate(double)}. The cap sets the
+ * interval raspistill captures at, and frames arriving faster than the cap are dropped before
+ * they are sent to any client.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * RPiCamera piCamera = new RPiCamera()
+ *     .setWidth(640)
+ *     .setHeight(480)
+ *     .turnOffPreview();
+ *
+ * MJPEGServer server = new MJPEGServer(piCamera, 8080)
+ *     .setMaxFrameRate(10);
+ * server.start();
+ * // Browse to http://raspberrypi:8080/stream.mjpg
+ * ...
+ * server.close();
+ *}
+ * </pre>
+ */
+public class MJPEGServer implements FrameListener, Closeable {
+
+	private static final String BOUNDARY = "jrpicamframe";
+
+	// Maximum time a snapshot request waits for the first frame
+	private static final long SNAPSHOT_TIMEOUT_MS = 10000;
+
+	/**
+	 * A connected client's latest-frame-wins slot.
+	 */
+	private static class Client {
+		private byte[] frame;
+		private boolean closed;
+
+		synchronized boolean offer(byte[] frame) {
+			boolean replaced = this.frame != null;
+			this.frame = frame;
+			notifyAll();
+			return replaced;
+		}
+
+		synchronized byte[] take() throws InterruptedException {
+			while (frame == null && !closed)
+				wait();
+			byte[] next = frame;
+			frame = null;
+			return next;
+		}
+
+		synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+	}
+
+	private final RPiCamera camera;
+	private final int port;
+	private final List<Client> clients = new CopyOnWriteArrayList<>();
+	private long minFrameIntervalNanos;
+	private int captureInterval;
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private RPiCameraStream stream;
+	private volatile boolean closed;
+
+	private byte[] latest;
+	private long lastPublished;
+	private final AtomicLong publishedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	/**
+	 * Creates a new MJPEGServer that serves images from the specified RPiCamera. The RPiCamera's
+	 * settings are read when the server is started.
+	 *
+	 * @param camera The RPiCamera to capture images with.
+	 * @param port An int specifying the port to listen on, or 0 for any free port.
+	 */
+	public MJPEGServer(RPiCamera camera, int port) {
+		this.camera = camera;
+		this.port = port;
+	}
+
+	/**
+	 * Sets the maximum number of frames per second to send to clients.
+	 *
+	 * @param fps A double specifying the frame rate cap, or 0 for no cap.
+	 */
+	public synchronized MJPEGServer setMaxFrameRate(double fps) {
+		minFrameIntervalNanos = fps > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / fps) : 0;
+		captureInterval = fps > 0 ? (int) (1000 / fps) : 0;
+		return this;
+	}
+
+	/**
+	 * Starts capturing and accepting clients.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		if (server != null || closed)
+			throw new IllegalStateException("MJPEGServer has already been started");
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "jrpicam-mjpeg");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.setExecutor(executor);
+		server.createContext("/stream.mjpg", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serveStream(exchange);
+			}
+		});
+		server.createContext("/snapshot.jpg", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serveSnapshot(exchange);
+			}
+		});
+		server.start();
+		try {
+			stream = camera.startStream(captureInterval, this);
+		} catch (IOException | RuntimeException e) {
+			server.stop(0);
+			executor.shutdownNow();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gets the port the server is listening on, which is useful if it was created with port 0.
+	 *
+	 * @return The port.
+	 */
+	public synchronized int getPort() {
+		return server == null ? port : server.getAddress().getPort();
+	}
+
+	/**
+	 * Gets the number of clients currently receiving the MJPEG stream.
+	 *
+	 * @return The client count.
+	 */
+	public int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * Gets the number of frames published to clients.
+	 *
+	 * @return The published frame count.
+	 */
+	public long getPublishedFrameCount() {
+		return publishedCount.get();
+	}
+
+	/**
+	 * Gets the number of frames dropped, either because they arrived faster than the frame rate
+	 * cap, or because a client was still sending an earlier frame. A frame dropped for several
+	 * clients is counted once for each.
+	 *
+	 * @return The dropped frame count.
+	 */
+	public long getDroppedFrameCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Publishes a frame to every connected client. Called by the server's RPiCameraStream, but
+	 * may also be called directly to serve frames from another source.
+	 */
+	@Override
+	public void onFrame(byte[] buffer, int offset, int length) {
+		long now = System.nanoTime();
+		byte[] frame;
+		synchronized (this) {
+			if (lastPublished != 0 && now - lastPublished < minFrameIntervalNanos) {
+				droppedCount.incrementAndGet();
+				return;
+			}
+			lastPublished = now;
+			// One copy of the frame is shared by every client
+			frame = Arrays.copyOfRange(buffer, offset, offset + length);
+			latest = frame;
+			notifyAll();
+		}
+		publishedCount.incrementAndGet();
+		for (Client client : clients) {
+			if (client.offer(frame))
+				droppedCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Stops capturing, disconnects all clients and stops the server.
+	 */
+	@Override
+	public void close() {
+		RPiCameraStream stream;
+		HttpServer server;
+		synchronized (this) {
+			closed = true;
+			stream = this.stream;
+			server = this.server;
+			notifyAll();
+		}
+		if (stream != null)
+			stream.close();
+		for (Client client : clients)
+			client.close();
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+		}
+	}
+
+	private void serveStream(HttpExchange exchange) throws IOException {
+		Client client = new Client();
+		clients.add(client);
+		try {
+			exchange.getResponseHeaders().set("Content-Type", "multipart/x-mixed-replace; boundary=" + BOUNDARY);
+			exchange.getResponseHeaders().set("Cache-Control", "no-cache, no-store");
+			exchange.sendResponseHeaders(200, 0);
+			OutputStream out = exchange.getResponseBody();
+			byte[] frame = getLatest();
+			while (!closed) {
+				if (frame != null) {
+					out.write(("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: "
+							+ frame.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+					out.write(frame);
+					out.write('\r');
+					out.write('\n');
+					out.flush();
+				}
+				frame = client.take();
+			}
+		} catch (IOException e) {
+			// Client disconnected
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			clients.remove(client);
+			exchange.close();
+		}
+	}
+
+	private void serveSnapshot(HttpExchange exchange) throws IOException {
+		try {
+			byte[] frame;
+			synchronized (this) {
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SNAPSHOT_TIMEOUT_MS);
+				long remaining;
+				while (latest == null && !closed
+						&& (remaining = deadline - System.nanoTime()) > 0)
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				frame = latest;
+			}
+			if (frame == null) {
+				exchange.sendResponseHeaders(503, -1);
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+			exchange.getResponseHeaders().set("Cache-Control", "no-cache, no-store");
+			exchange.sendResponseHeaders(200, frame.length);
+			exchange.getResponseBody().write(frame);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private synchronized byte[] getLatest() {
+		return latest;
+	}
+}
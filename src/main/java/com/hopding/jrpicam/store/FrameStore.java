@@ -0,0 +1,397 @@
+package com.hopding.jrpicam.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.hopding.jrpicam.FrameListener;
+
+/**
+ * FrameStore keeps a long series of images, such as a timelapse, in a few large files instead
+ * of one file per image. Tens of thousands of small files wear out SD cards and make the file
+ * system slow, and a FrameStore avoids both.
+ * <p>
+ * Images are appended one after another to segment files in the store's directory. Each
+ * segment is sized up front, so appending an image doesn't change the file's size (and with
+ * it, the file system's metadata) every time, and is trimmed to the data it holds once it is
+ * full. An index file records the time, segment, offset and length of every image in 20
+ * bytes. The index is loaded into memory when the store is opened, so images can be looked up
+ * by number or by time without touching the disk. Images are read through memory mapped
+ * segments, without copying.
+ * <p>
+ * Images can be added with {@link com.hopding.jrpicam.RPiCamera#takeStill(FrameStore)}, or by a
+ * {@link com.hopding.jrpicam.Timelapse} created with a FrameStore. A FrameStore is also a
+ * {@link FrameListener}, so a raspistill timelapse started with
+ * {@link com.hopding.jrpicam.RPiCamera#startStream(int, FrameListener)} can write into it.
+ * <p>
+ * Usage Example:
+ * <pre>
+ *{@code
+ * try (FrameStore store = new FrameStore(new File("/home/pi/timelapse"))) {
+ *     // An image every 10 seconds for a day
+ *     RPiCameraStream stream = piCamera.startStream(10000, store);
+ *     ...
+ *     stream.close();
+ *
+ *     // The image taken at noon
+ *     int frame = store.findFrame(noon);
+ *     ByteBuffer jpeg = store.getFrame(frame);
+ * }
+ *}
+ * </pre>
+ */
+public class FrameStore implements FrameListener, Closeable {
+
+	private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final int RECORD_SIZE = 20;
+	// Segments kept mapped for reading. Mappings use address space, which is scarce on a 32 bit JVM
+	private static final int MAPPED_SEGMENTS = 8;
+
+	private final File dir;
+	private final int segmentSize;
+
+	// The index, one entry per frame
+	private long[] times = new long[1024];
+	private int[] segments = new int[1024];
+	private int[] offsets = new int[1024];
+	private int[] lengths = new int[1024];
+	private int count;
+
+	private final FileChannel index;
+	private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+	private FileChannel segment;
+	private int segmentNumber;
+	private int writePos;
+	private final Object readLock = new Object();
+	private byte[] readBuffer = new byte[0]; // Guarded by readLock
+	private IOException failure;
+	private boolean closed;
+
+	private final Map<Integer, MappedByteBuffer> mapped =
+			new LinkedHashMap<Integer, MappedByteBuffer>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, MappedByteBuffer> eldest) {
+			return size() > MAPPED_SEGMENTS;
+		}
+	};
+
+	/**
+	 * Opens the FrameStore in the specified directory, creating it if it doesn't exist.
+	 *
+	 * @param dir The directory to keep the store's files in.
+	 * @throws IOException
+	 */
+	public FrameStore(File dir) throws IOException {
+		this(dir, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens the FrameStore in the specified directory, creating it if it doesn't exist, with
+	 * segments of the specified size. Each image must fit in a single segment.
+	 *
+	 * @param dir The directory to keep the store's files in.
+	 * @param segmentSize An int specifying the size of each segment file in bytes. The default
+	 *                    is 64MB.
+	 * @throws IOException
+	 */
+	public FrameStore(File dir, int segmentSize) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Couldn't create " + dir);
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.index = FileChannel.open(new File(dir, "frames.idx").toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			loadIndex();
+			openSegment(segmentNumber, writePos);
+		} catch (IOException | RuntimeException e) {
+			index.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends an image, timestamped with the current time.
+	 *
+	 * @param buffer The buffer containing the image.
+	 * @param offset The offset of the image's first byte within the buffer.
+	 * @param length The length of the image in bytes.
+	 * @return The image's frame number.
+	 * @throws IOException
+	 */
+	public int append(byte[] buffer, int offset, int length) throws IOException {
+		return append(buffer, offset, length, System.currentTimeMillis());
+	}
+
+	/**
+	 * Appends an image with the specified timestamp. Timestamps are kept in order: an image with
+	 * an earlier timestamp than the last image (e.g. because the clock was set back) is given
+	 * the last image's timestamp.
+	 *
+	 * @param buffer The buffer containing the image.
+	 * @param offset The offset of the image's first byte within the buffer.
+	 * @param length The length of the image in bytes.
+	 * @param time A long specifying when the image was taken, in milliseconds since the epoch.
+	 * @return The image's frame number.
+	 * @throws IOException
+	 */
+	public synchronized int append(byte[] buffer, int offset, int length, long time) throws IOException {
+		if (closed)
+			throw new IllegalStateException("FrameStore has been closed");
+		if (length > segmentSize)
+			throw new IOException("Image of " + length + " bytes is larger than a segment");
+		if (writePos > segmentSize - length) {
+			finishSegment();
+			openSegment(segmentNumber + 1, 0);
+		}
+		if (count > 0 && time < times[count - 1])
+			time = times[count - 1];
+
+		// The image is written before its index record, so the index never points at missing data
+		ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+		long pos = writePos;
+		while (data.hasRemaining())
+			pos += segment.write(data, pos);
+		record.clear();
+		record.putLong(time).putInt(segmentNumber).putInt(writePos).putInt(length).flip();
+		long indexPos = (long) count * RECORD_SIZE;
+		while (record.hasRemaining())
+			indexPos += index.write(record, indexPos);
+
+		if (count == times.length) {
+			int capacity = count * 2;
+			times = Arrays.copyOf(times, capacity);
+			segments = Arrays.copyOf(segments, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+		times[count] = time;
+		segments[count] = segmentNumber;
+		offsets[count] = writePos;
+		lengths[count] = length;
+		writePos += length;
+		return count++;
+	}
+
+	/**
+	 * Appends an image read from an InputStream, such as the output of raspistill. The stream
+	 * is read into a buffer that is reused for every image.
+	 *
+	 * @param in The InputStream to read the image from, up to the end of the stream.
+	 * @return The image's frame number.
+	 * @throws IOException
+	 */
+	public int append(InputStream in) throws IOException {
+		// Reading can take as long as a capture, so the store isn't locked until the image is read
+		synchronized (readLock) {
+			long time = System.currentTimeMillis();
+			int length = 0;
+			int n;
+			while (true) {
+				if (length == readBuffer.length)
+					readBuffer = Arrays.copyOf(readBuffer, Math.max(64 * 1024, length * 2));
+				if ((n = in.read(readBuffer, length, readBuffer.length - length)) < 0)
+					break;
+				length += n;
+			}
+			if (length == 0)
+				throw new IOException("No image was read");
+			return append(readBuffer, 0, length, time);
+		}
+	}
+
+	/**
+	 * Appends a frame received from an {@link com.hopding.jrpicam.RPiCameraStream}. As frames
+	 * can't be rejected, a failure to append one is saved, and stops any more frames being
+	 * appended. It can be retrieved with {@link #getFailure()}.
+	 */
+	@Override
+	public synchronized void onFrame(byte[] buffer, int offset, int length) {
+		if (failure != null || closed)
+			return;
+		try {
+			append(buffer, offset, length);
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	/**
+	 * Gets the number of images in the store.
+	 *
+	 * @return The frame count.
+	 */
+	public synchronized int getFrameCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the time an image was taken.
+	 *
+	 * @param frame An int specifying the frame number.
+	 * @return The time in milliseconds since the epoch.
+	 */
+	public synchronized long getTimestamp(int frame) {
+		checkFrame(frame);
+		return times[frame];
+	}
+
+	/**
+	 * Finds the last image taken at or before the specified time.
+	 *
+	 * @param time A long specifying the time in milliseconds since the epoch.
+	 * @return The frame number, or -1 if every image was taken after the time.
+	 */
+	public synchronized int findFrame(long time) {
+		int i = Arrays.binarySearch(times, 0, count, time);
+		if (i < 0)
+			return -i - 2;
+		// Several images can share a timestamp
+		while (i + 1 < count && times[i + 1] == time)
+			i++;
+		return i;
+	}
+
+	/**
+	 * Gets an image. The returned buffer is a read-only view of the memory mapped segment that
+	 * holds the image, so no data is copied.
+	 *
+	 * @param frame An int specifying the frame number.
+	 * @return A read-only ByteBuffer containing the image.
+	 * @throws IOException
+	 */
+	public synchronized ByteBuffer getFrame(int frame) throws IOException {
+		checkFrame(frame);
+		ByteBuffer buffer = map(segments[frame]).duplicate();
+		buffer.limit(offsets[frame] + lengths[frame]).position(offsets[frame]);
+		return buffer.slice();
+	}
+
+	/**
+	 * Gets the exception that stopped frames from an RPiCameraStream being appended, if any.
+	 *
+	 * @return The IOException, or null.
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Writes any images and index records still held by the operating system to the disk.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException {
+		segment.force(false);
+		index.force(false);
+	}
+
+	/**
+	 * Trims the current segment to the data it holds and closes the store's files.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		mapped.clear();
+		try {
+			segment.truncate(writePos);
+			segment.close();
+		} finally {
+			index.close();
+		}
+	}
+
+	private void loadIndex() throws IOException {
+		// A record only partly written when the store was last closed is ignored
+		int records = (int) (index.size() / RECORD_SIZE);
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+		buffer.limit(0);
+		long pos = 0;
+		for (int i = 0; i < records; i++) {
+			if (!buffer.hasRemaining()) {
+				buffer.clear();
+				while (buffer.hasRemaining() && pos < index.size())
+					pos += index.read(buffer, pos);
+				buffer.flip();
+			}
+			if (count == times.length) {
+				int capacity = count * 2;
+				times = Arrays.copyOf(times, capacity);
+				segments = Arrays.copyOf(segments, capacity);
+				offsets = Arrays.copyOf(offsets, capacity);
+				lengths = Arrays.copyOf(lengths, capacity);
+			}
+			times[count] = buffer.getLong();
+			segments[count] = buffer.getInt();
+			offsets[count] = buffer.getInt();
+			lengths[count] = buffer.getInt();
+			count++;
+		}
+		index.truncate((long) count * RECORD_SIZE);
+		if (count > 0) {
+			segmentNumber = segments[count - 1];
+			writePos = offsets[count - 1] + lengths[count - 1];
+		}
+	}
+
+	private void openSegment(int number, int position) throws IOException {
+		FileChannel channel = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			// Size the segment up front, which also discards anything after the last indexed image
+			channel.truncate(position);
+			ByteBuffer last = ByteBuffer.allocate(1);
+			while (last.hasRemaining())
+				channel.write(last, segmentSize - 1);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		segment = channel;
+		segmentNumber = number;
+		writePos = position;
+		mapped.remove(number);
+	}
+
+	private void finishSegment() throws IOException {
+		// The old segment's mapping would extend past the end of the trimmed file
+		mapped.remove(segmentNumber);
+		segment.truncate(writePos);
+		segment.close();
+	}
+
+	private MappedByteBuffer map(int number) throws IOException {
+		MappedByteBuffer buffer = mapped.get(number);
+		if (buffer == null) {
+			try (FileChannel channel = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.READ)) {
+				// The current segment is mapped at its full size, so images appended later are visible
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			mapped.put(number, buffer);
+		}
+		return buffer;
+	}
+
+	private File segmentFile(int number) {
+		return new File(dir, String.format("frames-%05d.seg", number));
+	}
+
+	private void checkFrame(int frame) {
+		if (frame < 0 || frame >= count)
+			throw new IndexOutOfBoundsException("Frame " + frame + " of " + count);
+	}
+}